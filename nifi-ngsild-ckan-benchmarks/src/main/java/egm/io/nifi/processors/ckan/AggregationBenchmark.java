@@ -0,0 +1,60 @@
+package egm.io.nifi.processors.ckan;
+
+import egm.io.nifi.processors.ckan.ngsild.Entity;
+import egm.io.nifi.processors.ckan.ngsild.NGSIUtils;
+import egm.io.nifi.processors.ckan.utils.CKANColumnAggregator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregation of the parsed entities into the records written in the datastore.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AggregationBenchmark {
+
+    private static final long CREATION_TIME = 1773912000000L;
+    private static final String DATASET_ID_PREFIX = "urn:ngsi-ld:Dataset:";
+
+    @Param({NgsiLdPayloads.SMALL, NgsiLdPayloads.WIDE, NgsiLdPayloads.MULTI_ATTRIBUTE, NgsiLdPayloads.TEMPORAL})
+    public String shape;
+
+    @Param({"1", "100"})
+    public int entities;
+
+    private List<Entity> parsedEntities;
+
+    @Setup
+    public void setUp() throws Exception {
+        parsedEntities = new ArrayList<>();
+        new NGSIUtils().streamEntities(new ByteArrayInputStream(NgsiLdPayloads.notification(shape, entities)), parsedEntities::add);
+    }
+
+    @Benchmark
+    public void aggregate(Blackhole blackhole) {
+        for (Entity entity : parsedEntities) {
+            for (CKANColumnAggregator aggregator : CKANColumnAggregator.forEntity(entity, CREATION_TIME, DATASET_ID_PREFIX)) {
+                blackhole.consume(aggregator.toRecord());
+            }
+        }
+    }
+}
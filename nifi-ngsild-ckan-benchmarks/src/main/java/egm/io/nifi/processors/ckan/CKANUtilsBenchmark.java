@@ -0,0 +1,45 @@
+package egm.io.nifi.processors.ckan;
+
+import egm.io.nifi.processors.ckan.utils.CKANUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helpers called for every entity and every record: timestamps, CKAN names and hashes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CKANUtilsBenchmark {
+
+    public long timestamp = 1773912000123L;
+    public String attributeName = "urn:ngsi-ld:Dataset:HydrometricStations:2";
+    public String publisherUrl = "https://hydrometric-stations.org";
+
+    @Benchmark
+    public String getHumanReadable() {
+        return CKANUtils.getHumanReadable(timestamp, true);
+    }
+
+    @Benchmark
+    public String encodeCKAN() {
+        return CKANUtils.encodeCKAN(attributeName);
+    }
+
+    @Benchmark
+    public int generateHash() {
+        return CKANUtils.generateHash(publisherUrl);
+    }
+}
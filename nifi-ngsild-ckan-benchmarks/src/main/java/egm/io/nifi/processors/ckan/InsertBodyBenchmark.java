@@ -0,0 +1,74 @@
+package egm.io.nifi.processors.ckan;
+
+import com.google.gson.JsonElement;
+import egm.io.nifi.processors.ckan.model.WriteMethod;
+import egm.io.nifi.processors.ckan.ngsild.Entity;
+import egm.io.nifi.processors.ckan.ngsild.NGSIUtils;
+import egm.io.nifi.processors.ckan.utils.CKANCacheSettings;
+import egm.io.nifi.processors.ckan.utils.CKANColumnAggregator;
+import okio.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the records into the body of a datastore_upsert request, as written by the HTTP client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class InsertBodyBenchmark {
+
+    @Param({NgsiLdPayloads.SMALL, NgsiLdPayloads.WIDE, NgsiLdPayloads.MULTI_ATTRIBUTE, NgsiLdPayloads.TEMPORAL})
+    public String shape;
+
+    @Param({"1", "100"})
+    public int entities;
+
+    private CKANBackend ckanBackend;
+    private List<Map<String, JsonElement>> records;
+    private final Buffer sink = new Buffer();
+
+    @Setup
+    public void setUp() throws Exception {
+        // no request is sent, the backend is only used to build the bodies
+        ckanBackend = new CKANBackend("http://localhost", "api-key", "datatables_view",
+                new CKANCacheSettings(100, Duration.ofHours(1), Duration.ofSeconds(30)));
+
+        List<Entity> parsedEntities = new ArrayList<>();
+        new NGSIUtils().streamEntities(new ByteArrayInputStream(NgsiLdPayloads.notification(shape, entities)), parsedEntities::add);
+        records = new ArrayList<>();
+        for (Entity entity : parsedEntities) {
+            for (CKANColumnAggregator aggregator : CKANColumnAggregator.forEntity(entity, 1773912000000L, "urn:ngsi-ld:Dataset:")) {
+                records.add(aggregator.toRecord());
+            }
+        }
+    }
+
+    @Benchmark
+    public long writeInsertBody() throws IOException {
+        // the buffer is emptied each time so that only the serialization is measured, not its growth
+        sink.clear();
+        ckanBackend.buildInsertBody("3c5a5ba3-6bd0-4a2c-a0c3-8ed1aa4e2a56", records, WriteMethod.INSERT).writeTo(sink);
+        return sink.size();
+    }
+}
@@ -0,0 +1,153 @@
+package egm.io.nifi.processors.ckan;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Builds NGSI-LD notifications shaped like the ones received by the processor, with the linked Dataset entity.
+ */
+public final class NgsiLdPayloads {
+
+    public static final String SMALL = "small";
+    public static final String WIDE = "wide";
+    public static final String MULTI_ATTRIBUTE = "multiAttribute";
+    public static final String TEMPORAL = "temporal";
+
+    private NgsiLdPayloads() {
+    }
+
+    /**
+     * Builds a notification.
+     *
+     * @param shape    Shape of the entities: small (a few attributes), wide (many attributes), multiAttribute
+     *                 (attributes with many datasetIds) or temporal (attributes with many instances)
+     * @param entities Number of entities in the notification
+     */
+    public static byte[] notification(String shape, int entities) {
+        return notification(shape, entities, 0, entities);
+    }
+
+    /**
+     * Builds a notification whose entities are taken in turn among a set of distinct entities, each of them being
+     * stored in its own resource.
+     *
+     * @param shape            Shape of the entities, see {@link #notification(String, int)}
+     * @param entities         Number of entities in the notification
+     * @param firstEntity      Index of the first entity of the notification
+     * @param distinctEntities Number of distinct entities, the indexes wrapping around after the last one
+     */
+    public static byte[] notification(String shape, int entities, int firstEntity, int distinctEntities) {
+        JsonArray data = new JsonArray();
+        for (int i = 0; i < entities; i++) {
+            data.add(entity(shape, (firstEntity + i) % distinctEntities));
+        }
+
+        JsonObject notification = new JsonObject();
+        notification.addProperty("id", "urn:ngsi-ld:Notification:1");
+        notification.addProperty("type", "Notification");
+        notification.addProperty("subscriptionId", "urn:ngsi-ld:Subscription:Benchmark:CKAN");
+        notification.addProperty("notifiedAt", "2026-03-19T09:37:26.859657Z");
+        notification.add("data", data);
+        return notification.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static JsonObject entity(String shape, int index) {
+        JsonObject entity = new JsonObject();
+        entity.addProperty("id", "urn:ngsi-ld:HydrometricStation:X0310010" + index);
+        entity.addProperty("type", "HydrometricStation");
+        entity.add("title", property("HydrometricStation " + index));
+        entity.add("description", property("Hydrometric station for water level and flows"));
+        entity.add("accessURL", property("https://sedimark.org"));
+        entity.add("downloadURL", property("https://download.org"));
+        entity.add("mediaType", property("application/ld+json"));
+        entity.add("location", geoProperty(6.49800996 + index / 1000.0, 44.55535641));
+
+        switch (shape) {
+            case SMALL -> {
+                entity.add("flow", observedProperty(26100.0, "G51", "2026-03-19T09:00:00Z"));
+                entity.add("waterLevel", observedProperty(230.0, "MMT", "2026-03-19T09:00:00Z"));
+            }
+            case WIDE -> {
+                for (int i = 0; i < 200; i++) {
+                    entity.add("measure" + i, observedProperty(i * 1.5, "MMT", "2026-03-19T09:00:00Z"));
+                }
+            }
+            case MULTI_ATTRIBUTE -> {
+                for (int i = 0; i < 20; i++) {
+                    JsonArray instances = new JsonArray();
+                    for (int j = 0; j < 10; j++) {
+                        JsonObject instance = observedProperty(i * 10.0 + j, "MMT", "2026-03-19T09:00:00Z");
+                        instance.addProperty("datasetId", "urn:ngsi-ld:Dataset:Sensor" + j);
+                        instances.add(instance);
+                    }
+                    entity.add("measure" + i, instances);
+                }
+            }
+            case TEMPORAL -> {
+                for (String attribute : new String[]{"flow", "waterLevel", "temperature"}) {
+                    JsonArray instances = new JsonArray();
+                    for (int hour = 0; hour < 96; hour++) {
+                        String observedAt = String.format("2026-03-%02dT%02d:00:00Z", 1 + hour / 24, hour % 24);
+                        instances.add(observedProperty(hour * 2.5, "MMT", observedAt));
+                    }
+                    entity.add(attribute, instances);
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown payload shape: " + shape);
+        }
+
+        entity.add("servesDataset", servesDataset());
+        return entity;
+    }
+
+    private static JsonObject servesDataset() {
+        JsonObject dataset = new JsonObject();
+        dataset.addProperty("id", "urn:ngsi-ld:Dataset:HydrometricStations:2");
+        dataset.addProperty("type", "Dataset");
+        dataset.add("title", property("HydrometricStations Dataset"));
+        dataset.add("description", property("Dataset for HydrometricStations, measuring water levels and flows."));
+        dataset.add("keyword", property("[Environnement,EauNutriments,Data]"));
+        dataset.add("publisher", property("EGM Organization"));
+        dataset.add("accessRights", property("Attribution Rights"));
+        dataset.add("landingPage", property("https://hydrometric-stations.org"));
+        dataset.add("contactPoint", property("EGM"));
+
+        JsonObject servesDataset = new JsonObject();
+        servesDataset.addProperty("type", "Relationship");
+        servesDataset.addProperty("object", "urn:ngsi-ld:Dataset:HydrometricStations:2");
+        servesDataset.add("entity", dataset);
+        return servesDataset;
+    }
+
+    private static JsonObject property(String value) {
+        JsonObject property = new JsonObject();
+        property.addProperty("type", "Property");
+        property.addProperty("value", value);
+        return property;
+    }
+
+    private static JsonObject observedProperty(double value, String unitCode, String observedAt) {
+        JsonObject property = new JsonObject();
+        property.addProperty("type", "Property");
+        property.addProperty("value", value);
+        property.addProperty("unitCode", unitCode);
+        property.addProperty("observedAt", observedAt);
+        return property;
+    }
+
+    private static JsonObject geoProperty(double longitude, double latitude) {
+        JsonArray coordinates = new JsonArray();
+        coordinates.add(longitude);
+        coordinates.add(latitude);
+        JsonObject point = new JsonObject();
+        point.addProperty("type", "Point");
+        point.add("coordinates", coordinates);
+
+        JsonObject geoProperty = new JsonObject();
+        geoProperty.addProperty("type", "GeoProperty");
+        geoProperty.add("value", point);
+        return geoProperty;
+    }
+}
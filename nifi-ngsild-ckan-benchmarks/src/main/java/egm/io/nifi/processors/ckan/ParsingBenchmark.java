@@ -0,0 +1,64 @@
+package egm.io.nifi.processors.ckan;
+
+import egm.io.nifi.processors.ckan.ngsild.Entity;
+import egm.io.nifi.processors.ckan.ngsild.NGSIUtils;
+import egm.io.nifi.processors.ckan.utils.BuildDCATMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the notifications and extraction of the DCAT metadata of their entities.
+ * The parsing is measured from the content of a FlowFile, as read by {@link NGSIUtils#getEventFromFlowFile}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ParsingBenchmark {
+
+    @Param({NgsiLdPayloads.SMALL, NgsiLdPayloads.WIDE, NgsiLdPayloads.MULTI_ATTRIBUTE, NgsiLdPayloads.TEMPORAL})
+    public String shape;
+
+    @Param({"1", "100"})
+    public int entities;
+
+    private final NGSIUtils ngsiUtils = new NGSIUtils();
+    private byte[] notification;
+    private List<Entity> parsedEntities;
+
+    @Setup
+    public void setUp() throws Exception {
+        notification = NgsiLdPayloads.notification(shape, entities);
+        parsedEntities = new ArrayList<>();
+        ngsiUtils.streamEntities(new ByteArrayInputStream(notification), parsedEntities::add);
+    }
+
+    @Benchmark
+    public void streamEntities(Blackhole blackhole) throws Exception {
+        ngsiUtils.streamEntities(new ByteArrayInputStream(notification), blackhole::consume);
+    }
+
+    @Benchmark
+    public void getMetadataFromEntity(Blackhole blackhole) {
+        for (Entity entity : parsedEntities) {
+            blackhole.consume(BuildDCATMetadata.getMetadataFromEntity(entity, "https://hydrometric-stations.org"));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package egm.io.nifi.processors.ckan;
+
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static egm.io.nifi.processors.ckan.ngsild.NGSIConstants.DCAT_PUBLISHER_URL;
+
+/**
+ * Drives the processor end to end against the {@link CKANStandIn}, feeding it FlowFiles at a given rate, and reports
+ * the FlowFiles and rows written per second, the CKAN requests sent per FlowFile and the latency of the FlowFiles,
+ * from the time they are queued to the time they are routed. Options are given as --name value:
+ * <ul>
+ *     <li>flowfiles: number of FlowFiles measured (1000)</li>
+ *     <li>warmup: number of FlowFiles processed before measuring, creating the resources (100)</li>
+ *     <li>rate: FlowFiles queued per second, 0 to queue a batch each time the previous one is processed (0)</li>
+ *     <li>shape: shape of the entities, small, wide, multiAttribute or temporal (small)</li>
+ *     <li>entities: number of entities per FlowFile (10)</li>
+ *     <li>resources: number of distinct entities, each of them stored in its own resource (50)</li>
+ *     <li>batch-size, execution-mode, write-method, primary-key: properties of the processor (10, Asynchronous requests, insert, none)</li>
+ *     <li>latency: latency of CKAN in milliseconds, a single value or a min-max range (0)</li>
+ *     <li>failure-rate and failure-status: share of the CKAN requests failing and their HTTP status (0, 503)</li>
+ * </ul>
+ */
+public class ThroughputHarness {
+
+    private static final String ENQUEUED_AT = "harness.enqueued.nanos";
+
+    public static void main(String[] args) throws Exception {
+        // the processor logs every request at INFO, which would be measured too
+        if (System.getProperty("org.slf4j.simpleLogger.defaultLogLevel") == null) {
+            System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
+        }
+        Map<String, String> options = parseOptions(args);
+        int flowFiles = Integer.parseInt(options.getOrDefault("flowfiles", "1000"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "100"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+        String shape = options.getOrDefault("shape", NgsiLdPayloads.SMALL);
+        int entities = Integer.parseInt(options.getOrDefault("entities", "10"));
+        int resources = Integer.parseInt(options.getOrDefault("resources", "50"));
+        int batchSize = Integer.parseInt(options.getOrDefault("batch-size", "10"));
+
+        try (CKANStandIn ckan = new CKANStandIn()) {
+            String[] latency = options.getOrDefault("latency", "0").split("-");
+            ckan.setLatency(Duration.ofMillis(Long.parseLong(latency[0])), Duration.ofMillis(Long.parseLong(latency[latency.length - 1])));
+
+            TestRunner runner = TestRunners.newTestRunner(NgsiLdToCkan.class);
+            runner.setProperty(NgsiLdToCkan.CKAN_URL, ckan.getUrl());
+            runner.setProperty(NgsiLdToCkan.CKAN_API_KEY, "stand-in");
+            runner.setProperty(NgsiLdToCkan.BATCH_SIZE, String.valueOf(batchSize));
+            runner.setProperty(NgsiLdToCkan.EXECUTION_MODE, options.getOrDefault("execution-mode", NgsiLdToCkan.EXECUTION_MODE_ASYNC));
+            runner.setProperty(NgsiLdToCkan.WRITE_METHOD, options.getOrDefault("write-method", "insert"));
+            if (options.containsKey("primary-key")) {
+                runner.setProperty(NgsiLdToCkan.PRIMARY_KEY, options.get("primary-key"));
+            }
+
+            // notifications are built upfront so that only the processor is measured
+            byte[][] payloads = new byte[resources][];
+            for (int i = 0; i < resources; i++) {
+                payloads[i] = NgsiLdPayloads.notification(shape, entities, i, resources);
+            }
+            Harness harness = new Harness(runner, payloads, entities, batchSize);
+
+            System.out.printf("Warming up with %d FlowFiles%n", warmup);
+            harness.process(warmup, 0);
+
+            // failures are only injected once the resources exist, to measure the writes rather than the creations
+            ckan.setFailures(Double.parseDouble(options.getOrDefault("failure-rate", "0")),
+                Integer.parseInt(options.getOrDefault("failure-status", "503")));
+            long requestsBefore = ckan.getRequestCount();
+            long rowsBefore = ckan.getRowCount();
+            Map<String, Long> requestCountsBefore = ckan.getRequestCounts();
+
+            System.out.printf("Measuring %d FlowFiles of %d %s entities (rate=%s, batchSize=%d, latency=%s ms)%n",
+                flowFiles, entities, shape, rate > 0 ? rate + "/s" : "unbounded", batchSize, options.getOrDefault("latency", "0"));
+            long start = System.nanoTime();
+            Result result = harness.process(flowFiles, rate);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            // stops the processor
+            runner.run(1, true, false);
+
+            long requests = ckan.getRequestCount() - requestsBefore;
+            long rows = ckan.getRowCount() - rowsBefore;
+            Map<String, Long> requestCounts = new HashMap<>(ckan.getRequestCounts());
+            requestCountsBefore.forEach((action, count) -> requestCounts.merge(action, -count, Long::sum));
+            requestCounts.values().removeIf(count -> count == 0);
+
+            System.out.printf(Locale.ROOT, "FlowFiles: %d in %.2f s (success=%d, retry=%d, failure=%d)%n",
+                flowFiles, seconds, result.success(), result.retry(), result.failure());
+            System.out.printf(Locale.ROOT, "Throughput: %.1f FlowFiles/s, %.1f rows/s%n", flowFiles / seconds, rows / seconds);
+            System.out.printf(Locale.ROOT, "CKAN requests: %d, %.2f per FlowFile, %d failed on purpose %s%n",
+                requests, (double) requests / flowFiles, ckan.getFailureCount(), requestCounts);
+            System.out.printf(Locale.ROOT, "FlowFile latency: p50=%.1f ms, p99=%.1f ms, max=%.1f ms%n",
+                result.percentile(0.50), result.percentile(0.99), result.percentile(1.0));
+        }
+    }
+
+    private record Result(int success, int retry, int failure, long[] latencies) {
+        double percentile(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile * latencies.length) - 1;
+            return latencies[Math.max(index, 0)] / 1e6;
+        }
+    }
+
+    private static final class Harness {
+        private final TestRunner runner;
+        private final byte[][] payloads;
+        private final int entities;
+        private final int batchSize;
+        private boolean initialized;
+        private int enqueued;
+
+        private Harness(TestRunner runner, byte[][] payloads, int entities, int batchSize) {
+            this.runner = runner;
+            this.payloads = payloads;
+            this.entities = entities;
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * Queues FlowFiles at the given rate, or a batch at a time if the rate is 0, and runs the processor until
+         * they are all routed.
+         */
+        private Result process(int flowFiles, double rate) throws InterruptedException {
+            long[] latencies = new long[flowFiles];
+            int routed = 0;
+            int queued = 0;
+            int success = 0;
+            int retry = 0;
+            int failure = 0;
+            long start = System.nanoTime();
+
+            while (routed < flowFiles) {
+                int due = rate > 0
+                    ? (int) Math.min(flowFiles, (long) ((System.nanoTime() - start) / 1e9 * rate) + 1)
+                    : Math.min(flowFiles, routed + batchSize);
+                if (queued == routed && due == queued) {
+                    // nothing to process before the next FlowFile is due
+                    long nextDue = start + (long) (queued / rate * 1e9);
+                    TimeUnit.NANOSECONDS.sleep(Math.max(nextDue - System.nanoTime(), 0));
+                    continue;
+                }
+                for (; queued < due; queued++) {
+                    enqueue();
+                }
+
+                runner.run(1, false, !initialized);
+                initialized = true;
+
+                long now = System.nanoTime();
+                for (Relationship relationship : List.of(NgsiLdToCkan.REL_SUCCESS, NgsiLdToCkan.REL_RETRY, NgsiLdToCkan.REL_FAILURE)) {
+                    List<MockFlowFile> transferred = runner.getFlowFilesForRelationship(relationship);
+                    for (MockFlowFile flowFile : transferred) {
+                        if (routed < flowFiles) {
+                            latencies[routed++] = now - Long.parseLong(flowFile.getAttribute(ENQUEUED_AT));
+                        }
+                    }
+                    if (relationship == NgsiLdToCkan.REL_SUCCESS) {
+                        success += transferred.size();
+                    } else if (relationship == NgsiLdToCkan.REL_RETRY) {
+                        retry += transferred.size();
+                    } else {
+                        failure += transferred.size();
+                    }
+                }
+                runner.clearTransferState();
+            }
+
+            Arrays.sort(latencies);
+            return new Result(success, retry, failure, latencies);
+        }
+
+        // the FlowFiles take the entities in turn, so that all the resources are written
+        private void enqueue() {
+            byte[] payload = payloads[(int) ((long) enqueued * entities % payloads.length)];
+            enqueued++;
+            runner.enqueue(payload, Map.of(
+                DCAT_PUBLISHER_URL, "https://stand-in.ckan.org",
+                ENQUEUED_AT, String.valueOf(System.nanoTime())));
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("Expected --name value options, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
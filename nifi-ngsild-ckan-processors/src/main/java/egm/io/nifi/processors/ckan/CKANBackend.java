@@ -4,58 +4,158 @@ import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+import egm.io.nifi.processors.ckan.http.CKANException;
+import egm.io.nifi.processors.ckan.http.CKANTransientException;
 import egm.io.nifi.processors.ckan.http.HttpBackend;
+import egm.io.nifi.processors.ckan.http.JsonRequestBody;
 import egm.io.nifi.processors.ckan.http.JsonResponse;
+import egm.io.nifi.processors.ckan.model.ColumnType;
 import egm.io.nifi.processors.ckan.model.DCATMetadata;
 import egm.io.nifi.processors.ckan.model.DataStore;
+import egm.io.nifi.processors.ckan.model.DataStoreField;
+import egm.io.nifi.processors.ckan.model.DataStoreSettings;
+import egm.io.nifi.processors.ckan.model.WriteMethod;
 import egm.io.nifi.processors.ckan.ngsild.Entity;
 import egm.io.nifi.processors.ckan.ngsild.NGSIConstants;
 import egm.io.nifi.processors.ckan.utils.CKANCache;
+import egm.io.nifi.processors.ckan.utils.CKANCacheSettings;
 import egm.io.nifi.processors.ckan.utils.CKANUtils;
+import egm.io.nifi.processors.ckan.utils.SharedIdStore;
 import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.RequestBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
-public class CKANBackend extends HttpBackend {
+public class CKANBackend extends HttpBackend implements AutoCloseable {
 
     private static final Logger logger = LoggerFactory.getLogger(CKANBackend.class);
+    private static final TypeAdapter<JsonElement> JSON_ELEMENT_ADAPTER = new Gson().getAdapter(JsonElement.class);
+    // a node creating an object holds its claim at most this long, the other nodes wait for it as long
+    private static final Duration CLAIM_DURATION = Duration.ofMinutes(1);
+    private static final Duration CLAIM_POLL_INTERVAL = Duration.ofMillis(100);
+    // suffix of the text column receiving the values that cannot be stored in the column of their attribute
+    static final String TEXT_COLUMN_SUFFIX = "_text";
 
     private final String apiKey;
     private final String viewer;
     private final CKANCache cache;
+    // the HTTP client created by this backend, null when it is shared with other backends
+    private final OkHttpClient ownedHttpClient;
+    private volatile SharedIdStore sharedIdStore;
+    private volatile ViewProvisioner viewProvisioner;
 
-    public CKANBackend(String url, String apiKey, String ckanViewer) {
-        super(url);
+    /**
+     * Creates a backend with its own HTTP client and identifiers cache, the client being released by {@link #close()}.
+     */
+    public CKANBackend(String url, String apiKey, String ckanViewer, CKANCacheSettings cacheSettings) {
+        this(url, apiKey, ckanViewer, new OkHttpClient(), cacheSettings);
+    }
+
+    private CKANBackend(String url, String apiKey, String ckanViewer, OkHttpClient httpClient, CKANCacheSettings cacheSettings) {
+        this(url, apiKey, ckanViewer, httpClient, new CKANCache(url, apiKey, cacheSettings, httpClient), true);
+    }
+
+    /**
+     * Creates a backend using an HTTP client and an identifiers cache that may be shared with other backends. The
+     * client is left open by {@link #close()}, it is released by its owner.
+     */
+    public CKANBackend(String url, String apiKey, String ckanViewer, OkHttpClient httpClient, CKANCache cache) {
+        this(url, apiKey, ckanViewer, httpClient, cache, false);
+    }
+
+    private CKANBackend(String url, String apiKey, String ckanViewer, OkHttpClient httpClient, CKANCache cache, boolean ownsHttpClient) {
+        // a Retry-After received while looking up an object holds back the writes too
+        super(url, httpClient, cache.getRetryAfterDeadline());
 
         this.apiKey = apiKey;
         this.viewer = ckanViewer;
-        this.cache = new CKANCache(url, apiKey);
+        this.cache = cache;
+        this.ownedHttpClient = ownsHttpClient ? httpClient : null;
+    }
+
+    /**
+     * Releases the HTTP client of the backend if it created it.
+     */
+    @Override
+    public void close() {
+        if (ownedHttpClient != null) {
+            closeClient(ownedHttpClient);
+        }
+    }
+
+    /**
+     * Shares the identifiers of the CKAN objects with the other nodes of a cluster, so that a single node creates each
+     * object and the other ones reuse its identifier.
+     *
+     * @param sharedIdStore The store shared by the nodes, or null to stop sharing
+     */
+    public void setSharedIdStore(SharedIdStore sharedIdStore) {
+        this.sharedIdStore = sharedIdStore;
+    }
+
+    /**
+     * Hands the creation of the views of new resources to a provisioner running in the background, instead of
+     * creating them before the first records are inserted.
+     *
+     * @param viewProvisioner The provisioner creating the views, or null to create them synchronously
+     */
+    void setViewProvisioner(ViewProvisioner viewProvisioner) {
+        this.viewProvisioner = viewProvisioner;
     }
 
     public void persist(
         String orgName,
         String pkgName,
         String resName,
-        List<JsonObject> records,
+        List<Map<String, JsonElement>> records,
+        Map<String, ColumnType> columnTypes,
         DCATMetadata dcatMetadata,
-        boolean createDataStore
+        DataStoreSettings dataStoreSettings
     ) throws Exception {
 
         logger.info("Going to lookup for the resource id, the cache may be updated during the process (orgName={}, " +
                 "pkgName={}, resName={}", orgName, pkgName, resName);
 
-        String resId = resourceLookupOrCreateDynamicFields(orgName, pkgName, resName, records, dcatMetadata, createDataStore);
+        String resId = resourceLookupOrCreateDynamicFields(orgName, pkgName, resName, records, columnTypes, dcatMetadata, dataStoreSettings);
         if (resId == null) {
-            throw new Exception("Cannot persist the data (orgName=" + orgName + ", pkgName=" + pkgName
+            throw new CKANException("Cannot persist the data (orgName=" + orgName + ", pkgName=" + pkgName
                     + ", resName=" + resName + ")");
         } else {
-            if (createDataStore) {
+            if (dataStoreSettings.create()) {
+                List<Map<String, JsonElement>> storedRecords = completeDataStore(pkgName, resId, resName, records, columnTypes, dataStoreSettings);
                 logger.info("Going to persist the data (orgName={}, pkgName={}, resName/resId={}/{})", orgName, pkgName, resName, resId);
-                insert(resId, records);
+                List<Map<String, JsonElement>> uniqueRecords = deduplicate(storedRecords, dataStoreSettings.primaryKey());
+                int chunkSize = dataStoreSettings.chunkSize();
+                for (int i = 0; i < uniqueRecords.size(); i += chunkSize) {
+                    insert(resId, uniqueRecords.subList(i, Math.min(i + chunkSize, uniqueRecords.size())), dataStoreSettings.writeMethod());
+                }
             } else {
                 logger.info("DataStore was not created in the resource (orgName={}, pkgName={}, resName/resId={}/{})", orgName, pkgName, resName, resId);
 
@@ -63,6 +163,50 @@ public class CKANBackend extends HttpBackend {
         }
     }
 
+    /**
+     * Persists records like {@link #persist}, without waiting for the datastore requests. The resource is looked up or
+     * created before returning, then its chunks of records are sent one after the other so that they are stored in
+     * order, while the records of other resources can be sent at the same time.
+     *
+     * @return A future completed once all the records are stored, or exceptionally if any of them could not be stored
+     */
+    public CompletableFuture<Void> persistAsync(
+        String orgName,
+        String pkgName,
+        String resName,
+        List<Map<String, JsonElement>> records,
+        Map<String, ColumnType> columnTypes,
+        DCATMetadata dcatMetadata,
+        DataStoreSettings dataStoreSettings
+    ) {
+        final String resId;
+        final List<Map<String, JsonElement>> storedRecords;
+        try {
+            resId = resourceLookupOrCreateDynamicFields(orgName, pkgName, resName, records, columnTypes, dcatMetadata, dataStoreSettings);
+            if (resId == null) {
+                return CompletableFuture.failedFuture(new CKANException("Cannot persist the data (orgName=" + orgName
+                        + ", pkgName=" + pkgName + ", resName=" + resName + ")"));
+            }
+            if (!dataStoreSettings.create()) {
+                logger.info("DataStore was not created in the resource (orgName={}, pkgName={}, resName/resId={}/{})", orgName, pkgName, resName, resId);
+                return CompletableFuture.completedFuture(null);
+            }
+            storedRecords = completeDataStore(pkgName, resId, resName, records, columnTypes, dataStoreSettings);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        logger.info("Going to persist the data (orgName={}, pkgName={}, resName/resId={}/{})", orgName, pkgName, resName, resId);
+        List<Map<String, JsonElement>> uniqueRecords = deduplicate(storedRecords, dataStoreSettings.primaryKey());
+        int chunkSize = dataStoreSettings.chunkSize();
+        CompletableFuture<Void> inserts = CompletableFuture.completedFuture(null);
+        for (int i = 0; i < uniqueRecords.size(); i += chunkSize) {
+            List<Map<String, JsonElement>> chunk = uniqueRecords.subList(i, Math.min(i + chunkSize, uniqueRecords.size()));
+            inserts = inserts.thenCompose(previous -> insertAsync(resId, chunk, dataStoreSettings.writeMethod()));
+        }
+        return inserts;
+    }
+
     /**
      * Look up or create resources and create the datastore with the fields available in the record.
      *
@@ -75,69 +219,499 @@ public class CKANBackend extends HttpBackend {
         String orgName,
         String pkgName,
         String resName,
-        List<JsonObject> records,
+        List<Map<String, JsonElement>> records,
+        Map<String, ColumnType> columnTypes,
         DCATMetadata dcatMetadata,
-        boolean createDataStore
+        DataStoreSettings dataStoreSettings
     ) throws Exception {
-        if (!cache.isCachedOrg(orgName)) {
-            logger.info("The organization was not cached nor existed in CKAN (orgName=\"{}\")", orgName);
-            String orgId = createOrganization(orgName, dcatMetadata);
-            cache.addOrg(orgName);
-            cache.setOrgId(orgName, orgId);
-            logger.info("Created new organization in CKAN (orgName=\"{}\", orgId=\"{}\")", orgName, orgId);
+        String pkgId = packageLookupOrCreate(orgName, pkgName, dcatMetadata);
+
+        String resId = lookupOrCreate("res:" + orgName + "_" + pkgName + "_" + resName, "resource",
+            () -> cache.getResId(orgName, pkgName, resName),
+            () -> cache.isCachedRes(orgName, pkgName, resName),
+            sharedResId -> cache.setResId(orgName, pkgName, resName, sharedResId),
+            () -> {
+                logger.info("The resource was not cached nor existed in CKAN (orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
+
+                String createdResId = createResource(resName, pkgId, dcatMetadata);
+                if (dataStoreSettings.create()) {
+                    createDataStoreWithFields(pkgName, createdResId, resName, records, columnTypes, dataStoreSettings);
+                    // the view is not needed to insert records, it is created in the background if possible
+                    ViewProvisioner provisioner = viewProvisioner;
+                    if (provisioner != null) {
+                        provisioner.submit(createdResId, true);
+                    } else {
+                        createView(createdResId, true);
+                    }
+                }
+                // the resource is only made visible to other tasks, and nodes, once its datastore is ready
+                cache.setResId(orgName, pkgName, resName, createdResId);
+                return createdResId;
+            });
+
+        // the view of a resource created before may be missing, for instance if the processor stopped before creating
+        // it, it is checked in the background once per run of the provisioner
+        ViewProvisioner provisioner = viewProvisioner;
+        if (dataStoreSettings.create() && provisioner != null && !cache.hasCachedView(resId)) {
+            provisioner.submit(resId, false);
+        }
+        return resId;
+    }
+
+    /**
+     * Fits the records to the datastore of a resource, then adds to the datastore the fields they bring. A value that
+     * cannot be stored in the column an earlier batch created for its attribute, for instance a string in a numeric
+     * column, is moved to a text column named after the attribute with a "_text" suffix, instead of having CKAN
+     * reject the whole request.
+     *
+     * @return The records to be written
+     */
+    private List<Map<String, JsonElement>> completeDataStore(String pkgName, String resId, String resName, List<Map<String, JsonElement>> records,
+                                                             Map<String, ColumnType> columnTypes, DataStoreSettings dataStoreSettings) throws Exception {
+        Map<String, String> fields = cache.getDataStoreFields(resId);
+        if (fields == null) {
+            fields = cache.singleFlight("fields:" + resId, () -> {
+                cache.isCachedDataStoreFields(resId);
+                return cache.getDataStoreFields(resId);
+            });
+        }
+
+        List<Map<String, JsonElement>> storedRecords = records;
+        for (int i = 0; i < records.size(); i++) {
+            Map<String, JsonElement> storedRecord = moveConflictingValues(records.get(i), fields);
+            if (storedRecord != records.get(i)) {
+                if (storedRecords == records) {
+                    storedRecords = new ArrayList<>(records);
+                }
+                storedRecords.set(i, storedRecord);
+            }
+        }
+        if (storedRecords != records) {
+            logger.warn("Some values do not fit the type of their column, they are stored in \"{}\" columns (resId={})", TEXT_COLUMN_SUFFIX, resId);
         }
 
+        // the text columns are not in the column types, they are created as text
+        addMissingDataStoreFields(pkgName, resId, resName, storedRecords, columnTypes, dataStoreSettings);
+        return storedRecords;
+    }
+
+    /**
+     * Moves the values of a record that cannot be stored in the fields of their columns to text columns.
+     *
+     * @param record Record to be written
+     * @param fields Fields of the datastore and their types
+     * @return The record itself if all its values fit their fields, otherwise a copy with the moved values
+     */
+    static Map<String, JsonElement> moveConflictingValues(Map<String, JsonElement> record, Map<String, String> fields) {
+        boolean conflicting = false;
+        for (Map.Entry<String, JsonElement> column : record.entrySet()) {
+            if (toFieldValue(column.getValue(), fields.get(column.getKey())) == null) {
+                conflicting = true;
+                break;
+            }
+        }
+        if (!conflicting) {
+            return record;
+        }
+
+        Map<String, JsonElement> movedRecord = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> column : record.entrySet()) {
+            if (toFieldValue(column.getValue(), fields.get(column.getKey())) == null) {
+                movedRecord.put(column.getKey() + TEXT_COLUMN_SUFFIX, column.getValue());
+            } else {
+                movedRecord.put(column.getKey(), column.getValue());
+            }
+        }
+        return movedRecord;
+    }
+
+    /**
+     * Look up or create the package of a resource and its organization.
+     *
+     * @param orgName The organization the package belongs to
+     * @param pkgName The package name to be created or lookup to
+     * @return The package id
+     */
+    public String packageLookupOrCreate(String orgName, String pkgName, DCATMetadata dcatMetadata) throws Exception {
+        // The lookups and creations below are shared by the concurrent tasks targeting the same CKAN object, so
+        // an object missing in the cache is only looked up, and created if needed, once.
+        String orgId = lookupOrCreate("org:" + orgName, "organization",
+            () -> cache.getOrgId(orgName),
+            () -> cache.isCachedOrg(orgName),
+            sharedOrgId -> cache.setOrgId(orgName, sharedOrgId),
+            () -> {
+                logger.info("The organization was not cached nor existed in CKAN (orgName=\"{}\")", orgName);
+                String createdOrgId = createOrganization(orgName, dcatMetadata);
+                cache.setOrgId(orgName, createdOrgId);
+                logger.info("Created new organization in CKAN (orgName=\"{}\", orgId=\"{}\")", orgName, createdOrgId);
+                return createdOrgId;
+            });
+
+        return lookupOrCreate("pkg:" + orgName + "_" + pkgName, "package",
+            () -> cache.getPkgId(orgName, pkgName),
+            () -> cache.isCachedPkg(orgName, pkgName),
+            sharedPkgId -> cache.setPkgId(orgName, pkgName, sharedPkgId),
+            () -> {
+                logger.info("The package was not cached nor existed in CKAN (orgName=\"{}\", pkgName=\"{}\")", orgName, pkgName);
+                String createdPkgId = createPackage(pkgName, orgId, dcatMetadata);
+                cache.setPkgId(orgName, pkgName, createdPkgId);
+                return createdPkgId;
+            });
+    }
+
+    /**
+     * Gets the identifier of a CKAN object, creating the object if it does not exist. The lookup, and the creation if
+     * needed, are shared by the concurrent tasks asking for the same object. When identifiers are shared with the
+     * other nodes of a cluster, an object missing in the cache is first looked up in the shared store, then in CKAN,
+     * and only the node holding the claim of the object creates it, the other ones waiting for its identifier.
+     *
+     * @param key        Key of the object in the cache, for instance pkg:orgName_pkgName
+     * @param objectType Type of the object in the cache metrics, for instance package
+     * @param cached     Gets the identifier of the object from the cache, null if not cached
+     * @param lookup     Looks the object up in the cache, then in CKAN, returning true if it exists
+     * @param cacheId    Caches the identifier of the object shared by another node
+     * @param create     Creates the object and caches its identifier
+     * @return The identifier of the object
+     */
+    private String lookupOrCreate(String key, String objectType, Supplier<String> cached, Callable<Boolean> lookup,
+                                  Consumer<String> cacheId, Callable<String> create) throws Exception {
+        // most objects are cached, their identifiers are returned without going through the single-flight calls
+        String cachedId = cached.get();
+        if (cachedId != null) {
+            cache.getMetrics().recordCacheLookup(objectType, true);
+            return cachedId;
+        }
+
+        return cache.singleFlight(key, () -> {
+            SharedIdStore store = sharedIdStore;
+            if (store == null || cached.get() != null) {
+                return lookup.call() ? cached.get() : create.call();
+            }
+
+            String sharedId = getSharedId(store, key);
+            if (sharedId != null) {
+                logger.debug("Identifier shared by another node (key={}, id={})", key, sharedId);
+                cacheId.accept(sharedId);
+                return sharedId;
+            }
+            if (lookup.call()) {
+                String id = cached.get();
+                putSharedId(store, key, id);
+                return id;
+            }
+            return createClaimed(store, key, cacheId, create);
+        });
+    }
+
+    // creates an object once its claim is held, or gets its identifier once shared by the node holding the claim
+    private String createClaimed(SharedIdStore store, String key, Consumer<String> cacheId, Callable<String> create) throws Exception {
+        long deadline = System.nanoTime() + CLAIM_DURATION.toNanos();
+        while (!claim(store, key)) {
+            if (System.nanoTime() - deadline > 0) {
+                // the claim of a node that stopped expires meanwhile, a retry takes it over
+                throw new CKANTransientException("Timed out waiting for another node to create the object (key=" + key + ")", (Duration) null);
+            }
+            logger.debug("Another node is creating the object, waiting for its identifier (key={})", key);
+            Thread.sleep(CLAIM_POLL_INTERVAL.toMillis());
+            String sharedId = getSharedId(store, key);
+            if (sharedId != null) {
+                cacheId.accept(sharedId);
+                return sharedId;
+            }
+        }
+
+        try {
+            // the node holding the claim before may have created the object since it was looked up
+            String sharedId = getSharedId(store, key);
+            if (sharedId != null) {
+                cacheId.accept(sharedId);
+                return sharedId;
+            }
+            String createdId = create.call();
+            putSharedId(store, key, createdId);
+            return createdId;
+        } finally {
+            try {
+                store.release(key);
+            } catch (IOException e) {
+                // the claim expires anyway
+                logger.warn("Could not release the claim of the object (key={}) due to {}", key, e.getMessage());
+            }
+        }
+    }
+
+    // the shared store being unreachable is a transient failure, retried like CKAN being unreachable
+    private static String getSharedId(SharedIdStore store, String key) throws CKANTransientException {
+        try {
+            return store.get(key);
+        } catch (IOException e) {
+            throw new CKANTransientException("Could not get the shared identifier (key=" + key + ")", e);
+        }
+    }
+
+    // the object exists once its identifier is known, failing to share it only makes the other nodes look it up in CKAN
+    private static void putSharedId(SharedIdStore store, String key, String id) {
+        try {
+            store.put(key, id);
+        } catch (IOException e) {
+            logger.warn("Could not share the identifier (key={}, id={}) due to {}", key, id, e.getMessage());
+        }
+    }
+
+    private static boolean claim(SharedIdStore store, String key) throws CKANTransientException {
+        try {
+            return store.claim(key, CLAIM_DURATION);
+        } catch (IOException e) {
+            throw new CKANTransientException("Could not claim the creation of the object (key=" + key + ")", e);
+        }
+    }
+
+    /**
+     * Uploads a file as a resource of an existing package. The file of the resource with the same name is replaced if
+     * there is one, so that uploading a file again after a failure does not duplicate its resource.
+     *
+     * @param orgName  The organization the package belongs to
+     * @param pkgName  The package the resource belongs to
+     * @param resName  The resource to be created or whose file is replaced
+     * @param file     The file to be uploaded
+     * @param format   The format of the file, for instance CSV
+     * @param mimeType The media type of the file
+     */
+    public void uploadResourceFile(String orgName, String pkgName, String resName, Path file, String format, String mimeType) throws Exception {
         if (!cache.isCachedPkg(orgName, pkgName)) {
-            logger.info("The package was not cached nor existed in CKAN (orgName=\"{}\", pkgName=\"{}\")", orgName, pkgName);
-            String pkgId = createPackage(pkgName, cache.getOrgId(orgName), dcatMetadata);
-            cache.addPkg(orgName, pkgName);
-            cache.setPkgId(orgName, pkgName, pkgId);
+            throw new CKANException("Cannot upload the file, the package does not exist (orgName=" + orgName
+                    + ", pkgName=" + pkgName + ", resName=" + resName + ")");
+        }
+        String pkgId = cache.getPkgId(orgName, pkgName);
+
+        MultipartBody.Builder bodyBuilder = new MultipartBody.Builder().setType(MultipartBody.FORM);
+        String urlPath;
+        if (cache.isCachedRes(orgName, pkgName, resName)) {
+            bodyBuilder.addFormDataPart("id", cache.getResId(orgName, pkgName, resName));
+            urlPath = "/api/3/action/resource_patch";
+        } else {
+            bodyBuilder.addFormDataPart("package_id", pkgId);
+            bodyBuilder.addFormDataPart("name", resName);
+            urlPath = "/api/3/action/resource_create";
         }
+        bodyBuilder.addFormDataPart("format", format);
+        bodyBuilder.addFormDataPart("mimetype", mimeType);
+        bodyBuilder.addFormDataPart("upload", file.getFileName().toString(), RequestBody.create(file.toFile(), MediaType.get(mimeType)));
 
-        if (!cache.isCachedRes(orgName, pkgName, resName)) {
-            logger.info("The resource was not cached nor existed in CKAN (orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
+        // the content type of the body carries the boundary of the parts
+        Headers headers = new Headers.Builder().add("Authorization", apiKey).build();
+        JsonResponse res = doStreamingRequest("POST", urlPath, headers, bodyBuilder.build());
 
-            String resId = createResource(resName, cache.getPkgId(orgName, pkgName), dcatMetadata);
-            cache.addRes(orgName, pkgName, resName);
+        if (res.statusCode() == 200) {
+            String resId = res.jsonObject().getAsJsonObject("result").get("id").getAsString();
             cache.setResId(orgName, pkgName, resName, resId);
-            if (createDataStore) {
-                createDataStoreWithFields(pkgName, resId, resName, records);
-                createView(resId);
-            }
-            return resId;
+            logger.info("Successful file upload (resName/resId=\"{}/{}\", size={})", resName, resId, Files.size(file));
+        } else {
+            throw requestFailure("Could not upload the file (pkgId=" + pkgId + ", resName=" + resName
+                + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
+    }
 
-        logger.info("The resource was cached (orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
+    /**
+     * Adds to the datastore of a resource the fields of the records it does not have yet, so that entities gaining
+     * new attributes can be inserted. The fields of the datastore are cached, so this only reaches CKAN when the
+     * fields are not cached yet or when some of them are missing.
+     *
+     * @param resId   The resource whose datastore may be completed
+     * @param records Records whose attribute names must be fields of the datastore
+     */
+    private void addMissingDataStoreFields(String pkgName, String resId, String resName, List<Map<String, JsonElement>> records,
+                                           Map<String, ColumnType> columnTypes, DataStoreSettings dataStoreSettings) throws Exception {
+        Set<String> fieldNames = getFieldNames(records);
+        Map<String, String> fields = cache.getDataStoreFields(resId);
+        if (fields != null && fields.keySet().containsAll(fieldNames)) {
+            cache.getMetrics().recordCacheLookup("fields", true);
+            return;
+        }
+        // another task may be completing the fields at the same time, check again with the fields it added
+        while (fields == null || !fields.keySet().containsAll(fieldNames)) {
+            fields = cache.singleFlight("fields:" + resId, () -> {
+                cache.isCachedDataStoreFields(resId);
+                Map<String, String> knownFields = cache.getDataStoreFields(resId);
+                if (knownFields.keySet().containsAll(fieldNames)) {
+                    return knownFields;
+                }
 
-        return cache.getResId(orgName, pkgName, resName);
+                // the known fields are sent first, in the same order and with their types unchanged, the missing
+                // ones are appended
+                Map<String, String> newFields = new LinkedHashMap<>(knownFields);
+                for (String fieldName : fieldNames) {
+                    newFields.putIfAbsent(fieldName, getCkanType(columnTypes, fieldName));
+                }
+                logger.info("Adding fields to the datastore (resId={}, fields={})", resId,
+                    newFields.keySet().stream().filter(name -> !knownFields.containsKey(name)).toList());
+                // a resource without datastore gets its alias, primary key and indexes along with its fields
+                if (knownFields.isEmpty()) {
+                    createDataStore(resId, resName + CKANUtils.generateHash(pkgName), newFields, dataStoreSettings);
+                } else {
+                    createDataStore(resId, null, newFields, null);
+                }
+                cache.setDataStoreFields(resId, newFields);
+                return newFields;
+            });
+        }
     }
 
 
     /**
-     * Insert records in the datastore.
+     * Keeps a single record per primary key, the last one, as CKAN rejects a request writing the same key twice.
+     * Records are kept in the order their key first appeared, records lacking a column of the key are all kept.
      *
-     * @param resId   The resource in which datastore the record is going to be inserted
-     * @param records Records to be inserted in JSON format
+     * @param records    Records to be written
+     * @param primaryKey Columns identifying a record, nothing is removed if empty
      */
-    private void insert(String resId, List<JsonObject> records) throws Exception {
-        JsonObject entityRecord = new JsonObject();
-        for (JsonObject record : records) {
-            String key = record.keySet().stream().findFirst().get();
-            entityRecord.add(key, record.get(key));
+    private static List<Map<String, JsonElement>> deduplicate(List<Map<String, JsonElement>> records, List<String> primaryKey) {
+        if (primaryKey.isEmpty() || records.size() < 2) {
+            return records;
         }
-        String jsonString = "{ \"resource_id\": \"" + resId
-                + "\", \"records\": [" + entityRecord + "], "
-                + "\"method\": \"insert\", "
-                + "\"force\": \"true\" }";
 
+        Map<Object, Map<String, JsonElement>> recordsByKey = new LinkedHashMap<>();
+        for (Map<String, JsonElement> record : records) {
+            if (record.keySet().containsAll(primaryKey)) {
+                recordsByKey.put(primaryKey.stream().map(record::get).toList(), record);
+            } else {
+                recordsByKey.put(new Object(), record);
+            }
+        }
+
+        if (recordsByKey.size() < records.size()) {
+            logger.info("Removed {} records having the same primary key as later records of the batch", records.size() - recordsByKey.size());
+        }
+        return new ArrayList<>(recordsByKey.values());
+    }
+
+    /**
+     * Writes records in the datastore, all of them within a single request.
+     *
+     * @param resId       The resource in which datastore the records are going to be written
+     * @param records     Records to be written in JSON format, one map of column values per record
+     * @param writeMethod Whether the records are inserted, upserted or updated
+     */
+    private void insert(String resId, List<Map<String, JsonElement>> records, WriteMethod writeMethod) throws Exception {
         String urlPath = "/api/3/action/datastore_upsert";
-        JsonResponse res = doCKANRequest("POST", urlPath, jsonString);
+        JsonResponse res = doStreamingRequest("POST", urlPath, buildHeaders(), buildInsertBody(resId, records, writeMethod));
+        checkInsert(resId, records, res);
+    }
+
+    /**
+     * Writes records in the datastore, all of them within a single request, without waiting for the response.
+     */
+    private CompletableFuture<Void> insertAsync(String resId, List<Map<String, JsonElement>> records, WriteMethod writeMethod) {
+        String urlPath = "/api/3/action/datastore_upsert";
+        return doStreamingRequestAsync("POST", urlPath, buildHeaders(), buildInsertBody(resId, records, writeMethod))
+            .thenAccept(res -> {
+                try {
+                    checkInsert(resId, records, res);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            });
+    }
+
+    /**
+     * Builds the body of a datastore_upsert request. The records are serialized when the request is sent, straight
+     * to the connection.
+     */
+    JsonRequestBody buildInsertBody(String resId, List<Map<String, JsonElement>> records, WriteMethod writeMethod) {
+        Map<String, String> fields = cache.getDataStoreFields(resId);
+        return new JsonRequestBody(writer -> {
+            writer.beginObject();
+            writer.name("resource_id").value(resId);
+            writer.name("records").beginArray();
+            for (Map<String, JsonElement> record : records) {
+                writer.beginObject();
+                for (Map.Entry<String, JsonElement> column : record.entrySet()) {
+                    writer.name(column.getKey());
+                    writeFieldValue(writer, column.getValue(), fields != null ? fields.get(column.getKey()) : null);
+                }
+                writer.endObject();
+            }
+            writer.endArray();
+            writer.name("method").value(writeMethod.getMethod());
+            writer.name("force").value("true");
+            writer.endObject();
+        });
+    }
+
+    // values are converted to the type of their field, values that cannot be converted were moved to text columns
+    static void writeFieldValue(JsonWriter writer, JsonElement value, String fieldType) throws IOException {
+        JsonElement fieldValue = toFieldValue(value, fieldType);
+        JSON_ELEMENT_ADAPTER.write(writer, fieldValue != null ? fieldValue : value);
+    }
+
+    /**
+     * Converts a value to the type of the datastore field storing it: any value can be stored as text, strings holding
+     * a number as numbers, strings holding an ISO 8601 date as timestamps or dates, while JSON fields take any value but
+     * strings. Values of fields of other or unknown types are kept as they are.
+     *
+     * @param value     Value to be written
+     * @param fieldType CKAN type of the field, null if the field does not exist yet
+     * @return The converted value, or null if it cannot be stored in the field
+     */
+    static JsonElement toFieldValue(JsonElement value, String fieldType) {
+        if (fieldType == null || value == null || value.isJsonNull()) {
+            return value;
+        }
+        boolean string = value.isJsonPrimitive() && value.getAsJsonPrimitive().isString();
+        switch (fieldType.toLowerCase(Locale.ROOT)) {
+            case "text":
+                // columns created as text before their type was inferred keep on receiving strings
+                if (string) {
+                    return value;
+                }
+                return new JsonPrimitive(value.isJsonPrimitive() ? value.getAsString() : value.toString());
+            case "numeric", "int", "int2", "int4", "int8", "float4", "float8":
+                if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+                    return value;
+                } else if (string) {
+                    try {
+                        return new JsonPrimitive(new BigDecimal(value.getAsString().trim()));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                }
+                return null;
+            case "timestamp", "date":
+                return string && isIsoDate(value.getAsString()) ? value : null;
+            case "json":
+                return string ? null : value;
+            case "bool":
+                if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isBoolean()) {
+                    return value;
+                } else if (string && ("true".equalsIgnoreCase(value.getAsString()) || "false".equalsIgnoreCase(value.getAsString()))) {
+                    return new JsonPrimitive(Boolean.parseBoolean(value.getAsString()));
+                }
+                return null;
+            default:
+                return value;
+        }
+    }
 
+    private static boolean isIsoDate(String value) {
+        try {
+            if (value.length() > 10) {
+                // PostgreSQL also accepts a space between the date and the time
+                DateTimeFormatter.ISO_DATE_TIME.parse(value.charAt(10) == ' ' ? value.substring(0, 10) + 'T' + value.substring(11) : value);
+            } else {
+                DateTimeFormatter.ISO_DATE.parse(value);
+            }
+            return true;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    private void checkInsert(String resId, List<Map<String, JsonElement>> records, JsonResponse res) throws Exception {
         if (res.statusCode() == 200) {
-            logger.info("Successful insert (resource/datastore id=\"{}\")", resId);
+            logger.info("Successful insert of {} records (resource/datastore id=\"{}\")", records.size(), resId);
         } else {
-            throw new Exception("Could not insert (resId=" + resId + ", statusCode="
-                + res.statusCode() + ", response=" + res.jsonObject() + ")");
+            throw requestFailure("Could not insert (resId=" + resId + ", statusCode="
+                + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
@@ -165,8 +739,8 @@ public class CKANBackend extends HttpBackend {
             logger.info("Successful organization creation (orgName/OrgId=\"{}/{}\")", orgName, orgId);
             return orgId;
         } else {
-            throw new Exception("Could not create the organization (orgName=" + orgName
-                + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+            throw requestFailure("Could not create the organization (orgName=" + orgName
+                + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
@@ -249,8 +823,8 @@ public class CKANBackend extends HttpBackend {
             logger.info("Successful package creation (pkgName/pkgId=\"{}/{}\")", pkgName, packageId);
             return packageId;
         } else {
-            throw new Exception("Could not create the package (orgId=" + orgId
-                + ", pkgName=" + pkgName + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+            throw requestFailure("Could not create the package (orgId=" + orgId
+                + ", pkgName=" + pkgName + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
@@ -291,33 +865,65 @@ public class CKANBackend extends HttpBackend {
             logger.info("Successful resource creation (resName/resId=\"{}/{}\")", resName, resourceId);
             return resourceId;
         } else {
-            throw new Exception("Could not create the resource (pkgId=" + pkgId
-                + ", resName=" + resName + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+            throw requestFailure("Could not create the resource (pkgId=" + pkgId
+                + ", resName=" + resName + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
     /**
      * Creates a datastore for a given resource in CKAN.
      *
-     * @param resId   Identifies the resource whose datastore is going to be created.
-     * @param records Array list with the attribute names for being used as fields with column mode
+     * @param resId             Identifies the resource whose datastore is going to be created.
+     * @param records           Records whose attribute names are used as fields with column mode
+     * @param columnTypes       Types of the fields
+     * @param dataStoreSettings Primary key and indexes of the datastore
+     */
+    private void createDataStoreWithFields(String pkgName, String resId, String resName, List<Map<String, JsonElement>> records,
+                                           Map<String, ColumnType> columnTypes, DataStoreSettings dataStoreSettings) throws Exception {
+        Map<String, String> fields = new LinkedHashMap<>();
+        for (String fieldName : getFieldNames(records)) {
+            fields.put(fieldName, getCkanType(columnTypes, fieldName));
+        }
+
+        createDataStore(resId, resName + CKANUtils.generateHash(pkgName), fields, dataStoreSettings);
+        cache.setDataStoreFields(resId, fields);
+    }
+
+    /**
+     * Creates the datastore of a resource, or adds fields to it if it already exists. The fields already in the
+     * datastore must be given along with the new ones.
+     *
+     * @param resId             Identifies the resource whose datastore is going to be created or completed.
+     * @param alias             Alias of the datastore, or null to leave it as it is
+     * @param fields            Fields of the datastore and their types
+     * @param dataStoreSettings Primary key and indexes of the datastore, or null to leave them as they are
      */
-    private void createDataStoreWithFields(String pkgName, String resId, String resName, List<JsonObject> records) throws Exception {
-        // CKAN types reference: http://docs.ckan.org/en/ckan-2.2/datastore.html#valid-types
-        ArrayList<JsonElement> jsonArray = new ArrayList<>();
-        for (JsonObject field : records) {
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.addProperty("id", field.keySet().stream().findFirst().get());
-            jsonObject.addProperty("type", "text");
-            logger.info("Adding field: {}", jsonObject.get("id").toString());
-            jsonArray.add(jsonObject);
+    private void createDataStore(String resId, String alias, Map<String, String> fields, DataStoreSettings dataStoreSettings) throws Exception {
+        List<DataStoreField> dataStoreFields = new ArrayList<>();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            logger.info("Adding field: {} ({})", field.getKey(), field.getValue());
+            dataStoreFields.add(new DataStoreField(field.getKey(), field.getValue()));
         }
 
         DataStore dataStore = new DataStore();
         dataStore.setResource_id(resId);
-        String alias = resName + CKANUtils.generateHash(pkgName);
         dataStore.setAliases(alias);
-        dataStore.setFields(jsonArray);
+        dataStore.setFields(dataStoreFields);
+        if (dataStoreSettings != null) {
+            // the primary key is only declared if all its columns are fields, otherwise CKAN rejects the datastore
+            if (!dataStoreSettings.primaryKey().isEmpty()) {
+                if (fields.keySet().containsAll(dataStoreSettings.primaryKey())) {
+                    dataStore.setPrimary_key(dataStoreSettings.primaryKey());
+                } else {
+                    logger.warn("Not declaring the primary key {} of the datastore, some of its columns are not fields (resId={})",
+                        dataStoreSettings.primaryKey(), resId);
+                }
+            }
+            List<String> indexes = dataStoreSettings.indexes().stream().filter(fields::containsKey).toList();
+            if (!indexes.isEmpty()) {
+                dataStore.setIndexes(indexes);
+            }
+        }
         dataStore.setForce("true");
         Gson gson = new Gson();
         String jsonString = gson.toJson(dataStore);
@@ -330,18 +936,32 @@ public class CKANBackend extends HttpBackend {
         if (res.statusCode() == 200) {
             logger.info("Successful datastore creation (resourceId=\"{}\")", resId);
         } else {
-            throw new Exception("Could not create the datastore (resId=" + resId
-                + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+            throw requestFailure("Could not create the datastore (resId=" + resId
+                + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
+    private static String getCkanType(Map<String, ColumnType> columnTypes, String fieldName) {
+        return columnTypes.getOrDefault(fieldName, ColumnType.TEXT).getCkanType();
+    }
+
+    // records of a batch may not all carry the same attributes, use the union of their columns
+    private static Set<String> getFieldNames(List<Map<String, JsonElement>> records) {
+        Set<String> fieldNames = new LinkedHashSet<>();
+        for (Map<String, JsonElement> record : records) {
+            fieldNames.addAll(record.keySet());
+        }
+        return fieldNames;
+    }
+
     /**
-     * Creates a view for a given resource in CKAN.
+     * Creates a view for a given resource in CKAN, unless it already has one.
      *
-     * @param resId Identifies the resource whose view is going to be created.
+     * @param resId           Identifies the resource whose view is going to be created.
+     * @param createdResource True if the resource was just created, so that its views are not listed in CKAN
      */
-    private void createView(String resId) throws Exception {
-        if (!existsView(resId)) {
+    void createView(String resId, boolean createdResource) throws Exception {
+        if (createdResource || !cache.isCachedView(resId)) {
             // create the CKAN request JSON
             String jsonString = "{ \"resource_id\": \"" + resId + "\","
                     + "\"view_type\": \"" + viewer + "\","
@@ -355,39 +975,90 @@ public class CKANBackend extends HttpBackend {
 
             // check the status
             if (res.statusCode() == 200) {
+                cache.setView(resId);
                 logger.info("Successful view creation (resourceId=\"{}\")", resId);
             } else {
-                throw new Exception("Could not create the datastore (resId=" + resId
-                    + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+                throw requestFailure("Could not create the view (resId=" + resId
+                    + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
             }
         }
     }
 
-    private boolean existsView(String resId) throws Exception {
-        // create the CKAN request JSON
-        String jsonString = "{ \"id\": \"" + resId + "\" }";
-
-        // create the CKAN request URL
-        String urlPath = "/api/3/action/resource_view_list";
+    /**
+     * Hands the metrics of the requests sent since the last drain, including the ones of the cache, to the consumer.
+     */
+    public void drainMetrics(BiConsumer<String, Long> consumer) {
+        getMetrics().drain(consumer);
+        cache.getMetrics().drain(consumer);
+    }
 
-        // do the CKAN request
-        JsonResponse res = doCKANRequest("POST", urlPath, jsonString);
+    /**
+     * Checks that CKAN is reachable, opening a connection ahead of the first notification.
+     */
+    public void warmUp() throws Exception {
+        JsonResponse res = doCKANRequest("GET", "/api/3/action/status_show", null);
 
-        // check the status
         if (res.statusCode() == 200) {
-            logger.info("Successful view listing (resourceId=\"{}\")", resId);
-            return (!res.jsonObject().getAsJsonArray("result").isEmpty());
+            logger.info("CKAN is reachable (ckanVersion={})", res.jsonObject().getAsJsonObject("result").get("ckan_version"));
         } else {
-            throw new Exception("Could not check if the view exists (resId=" + resId
-                + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+            throw requestFailure("Could not reach CKAN (statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
+    /**
+     * Fills the identifiers cache with the organizations, packages and resources existing in CKAN.
+     *
+     * @param pageSize Number of organizations or packages requested at a time
+     * @param timeout  Maximum duration of the warm-up
+     */
+    public void warmUpCache(int pageSize, Duration timeout) throws Exception {
+        cache.warmUp(pageSize, timeout);
+    }
+
+    /**
+     * Gets the organization, package and resource identifiers of the cache, to be persisted.
+     */
+    public Map<String, String> snapshotCache() {
+        return cache.snapshot();
+    }
+
+    /**
+     * Puts identifiers persisted from a previous run in the cache.
+     */
+    public void restoreCache(Map<String, String> snapshot) {
+        cache.restore(snapshot);
+    }
+
+    /**
+     * Checks identifiers restored in the cache against CKAN, dropping the ones of objects that no longer exist.
+     */
+    public void validateCache(Map<String, String> restored, int pageSize, Duration timeout) throws Exception {
+        cache.validate(restored, pageSize, timeout);
+    }
+
+    /**
+     * Gets the sizing and expiration of the identifiers cache.
+     */
+    public CKANCacheSettings getCacheSettings() {
+        return cache.getSettings();
+    }
+
+    /**
+     * Gets a number increased each time the identifiers of the cache change.
+     */
+    public long getCacheModificationCount() {
+        return cache.getModificationCount();
+    }
+
     private JsonResponse doCKANRequest(String method, String urlPath, String jsonString) throws Exception {
+        return doRequest(method, urlPath, buildHeaders(), jsonString);
+    }
+
+    private Headers buildHeaders() {
         Headers.Builder headersBuilder = new Headers.Builder();
         headersBuilder.add("Authorization", apiKey);
         headersBuilder.add("Content-Type", "application/json; charset=utf-8");
-        return doRequest(method, urlPath, headersBuilder.build(), jsonString);
+        return headersBuilder.build();
     }
 
     /**
@@ -402,17 +1073,17 @@ public class CKANBackend extends HttpBackend {
         if (dcatMetadata.getPublisherURL() != null) {
             finalOrganizationName = dcatMetadata.getPublisherURL().trim().toLowerCase(Locale.ENGLISH);
         } else {
-            throw new Exception("No organization name found in the metadata!");
+            throw new CKANException("No organization name found in the metadata!");
         }
 
         orgName = CKANUtils.encodeCKAN(finalOrganizationName);
         int orgNameLength = orgName.length();
 
         if (orgNameLength > NGSIConstants.CKAN_MAX_NAME_LEN) {
-            throw new Exception("Building organization name '" + orgName + "' and its length is "
+            throw new CKANException("Building organization name '" + orgName + "' and its length is "
                     + "greater than " + NGSIConstants.CKAN_MAX_NAME_LEN);
         } else if (orgNameLength < NGSIConstants.CKAN_MIN_NAME_LEN) {
-            throw new Exception("Building organization name '" + orgName + "' and its length is "
+            throw new CKANException("Building organization name '" + orgName + "' and its length is "
                     + "lower than " + NGSIConstants.CKAN_MIN_NAME_LEN);
         }
 
@@ -427,17 +1098,17 @@ public class CKANBackend extends HttpBackend {
      */
     public String buildPkgName(DCATMetadata dcatMetadata) throws Exception {
         if (dcatMetadata.getPackageName() == null)
-            throw new Exception("No package name found in the metadata!");
+            throw new CKANException("No package name found in the metadata!");
 
         String encodedPkgName =
             CKANUtils.encodeCKAN(dcatMetadata.getPackageName().trim().toLowerCase(Locale.ENGLISH)) +
                 "-" + CKANUtils.generateHash(dcatMetadata.getPublisherURL().trim().toLowerCase(Locale.ENGLISH));
 
         if (encodedPkgName.length() > NGSIConstants.CKAN_MAX_NAME_LEN) {
-            throw new Exception("Building package name '" + encodedPkgName + "' and its length is "
+            throw new CKANException("Building package name '" + encodedPkgName + "' and its length is "
                     + "greater than " + NGSIConstants.CKAN_MAX_NAME_LEN);
         } else if (encodedPkgName.length() < NGSIConstants.CKAN_MIN_NAME_LEN) {
-            throw new Exception("Building package name '" + encodedPkgName + "' and its length is "
+            throw new CKANException("Building package name '" + encodedPkgName + "' and its length is "
                     + "lower than " + NGSIConstants.CKAN_MIN_NAME_LEN);
         }
 
@@ -450,19 +1121,24 @@ public class CKANBackend extends HttpBackend {
      * @return Resource name
      */
     public String buildResName(Entity entity, DCATMetadata dcatMetadata) throws Exception {
-        String resName;
-
         if (dcatMetadata != null && dcatMetadata.getResourceName() != null) {
-            resName = dcatMetadata.getResourceName();
+            return buildResName(dcatMetadata.getResourceName());
         } else {
-            resName = entity.getEntityId();
+            return buildResName(entity.getEntityId());
         }
+    }
 
+    /**
+     * Checks a resource name against the naming conventions. It throws an exception if they are violated.
+     *
+     * @return Resource name
+     */
+    public String buildResName(String resName) throws Exception {
         if (resName.length() > NGSIConstants.CKAN_MAX_NAME_LEN) {
-            throw new Exception("Building resource name '" + resName + "' and its length is "
+            throw new CKANException("Building resource name '" + resName + "' and its length is "
                     + "greater than " + NGSIConstants.CKAN_MAX_NAME_LEN);
         } else if (resName.length() < NGSIConstants.CKAN_MIN_NAME_LEN) {
-            throw new Exception("Building resource name '" + resName + "' and its length is "
+            throw new CKANException("Building resource name '" + resName + "' and its length is "
                     + "lower than " + NGSIConstants.CKAN_MIN_NAME_LEN);
         }
 
@@ -0,0 +1,18 @@
+package egm.io.nifi.processors.ckan;
+
+import org.apache.nifi.controller.ControllerService;
+
+/**
+ * Gives access to a CKAN server through an HTTP client and an identifiers cache shared by all the processors
+ * referencing the service.
+ */
+public interface CKANClientService extends ControllerService {
+
+    /**
+     * Creates a backend sharing the HTTP client and the identifiers cache of the service.
+     *
+     * @param ckanViewer The view created for the new resources
+     * @return A backend to the CKAN server
+     */
+    CKANBackend createBackend(String ckanViewer);
+}
@@ -0,0 +1,56 @@
+package egm.io.nifi.processors.ckan;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import egm.io.nifi.processors.ckan.model.DCATMetadata;
+import egm.io.nifi.processors.ckan.ngsild.Attributes;
+import egm.io.nifi.processors.ckan.ngsild.Entity;
+import egm.io.nifi.processors.ckan.ngsild.NGSIUtils;
+import egm.io.nifi.processors.ckan.utils.BuildDCATMetadata;
+
+import java.time.Duration;
+
+/**
+ * Keeps the DCAT metadata of the datasets, along with the organization and package names built from them, so that
+ * the entities serving a dataset already seen only need their resource metadata to be extracted.
+ * Datasets are identified by the object of the servesDataset relationship and the publisher URL.
+ */
+class DatasetMetadataCache {
+
+    /**
+     * Metadata of a dataset and the names of the CKAN organization and package it is stored in.
+     */
+    record DatasetMetadata(DCATMetadata dcatMetadata, String orgName, String pkgName) {
+    }
+
+    private final Cache<String, DatasetMetadata> datasets;
+
+    DatasetMetadataCache(long maximumSize, Duration expiration) {
+        // expired so that changes made to a dataset are taken into account by the packages created afterwards
+        datasets = Caffeine.newBuilder()
+            .maximumSize(maximumSize)
+            .expireAfterWrite(expiration)
+            .build();
+    }
+
+    /**
+     * Gets the metadata of the dataset served by an entity, extracting them from the entity if the dataset was not
+     * seen yet. Metadata from which no valid name can be built are not kept.
+     */
+    DatasetMetadata get(Entity entity, String publisherUrl, CKANBackend ckanBackend) throws Exception {
+        Attributes servesDataset = NGSIUtils.getServesDataset(entity);
+        String key = servesDataset != null && !servesDataset.getAttrValue().isEmpty()
+            ? servesDataset.getAttrValue() + " " + publisherUrl
+            : null;
+
+        DatasetMetadata datasetMetadata = key != null ? datasets.getIfPresent(key) : null;
+        if (datasetMetadata == null) {
+            DCATMetadata dcatMetadata = BuildDCATMetadata.getMetadataFromEntity(entity, publisherUrl);
+            datasetMetadata = new DatasetMetadata(dcatMetadata, ckanBackend.buildOrgName(dcatMetadata), ckanBackend.buildPkgName(dcatMetadata));
+            if (key != null) {
+                datasets.put(key, datasetMetadata);
+            }
+        }
+        return datasetMetadata;
+    }
+}
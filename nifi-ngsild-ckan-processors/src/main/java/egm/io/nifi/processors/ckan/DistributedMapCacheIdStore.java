@@ -0,0 +1,99 @@
+package egm.io.nifi.processors.ckan;
+
+import egm.io.nifi.processors.ckan.utils.SharedIdStore;
+import org.apache.nifi.distributed.cache.client.AtomicCacheEntry;
+import org.apache.nifi.distributed.cache.client.AtomicDistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+
+/**
+ * Shares the identifiers of CKAN objects through a distributed map cache. Entries are prefixed with the CKAN URL, so
+ * that the same cache server can be used for several CKAN servers. Identifiers are stored with the time they were
+ * shared, and claims with their owner and the time they expire.
+ */
+class DistributedMapCacheIdStore implements SharedIdStore {
+
+    private static final Serializer<String> STRING_SERIALIZER = (value, output) -> output.write(value.getBytes(StandardCharsets.UTF_8));
+    private static final Deserializer<String> STRING_DESERIALIZER = input -> input == null || input.length == 0
+        ? null
+        : new String(input, StandardCharsets.UTF_8);
+
+    private final DistributedMapCacheClient client;
+    private final String prefix;
+    private final Duration expiration;
+    // identifies the claims of this store among the ones of the other nodes
+    private final String owner = UUID.randomUUID().toString();
+
+    DistributedMapCacheIdStore(DistributedMapCacheClient client, String ckanUrl, Duration expiration) {
+        this.client = client;
+        this.prefix = "ckan:" + ckanUrl + ":";
+        this.expiration = expiration;
+    }
+
+    @Override
+    public String get(String key) throws IOException {
+        String entry = client.get(prefix + key, STRING_SERIALIZER, STRING_DESERIALIZER);
+        if (entry == null) {
+            return null;
+        }
+        // an identifier shared too long ago may belong to an object deleted since, it is looked up again in CKAN
+        int separator = entry.lastIndexOf(' ');
+        long sharedAt = Long.parseLong(entry.substring(separator + 1));
+        return System.currentTimeMillis() - sharedAt < expiration.toMillis() ? entry.substring(0, separator) : null;
+    }
+
+    @Override
+    public void put(String key, String id) throws IOException {
+        client.put(prefix + key, id + " " + System.currentTimeMillis(), STRING_SERIALIZER, STRING_SERIALIZER);
+    }
+
+    @Override
+    public boolean claim(String key, Duration duration) throws IOException {
+        String claimKey = prefix + "claim:" + key;
+        String claim = owner + " " + (System.currentTimeMillis() + duration.toMillis());
+        if (client.putIfAbsent(claimKey, claim, STRING_SERIALIZER, STRING_SERIALIZER)) {
+            return true;
+        }
+
+        String currentClaim = client.get(claimKey, STRING_SERIALIZER, STRING_DESERIALIZER);
+        if (currentClaim == null) {
+            // released in the meantime
+            return client.putIfAbsent(claimKey, claim, STRING_SERIALIZER, STRING_SERIALIZER);
+        } else if (currentClaim.startsWith(owner + " ")) {
+            return true;
+        } else if (Long.parseLong(currentClaim.substring(currentClaim.lastIndexOf(' ') + 1)) > System.currentTimeMillis()) {
+            return false;
+        }
+
+        // the claim expired, it is taken over atomically if the cache supports it, so that a single node takes it
+        if (client instanceof AtomicDistributedMapCacheClient<?> atomicClient) {
+            return replaceClaim(atomicClient, claimKey, currentClaim, claim);
+        }
+        client.remove(claimKey, STRING_SERIALIZER);
+        return client.putIfAbsent(claimKey, claim, STRING_SERIALIZER, STRING_SERIALIZER);
+    }
+
+    private static <R> boolean replaceClaim(AtomicDistributedMapCacheClient<R> client, String claimKey, String expiredClaim, String claim) throws IOException {
+        AtomicCacheEntry<String, String, R> entry = client.fetch(claimKey, STRING_SERIALIZER, STRING_DESERIALIZER);
+        if (entry == null || !expiredClaim.equals(entry.getValue())) {
+            return false;
+        }
+        entry.setValue(claim);
+        return client.replace(entry, STRING_SERIALIZER, STRING_SERIALIZER);
+    }
+
+    @Override
+    public void release(String key) throws IOException {
+        String claimKey = prefix + "claim:" + key;
+        String currentClaim = client.get(claimKey, STRING_SERIALIZER, STRING_DESERIALIZER);
+        if (currentClaim != null && currentClaim.startsWith(owner + " ")) {
+            client.remove(claimKey, STRING_SERIALIZER);
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package egm.io.nifi.processors.ckan;
+
+import com.google.gson.JsonElement;
+import egm.io.nifi.processors.ckan.http.CKANTransientException;
+import egm.io.nifi.processors.ckan.model.ResourceBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Writes the records of each resource in a local CSV file instead of the datastore, and uploads the file as a resource
+ * of the package once it is rolled: when it reaches a maximum size or age, or when records bring columns it does not
+ * have. Each rolled file becomes a resource named after the resource of its records and the time of its first record,
+ * so that a few large uploads replace the datastore requests of all the records.
+ * Files are kept in a spool directory, one directory per organization and package, until they are uploaded. Files
+ * whose upload failed with a transient error, or left by a previous run, are uploaded again by the periodic sweep.
+ * Appended records cannot be taken back: records appended again, for instance by a FlowFile retried or whose session
+ * was rolled back, are written twice, so records are delivered at least once.
+ */
+class FileRollupSink implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileRollupSink.class);
+    private static final String PART_EXTENSION = ".csv.part";
+    private static final String ROLLED_EXTENSION = ".csv";
+    private static final String FAILED_EXTENSION = ".csv.failed";
+    // an upload in progress when the sink is closed is given this time to complete before it is interrupted
+    private static final Duration CLOSE_TIMEOUT = Duration.ofSeconds(30);
+    private static final DateTimeFormatter ROLL_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS'Z'").withZone(ZoneOffset.UTC);
+
+    private final Path directory;
+    private final long maxSize;
+    private final Duration maxAge;
+    private final CKANBackend ckanBackend;
+    private final ScheduledThreadPoolExecutor executor;
+    private final Map<String, RollFile> openFiles = new HashMap<>();
+    // the time of the last file of each resource, the next one must have a later time to get a distinct name
+    private final Map<String, Long> lastRollTimes = new HashMap<>();
+
+    FileRollupSink(Path directory, long maxSize, Duration maxAge, CKANBackend ckanBackend) throws IOException {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+        this.ckanBackend = ckanBackend;
+
+        // files being written when the previous run stopped are uploaded as they are
+        try (Stream<Path> files = Files.find(directory, 3, (path, attributes) -> path.toString().endsWith(PART_EXTENSION))) {
+            for (Path file : files.toList()) {
+                logger.info("Rolling the file left by a previous run: {}", file);
+                Files.move(file, rolledPath(file), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        long sweepPeriod = Math.clamp(maxAge.toMillis() / 10, 1000, 60000);
+        executor = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("ckan-rollup-", 0).daemon().factory());
+        // uploads not started when the sink is closed are left to the next run
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.scheduleWithFixedDelay(this::sweep, 0, sweepPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Appends the records of a batch to the file of their resource. The package of the resource is created first if
+     * needed, so that the file can be uploaded once rolled. The records are written to the file, but not necessarily
+     * uploaded, when this method returns.
+     */
+    void append(ResourceBatch batch) throws Exception {
+        ckanBackend.packageLookupOrCreate(batch.getOrgName(), batch.getPkgName(), batch.getDcatMetadata());
+        appendRecords(batch);
+    }
+
+    private synchronized void appendRecords(ResourceBatch batch) throws IOException {
+        Set<String> columns = new LinkedHashSet<>();
+        for (Map<String, JsonElement> record : batch.getRecords()) {
+            columns.addAll(record.keySet());
+        }
+
+        RollFile file = openFiles.get(batch.getKey());
+        if (file != null && !file.columns.containsAll(columns)) {
+            logger.info("Rolling {}, the records bring new columns", file.path);
+            roll(batch.getKey(), file);
+            file = null;
+        }
+        if (file == null) {
+            file = open(batch, columns);
+        }
+
+        for (Map<String, JsonElement> record : batch.getRecords()) {
+            file.write(record);
+        }
+        file.out.flush();
+
+        if (file.size >= maxSize) {
+            logger.info("Rolling {}, it reached {} bytes", file.path, file.size);
+            roll(batch.getKey(), file);
+        }
+    }
+
+    private RollFile open(ResourceBatch batch, Set<String> columns) throws IOException {
+        long rollTime = Math.max(System.currentTimeMillis(), lastRollTimes.getOrDefault(batch.getKey(), 0L) + 1);
+        lastRollTimes.put(batch.getKey(), rollTime);
+
+        Path packageDirectory = Files.createDirectories(directory.resolve(batch.getOrgName()).resolve(batch.getPkgName()));
+        // resource names are entity ids, encoded so that they can be part of a file name and decoded back
+        String fileName = URLEncoder.encode(batch.getResName(), StandardCharsets.UTF_8) + "." + rollTime;
+        RollFile file = new RollFile(packageDirectory.resolve(fileName + PART_EXTENSION), rollTime, List.copyOf(columns));
+        openFiles.put(batch.getKey(), file);
+        logger.debug("Opened {} with columns {}", file.path, columns);
+        return file;
+    }
+
+    private void roll(String key, RollFile file) throws IOException {
+        openFiles.remove(key);
+        file.out.close();
+        Files.move(file.path, rolledPath(file.path), StandardCopyOption.ATOMIC_MOVE);
+        if (!executor.isShutdown()) {
+            executor.execute(this::uploadRolledFiles);
+        }
+    }
+
+    private static Path rolledPath(Path partPath) {
+        String fileName = partPath.getFileName().toString();
+        return partPath.resolveSibling(fileName.substring(0, fileName.length() - PART_EXTENSION.length()) + ROLLED_EXTENSION);
+    }
+
+    private void sweep() {
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, RollFile> openFile : List.copyOf(openFiles.entrySet())) {
+                if (now - openFile.getValue().rollTime >= maxAge.toMillis()) {
+                    logger.info("Rolling {}, it is older than {}", openFile.getValue().path, maxAge);
+                    try {
+                        roll(openFile.getKey(), openFile.getValue());
+                    } catch (IOException e) {
+                        logger.error("Could not roll {}", openFile.getValue().path, e);
+                    }
+                }
+            }
+        }
+        uploadRolledFiles();
+    }
+
+    // runs on the single thread of the executor, a file is never uploaded by two threads at the same time
+    private void uploadRolledFiles() {
+        List<Path> rolledFiles;
+        try (Stream<Path> files = Files.find(directory, 3, (path, attributes) -> path.toString().endsWith(ROLLED_EXTENSION))) {
+            rolledFiles = files.sorted().toList();
+        } catch (IOException e) {
+            logger.error("Could not list the rolled files of {}", directory, e);
+            return;
+        }
+
+        for (Path file : rolledFiles) {
+            if (executor.isShutdown() || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            upload(file);
+        }
+    }
+
+    private void upload(Path file) {
+        // the organization and package are the names of the parent directories, the resource and the roll time are
+        // in the name of the file
+        String fileName = file.getFileName().toString();
+        String baseName = fileName.substring(0, fileName.length() - ROLLED_EXTENSION.length());
+        int separator = baseName.lastIndexOf('.');
+        String resName = URLDecoder.decode(baseName.substring(0, separator), StandardCharsets.UTF_8);
+        Instant rollTime = Instant.ofEpochMilli(Long.parseLong(baseName.substring(separator + 1)));
+        String pkgName = file.getParent().getFileName().toString();
+        String orgName = file.getParent().getParent().getFileName().toString();
+
+        try {
+            String fileResName = ckanBackend.buildResName(resName + "_" + ROLL_TIME_FORMATTER.format(rollTime));
+            ckanBackend.uploadResourceFile(orgName, pkgName, fileResName, file, "CSV", "text/csv");
+            Files.delete(file);
+        } catch (CKANTransientException | IOException e) {
+            logger.warn("Could not upload {}, it will be retried, due to {}", file, e.getMessage());
+        } catch (Exception e) {
+            logger.error("Could not upload {}, it is kept as {}", file, FAILED_EXTENSION, e);
+            try {
+                Files.move(file, file.resolveSibling(baseName + FAILED_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException moveException) {
+                logger.error("Could not rename {}", file, moveException);
+            }
+        }
+    }
+
+    /**
+     * Rolls the files being written, then stops uploading once the upload in progress, if any, is complete. Files not
+     * uploaded yet are uploaded by the next run.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        synchronized (this) {
+            for (Map.Entry<String, RollFile> openFile : List.copyOf(openFiles.entrySet())) {
+                try {
+                    roll(openFile.getKey(), openFile.getValue());
+                } catch (Exception e) {
+                    logger.error("Could not roll {}", openFile.getValue().path, e);
+                }
+            }
+        }
+
+        // an interrupted upload may leave a resource created in CKAN without its identifier being known
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.warn("The upload in progress did not complete within {}, interrupting it", CLOSE_TIMEOUT);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A CSV file being written, with a header made of the columns of the first records.
+     */
+    private static final class RollFile {
+        private final Path path;
+        private final long rollTime;
+        private final List<String> columns;
+        private final OutputStream out;
+        private long size;
+
+        private RollFile(Path path, long rollTime, List<String> columns) throws IOException {
+            this.path = path;
+            this.rollTime = rollTime;
+            this.columns = columns;
+            this.out = new BufferedOutputStream(Files.newOutputStream(path));
+
+            List<String> header = new ArrayList<>(columns.size());
+            for (String column : columns) {
+                header.add(escape(column));
+            }
+            writeLine(header);
+        }
+
+        // columns the record does not have are left empty
+        private void write(Map<String, JsonElement> record) throws IOException {
+            List<String> cells = new ArrayList<>(columns.size());
+            for (String column : columns) {
+                JsonElement value = record.get(column);
+                if (value == null || value.isJsonNull()) {
+                    cells.add("");
+                } else {
+                    cells.add(escape(value.isJsonPrimitive() ? value.getAsString() : value.toString()));
+                }
+            }
+            writeLine(cells);
+        }
+
+        private void writeLine(List<String> cells) throws IOException {
+            byte[] line = (String.join(",", cells) + "\r\n").getBytes(StandardCharsets.UTF_8);
+            out.write(line);
+            size += line.length;
+        }
+
+        // RFC 4180: cells holding a separator, a quote or a line break are quoted, their quotes doubled
+        private static String escape(String cell) {
+            for (int i = 0; i < cell.length(); i++) {
+                char c = cell.charAt(i);
+                if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                    return "\"" + cell.replace("\"", "\"\"") + "\"";
+                }
+            }
+            return cell;
+        }
+    }
+}
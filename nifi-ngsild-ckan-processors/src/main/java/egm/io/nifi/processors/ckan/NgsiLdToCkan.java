@@ -1,20 +1,30 @@
 package egm.io.nifi.processors.ckan;
 
-import com.google.gson.JsonObject;
+import com.google.gson.JsonElement;
+import egm.io.nifi.processors.ckan.http.CKANTransientException;
 import egm.io.nifi.processors.ckan.model.DCATMetadata;
-import egm.io.nifi.processors.ckan.ngsild.Entity;
-import egm.io.nifi.processors.ckan.ngsild.NGSIEvent;
+import egm.io.nifi.processors.ckan.model.DataStoreSettings;
+import egm.io.nifi.processors.ckan.model.ResourceBatch;
+import egm.io.nifi.processors.ckan.model.WriteMethod;
 import egm.io.nifi.processors.ckan.ngsild.NGSIUtils;
 import egm.io.nifi.processors.ckan.utils.BuildDCATMetadata;
+import egm.io.nifi.processors.ckan.utils.CKANCacheSettings;
 import egm.io.nifi.processors.ckan.utils.CKANColumnAggregator;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.Stateful;
 import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
@@ -22,20 +32,50 @@ import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.apache.nifi.processor.util.pattern.RollbackOnFailure;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static egm.io.nifi.processors.ckan.ngsild.NGSIConstants.DCAT_PUBLISHER_URL;
 
 @SupportsBatching
+@Stateful(scopes = Scope.LOCAL, description = "When Cache Persistence is enabled, the organization, package and resource identifiers "
+        + "of the cache are stored, so that they are not looked up again in CKAN after a restart")
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @Tags({"CKAN", "ckan", "Open Data", "NGSI-LD", "NGSI", "FIWARE"})
 @CapabilityDescription("Create a CKAN resource, package and dataset if not exists using the information coming from an NGSI-LD event converted to flow file." +
         "After insert all of the values of the flow file content extraction the entities and attributes")
 public class NgsiLdToCkan extends AbstractProcessor {
+    protected static final PropertyDescriptor CKAN_CLIENT_SERVICE = new PropertyDescriptor.Builder()
+            .name("ckan-client-service")
+            .displayName("CKAN Client Service")
+            .description("The service providing the connection to CKAN, shared with other processors. When set, the CKAN URL, "
+                    + "CKAN API Key and cache properties of the service are used instead of the ones of this processor")
+            .required(false)
+            .identifiesControllerService(CKANClientService.class)
+            .build();
+
     protected static final PropertyDescriptor CKAN_URL = new PropertyDescriptor.Builder()
             .name("CKAN URL")
             .displayName("CKAN URL")
@@ -58,8 +98,8 @@ public class NgsiLdToCkan extends AbstractProcessor {
     protected static final PropertyDescriptor CKAN_API_KEY = new PropertyDescriptor.Builder()
             .name("CKAN API Key")
             .displayName("CKAN API Key")
-            .description("The API Key you are going to authenticate in CKAN")
-            .required(true)
+            .description("The API Key you are going to authenticate in CKAN. Required if no CKAN Client Service is set")
+            .required(false)
             .sensitive(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
@@ -73,6 +113,33 @@ public class NgsiLdToCkan extends AbstractProcessor {
             .defaultValue("true")
             .build();
 
+    protected static final PropertyDescriptor WRITE_METHOD = new PropertyDescriptor.Builder()
+            .name("write-method")
+            .displayName("Write Method")
+            .description("How records are written in the datastore: insert adds them, upsert adds them or replaces the ones with the same "
+                    + "primary key, update replaces the ones with the same primary key. Upsert and update require a primary key")
+            .required(true)
+            .allowableValues(WriteMethod.INSERT.getMethod(), WriteMethod.UPSERT.getMethod(), WriteMethod.UPDATE.getMethod())
+            .defaultValue(WriteMethod.INSERT.getMethod())
+            .build();
+
+    protected static final PropertyDescriptor PRIMARY_KEY = new PropertyDescriptor.Builder()
+            .name("primary-key")
+            .displayName("Primary Key Columns")
+            .description("Comma-separated list of the columns identifying a record, for instance entityId,observedAt. It is declared when "
+                    + "a datastore is created, and records of a batch with the same primary key are sent only once, the last one winning")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    protected static final PropertyDescriptor INDEXES = new PropertyDescriptor.Builder()
+            .name("indexes")
+            .displayName("Index Columns")
+            .description("Comma-separated list of the columns indexed when a datastore is created, for instance entityId,recvTime")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
     protected static final PropertyDescriptor DATASETID_PREFIX_TRUNCATE = new PropertyDescriptor.Builder()
             .name("datasetid-prefix-truncate")
             .displayName("Dataset id prefix to truncate")
@@ -84,12 +151,194 @@ public class NgsiLdToCkan extends AbstractProcessor {
 
     protected static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
             .name("Batch Size")
-            .description("The preferred number of FlowFiles to put to the database in a single transaction")
+            .description("The preferred number of FlowFiles to put to the database in a single transaction. Records of all the "
+                    + "FlowFiles targeting the same resource are sent together, a resource being sent as soon as it holds "
+                    + "Upsert Chunk Size records")
             .required(true)
             .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
             .defaultValue("10")
             .build();
 
+    protected static final PropertyDescriptor UPSERT_CHUNK_SIZE = new PropertyDescriptor.Builder()
+            .name("upsert-chunk-size")
+            .displayName("Upsert Chunk Size")
+            .description("The maximum number of records sent to a resource in a single datastore request. Larger batches, "
+                    + "for instance entities in temporal representation with one record per observedAt, are split in several requests")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .build();
+
+    protected static final PropertyDescriptor CACHE_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("cache-max-size")
+            .displayName("Cache Maximum Size")
+            .description("The maximum number of organization, package and resource identifiers kept in the cache for each "
+                    + "of these levels. The least valuable identifiers are evicted when the limit is reached")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_LONG_VALIDATOR)
+            .defaultValue("10000")
+            .build();
+
+    protected static final PropertyDescriptor CACHE_EXPIRATION = new PropertyDescriptor.Builder()
+            .name("cache-expiration")
+            .displayName("Cache Expiration")
+            .description("The time after which a cached identifier is dropped and looked up again in CKAN")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 hour")
+            .build();
+
+    protected static final PropertyDescriptor CACHE_NEGATIVE_EXPIRATION = new PropertyDescriptor.Builder()
+            .name("cache-negative-expiration")
+            .displayName("Cache Negative Expiration")
+            .description("The time during which an organization, package or resource not found in CKAN is not looked up again")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .build();
+
+    protected static final PropertyDescriptor CONNECTION_WARMUP = new PropertyDescriptor.Builder()
+            .name("connection-warmup")
+            .displayName("Connection Warm-up")
+            .description("true or false, true calls the CKAN status_show action when the processor is scheduled, "
+                    + "opening a connection to CKAN before the first FlowFile and checking it is reachable")
+            .required(false)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    protected static final PropertyDescriptor CACHE_WARMUP = new PropertyDescriptor.Builder()
+            .name("cache-warmup")
+            .displayName("Cache Warm-up")
+            .description("true or false, true fills the cache with the organizations, packages and resources of CKAN when the processor "
+                    + "is scheduled, listing them page by page, so that the first notifications do not look them up one by one. When "
+                    + "Cache Persistence restored identifiers, they are checked against CKAN in the background instead, which lists "
+                    + "CKAN the same way, and the warm-up is not run")
+            .required(false)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    protected static final PropertyDescriptor CACHE_WARMUP_PAGE_SIZE = new PropertyDescriptor.Builder()
+            .name("cache-warmup-page-size")
+            .displayName("Cache Warm-up Page Size")
+            .description("The number of organizations or packages requested at a time during the cache warm-up, or when checking "
+                    + "the persisted cache")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1000")
+            .build();
+
+    protected static final PropertyDescriptor CACHE_WARMUP_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("cache-warmup-timeout")
+            .displayName("Cache Warm-up Timeout")
+            .description("The maximum duration of the cache warm-up, or of the check of the persisted cache. The processor starts "
+                    + "with what was cached so far when it is reached")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 min")
+            .build();
+
+    protected static final PropertyDescriptor CACHE_PERSISTENCE = new PropertyDescriptor.Builder()
+            .name("cache-persistence")
+            .displayName("Cache Persistence")
+            .description("true or false, true keeps the organization, package and resource identifiers of the cache in the local state "
+                    + "of the processor, restores them when the processor is scheduled and checks them against CKAN in the background")
+            .required(false)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    protected static final PropertyDescriptor CACHE_PERSISTENCE_INTERVAL = new PropertyDescriptor.Builder()
+            .name("cache-persistence-interval")
+            .displayName("Cache Persistence Interval")
+            .description("The minimum time between two snapshots of the cache, a snapshot is only taken when the cache changed")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("30 sec")
+            .dependsOn(CACHE_PERSISTENCE, "true")
+            .build();
+
+    protected static final PropertyDescriptor DISTRIBUTED_CACHE = new PropertyDescriptor.Builder()
+            .name("distributed-cache-service")
+            .displayName("Distributed Cache Service")
+            .description("The distributed map cache through which the nodes of a cluster share the organization, package and resource "
+                    + "identifiers. When set, a single node creates each CKAN object while the other nodes wait for its identifier, "
+                    + "instead of all the nodes receiving the first notifications of a dataset trying to create it")
+            .required(false)
+            .identifiesControllerService(DistributedMapCacheClient.class)
+            .build();
+
+    protected static final String EXECUTION_MODE_ASYNC = "Asynchronous requests";
+    protected static final String EXECUTION_MODE_VIRTUAL_THREADS = "Virtual threads";
+
+    protected static final PropertyDescriptor EXECUTION_MODE = new PropertyDescriptor.Builder()
+            .name("execution-mode")
+            .displayName("Execution Mode")
+            .description("How the resources of a batch are written concurrently. With asynchronous requests, the resources are looked up "
+                    + "or created one after the other and their datastore inserts are sent concurrently. With virtual threads, the "
+                    + "lookup, creation and inserts of each resource run on their own virtual thread")
+            .required(true)
+            .allowableValues(EXECUTION_MODE_ASYNC, EXECUTION_MODE_VIRTUAL_THREADS)
+            .defaultValue(EXECUTION_MODE_ASYNC)
+            .build();
+
+    protected static final PropertyDescriptor MAX_CONCURRENT_RESOURCES = new PropertyDescriptor.Builder()
+            .name("max-concurrent-resources")
+            .displayName("Max Concurrent Resources")
+            .description("The maximum number of resources written at the same time on virtual threads, across all the tasks of the processor")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("100")
+            .dependsOn(EXECUTION_MODE, EXECUTION_MODE_VIRTUAL_THREADS)
+            .build();
+
+    protected static final String SINK_MODE_DATASTORE = "Datastore rows";
+    protected static final String SINK_MODE_FILE_ROLLUP = "File rollup";
+
+    protected static final PropertyDescriptor SINK_MODE = new PropertyDescriptor.Builder()
+            .name("sink-mode")
+            .displayName("Sink Mode")
+            .description("How records are published. Datastore rows writes them in the datastore of their resource. File rollup appends "
+                    + "them to a local CSV file per resource, and uploads each rolled file as a new resource of the package. Appended "
+                    + "records cannot be taken back, so with File rollup records are delivered at least once: the records of a "
+                    + "FlowFile retried, or of a session rolled back, are appended again and the uploaded files may hold duplicate rows")
+            .required(true)
+            .allowableValues(SINK_MODE_DATASTORE, SINK_MODE_FILE_ROLLUP)
+            .defaultValue(SINK_MODE_DATASTORE)
+            .build();
+
+    protected static final PropertyDescriptor ROLLUP_DIRECTORY = new PropertyDescriptor.Builder()
+            .name("rollup-directory")
+            .displayName("Rollup Directory")
+            .description("The local directory where the CSV files are written until they are uploaded. It must not be shared with "
+                    + "another processor")
+            .required(true)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .dependsOn(SINK_MODE, SINK_MODE_FILE_ROLLUP)
+            .build();
+
+    protected static final PropertyDescriptor ROLLUP_MAX_SIZE = new PropertyDescriptor.Builder()
+            .name("rollup-max-size")
+            .displayName("Rollup Maximum File Size")
+            .description("The size from which a file is rolled and uploaded. It must stay below the maximum resource size of CKAN "
+                    + "(ckan.max_resource_size, 10 MB by default)")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("8 MB")
+            .dependsOn(SINK_MODE, SINK_MODE_FILE_ROLLUP)
+            .build();
+
+    protected static final PropertyDescriptor ROLLUP_MAX_AGE = new PropertyDescriptor.Builder()
+            .name("rollup-max-age")
+            .displayName("Rollup Maximum File Age")
+            .description("The time after which a file is rolled and uploaded, whatever its size")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 hour")
+            .dependsOn(SINK_MODE, SINK_MODE_FILE_ROLLUP)
+            .build();
+
     protected static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("A FlowFile is routed to this relationship after the database is successfully updated")
@@ -104,17 +353,52 @@ public class NgsiLdToCkan extends AbstractProcessor {
                     + "such as an invalid query or an integrity constraint violation")
             .build();
 
+    // the time, in milliseconds since the epoch, before which CKAN asked not to retry a FlowFile
+    static final String RETRY_AFTER_ATTRIBUTE = "ckan.retry.after";
+
+    // how long the writes in progress are awaited once the processor is stopping, before the session is rolled back
+    static final Duration STOP_TIMEOUT = Duration.ofSeconds(5);
+
     private final AtomicReference<CKANBackend> ckanBackendAtomicReference = new AtomicReference<>();
+    private volatile ExecutorService virtualThreadExecutor;
+    private volatile Semaphore resourcePermits;
+    private volatile DatasetMetadataCache datasetMetadataCache;
+    private volatile FileRollupSink fileRollupSink;
+    private volatile ViewProvisioner viewProvisioner;
+    private volatile Thread cacheCheckThread;
+    private final AtomicLong lastCacheSnapshot = new AtomicLong();
+    private volatile long snapshotModificationCount = -1;
 
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(CKAN_CLIENT_SERVICE);
         properties.add(CKAN_URL);
         properties.add(CKAN_VIEWER);
         properties.add(CKAN_API_KEY);
         properties.add(CREATE_DATASTORE);
+        properties.add(WRITE_METHOD);
+        properties.add(PRIMARY_KEY);
+        properties.add(INDEXES);
         properties.add(DATASETID_PREFIX_TRUNCATE);
         properties.add(BATCH_SIZE);
+        properties.add(UPSERT_CHUNK_SIZE);
+        properties.add(CACHE_MAX_SIZE);
+        properties.add(CACHE_EXPIRATION);
+        properties.add(CACHE_NEGATIVE_EXPIRATION);
+        properties.add(CONNECTION_WARMUP);
+        properties.add(CACHE_WARMUP);
+        properties.add(CACHE_WARMUP_PAGE_SIZE);
+        properties.add(CACHE_WARMUP_TIMEOUT);
+        properties.add(CACHE_PERSISTENCE);
+        properties.add(CACHE_PERSISTENCE_INTERVAL);
+        properties.add(DISTRIBUTED_CACHE);
+        properties.add(EXECUTION_MODE);
+        properties.add(MAX_CONCURRENT_RESOURCES);
+        properties.add(SINK_MODE);
+        properties.add(ROLLUP_DIRECTORY);
+        properties.add(ROLLUP_MAX_SIZE);
+        properties.add(ROLLUP_MAX_AGE);
         properties.add(RollbackOnFailure.ROLLBACK_ON_FAILURE);
         return properties;
     }
@@ -128,66 +412,480 @@ public class NgsiLdToCkan extends AbstractProcessor {
         return rels;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!validationContext.getProperty(CKAN_CLIENT_SERVICE).isSet() && !validationContext.getProperty(CKAN_API_KEY).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(CKAN_API_KEY.getDisplayName())
+                    .valid(false)
+                    .explanation("a CKAN API Key is required when no CKAN Client Service is set")
+                    .build());
+        }
+        if (!WriteMethod.INSERT.getMethod().equals(validationContext.getProperty(WRITE_METHOD).getValue())
+                && !validationContext.getProperty(PRIMARY_KEY).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(PRIMARY_KEY.getDisplayName())
+                    .valid(false)
+                    .explanation("primary key columns are required to upsert or update records")
+                    .build());
+        }
+        return results;
+    }
+
     @OnScheduled
-    public void setUpCKANBackend(final ProcessContext context) {
-        final String url = context.getProperty(CKAN_URL).getValue();
-        final String apiKey = context.getProperty(CKAN_API_KEY).getValue();
+    public void setUpCKANBackend(final ProcessContext context) throws Exception {
+        ckanBackendAtomicReference.set(createBackend(context));
+        viewProvisioner = new ViewProvisioner(ckanBackendAtomicReference.get());
+        ckanBackendAtomicReference.get().setViewProvisioner(viewProvisioner);
+        if (context.getProperty(CKAN_CLIENT_SERVICE).isSet()) {
+            getLogger().info("CKAN backend initialized from the CKAN client service");
+        } else {
+            getLogger().info("CKAN backend initialized with URL: {}", context.getProperty(CKAN_URL).getValue());
+        }
+
+        datasetMetadataCache = new DatasetMetadataCache(
+                context.getProperty(CACHE_MAX_SIZE).asLong(),
+                Duration.ofMillis(context.getProperty(CACHE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS)));
+
+        if (EXECUTION_MODE_VIRTUAL_THREADS.equals(context.getProperty(EXECUTION_MODE).getValue())) {
+            virtualThreadExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ckan-persist-", 0).factory());
+            resourcePermits = new Semaphore(context.getProperty(MAX_CONCURRENT_RESOURCES).asInteger());
+        }
+
+        if (SINK_MODE_FILE_ROLLUP.equals(context.getProperty(SINK_MODE).getValue())) {
+            fileRollupSink = new FileRollupSink(
+                    Path.of(context.getProperty(ROLLUP_DIRECTORY).getValue()),
+                    context.getProperty(ROLLUP_MAX_SIZE).asDataSize(DataUnit.B).longValue(),
+                    Duration.ofMillis(context.getProperty(ROLLUP_MAX_AGE).asTimePeriod(TimeUnit.MILLISECONDS)),
+                    ckanBackendAtomicReference.get());
+        }
+
+        if (context.getProperty(CONNECTION_WARMUP).asBoolean()) {
+            ckanBackendAtomicReference.get().warmUp();
+        }
+
+        // the restored identifiers are checked in the background, listing CKAN like the warm-up does
+        snapshotModificationCount = -1;
+        // the first snapshot is taken an interval after the processor is scheduled
+        lastCacheSnapshot.set(System.nanoTime());
+        final Map<String, String> snapshot = context.getProperty(CACHE_PERSISTENCE).asBoolean()
+                ? context.getStateManager().getState(Scope.LOCAL).toMap()
+                : Map.of();
+        if (!snapshot.isEmpty()) {
+            final CKANBackend ckanBackend = ckanBackendAtomicReference.get();
+            ckanBackend.restoreCache(snapshot);
+            snapshotModificationCount = ckanBackend.getCacheModificationCount();
+            getLogger().info("Restored {} CKAN identifiers from the state of the processor", snapshot.size());
+            final int pageSize = context.getProperty(CACHE_WARMUP_PAGE_SIZE).asInteger();
+            final Duration timeout = Duration.ofMillis(context.getProperty(CACHE_WARMUP_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS));
+            cacheCheckThread = Thread.ofVirtual().name("ckan-cache-check").start(() -> {
+                try {
+                    ckanBackend.validateCache(snapshot, pageSize, timeout);
+                } catch (InterruptedException e) {
+                    getLogger().debug("Stopped checking the restored CKAN identifiers, the processor is stopping");
+                } catch (Exception e) {
+                    getLogger().warn("Could not check the restored CKAN identifiers, they are kept until they expire", e);
+                }
+            });
+        } else if (context.getProperty(CACHE_WARMUP).asBoolean()) {
+            // a failed warm-up only means that the objects are looked up when first needed
+            try {
+                ckanBackendAtomicReference.get().warmUpCache(
+                        context.getProperty(CACHE_WARMUP_PAGE_SIZE).asInteger(),
+                        Duration.ofMillis(context.getProperty(CACHE_WARMUP_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS)));
+            } catch (Exception e) {
+                getLogger().warn("Could not warm up the CKAN cache, objects will be looked up when first needed", e);
+            }
+        }
+    }
+
+    @OnStopped
+    public void shutdownExecutor(final ProcessContext context) {
+        // the check of the restored identifiers is stopped before the HTTP client it uses is released
+        final Thread cacheCheck = cacheCheckThread;
+        if (cacheCheck != null) {
+            cacheCheck.interrupt();
+            try {
+                cacheCheck.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            cacheCheckThread = null;
+        }
+
+        final CKANBackend ckanBackend = ckanBackendAtomicReference.get();
+        if (ckanBackend != null) {
+            snapshotCache(context, ckanBackend, true);
+        }
+
+        if (virtualThreadExecutor != null) {
+            virtualThreadExecutor.shutdown();
+            virtualThreadExecutor = null;
+        }
+        resourcePermits = null;
+        if (fileRollupSink != null) {
+            fileRollupSink.close();
+            fileRollupSink = null;
+        }
+        if (viewProvisioner != null) {
+            viewProvisioner.close();
+            viewProvisioner = null;
+        }
+        // the views and the uploads are done, the HTTP client of the backend is released unless the service owns it
+        if (ckanBackend != null) {
+            ckanBackend.close();
+        }
+    }
+
+    /**
+     * Creates the backend to CKAN from the CKAN client service if set, otherwise from the CKAN URL, API key and cache
+     * properties, which the processors of this bundle share. The identifiers are shared through the distributed cache
+     * service if set.
+     */
+    static CKANBackend createBackend(final ProcessContext context) {
         final String ckanViewer = context.getProperty(CKAN_VIEWER).getValue();
-        CKANBackend ckanBackend = new CKANBackend(url, apiKey, ckanViewer);
-        ckanBackendAtomicReference.set(ckanBackend);
-        getLogger().info("CKAN backend initialized with URL: {}", url);
+        final CKANBackend ckanBackend;
+        if (context.getProperty(CKAN_CLIENT_SERVICE).isSet()) {
+            final CKANClientService clientService = context.getProperty(CKAN_CLIENT_SERVICE).asControllerService(CKANClientService.class);
+            ckanBackend = clientService.createBackend(ckanViewer);
+        } else {
+            final String url = context.getProperty(CKAN_URL).getValue();
+            final String apiKey = context.getProperty(CKAN_API_KEY).getValue();
+            final CKANCacheSettings cacheSettings = new CKANCacheSettings(
+                    context.getProperty(CACHE_MAX_SIZE).asLong(),
+                    Duration.ofMillis(context.getProperty(CACHE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS)),
+                    Duration.ofMillis(context.getProperty(CACHE_NEGATIVE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS)));
+            ckanBackend = new CKANBackend(url, apiKey, ckanViewer, cacheSettings);
+        }
+
+        if (context.getProperty(DISTRIBUTED_CACHE).isSet()) {
+            final DistributedMapCacheClient cacheClient = context.getProperty(DISTRIBUTED_CACHE).asControllerService(DistributedMapCacheClient.class);
+            // shared identifiers expire like cached ones, so that objects deleted in CKAN are looked up again
+            ckanBackend.setSharedIdStore(new DistributedMapCacheIdStore(
+                    cacheClient, ckanBackend.getUrl(), ckanBackend.getCacheSettings().expiration()));
+        }
+        return ckanBackend;
+    }
+
+    static List<String> getColumns(final ProcessContext context, final PropertyDescriptor property) {
+        if (!context.getProperty(property).isSet()) {
+            return List.of();
+        }
+        return Arrays.stream(context.getProperty(property).getValue().split(","))
+                .map(String::trim)
+                .filter(column -> !column.isEmpty())
+                .toList();
+    }
+
+    /**
+     * Reads the entities of a FlowFile and hands the records of each entity to the handler as soon as they are built,
+     * so that the records of a FlowFile can be sent before the whole FlowFile is read.
+     */
+    /**
+     * Penalizes a FlowFile routed to retry. When CKAN asked to wait longer than the penalty, the time to retry is kept
+     * in an attribute, so that the FlowFile is held back until then if it comes back to a processor of this bundle.
+     */
+    static FlowFile penalizeForRetry(final ProcessSession session, FlowFile flowFile, final Exception e) {
+        flowFile = session.penalize(flowFile);
+        final Duration retryAfter = e instanceof CKANTransientException transientException ? transientException.getRetryAfter() : null;
+        if (retryAfter != null) {
+            final long retryAt = System.currentTimeMillis() + retryAfter.toMillis();
+            if (retryAt > flowFile.getPenaltyExpirationMillis()) {
+                flowFile = session.putAttribute(flowFile, RETRY_AFTER_ATTRIBUTE, String.valueOf(retryAt));
+            }
+        }
+        return flowFile;
+    }
+
+    /**
+     * Checks that a FlowFile may be retried. A FlowFile taken before the time CKAN asked to wait is penalized again
+     * and put back in the queue.
+     *
+     * @return The FlowFile to process, or null if it was put back
+     */
+    static FlowFile takeIfRetryDue(final ProcessSession session, final FlowFile flowFile) {
+        final String retryAt = flowFile.getAttribute(RETRY_AFTER_ATTRIBUTE);
+        if (retryAt == null) {
+            return flowFile;
+        }
+        long retryAtMillis;
+        try {
+            retryAtMillis = Long.parseLong(retryAt);
+        } catch (NumberFormatException e) {
+            retryAtMillis = 0;
+        }
+        if (System.currentTimeMillis() < retryAtMillis) {
+            session.transfer(session.penalize(flowFile));
+            return null;
+        }
+        return session.removeAttribute(flowFile, RETRY_AFTER_ATTRIBUTE);
     }
 
-    protected void persistFlowFile(final ProcessContext context, final FlowFile flowFile, ProcessSession session, CKANBackend ckanBackend) throws Exception {
-        final boolean createDataStore = context.getProperty(CREATE_DATASTORE).asBoolean();
+    protected void collectFlowFile(final ProcessContext context, final FlowFile flowFile, ProcessSession session, CKANBackend ckanBackend,
+                                   final Consumer<ResourceBatch> entityBatchHandler) throws Exception {
         final String datasetIdPrefixTruncate = context.getProperty(DATASETID_PREFIX_TRUNCATE).getValue();
         final NGSIUtils n = new NGSIUtils();
-        final NGSIEvent event = n.getEventFromFlowFile(flowFile, session);
-        final long creationTime = event.getCreationTime();
+        final long creationTime = flowFile.getEntryDate();
 
-        ArrayList<Entity> entities = event.getEntities();
-        for (Entity entity : entities) {
+        n.streamEntitiesFromFlowFile(flowFile, session, entity -> {
 
             // Publisher URL is currently not available from dataset information
             // Use the attribute set in the flow instead
             final String publisherUrl = flowFile.getAttribute(DCAT_PUBLISHER_URL);
-            DCATMetadata dcatMetadata = BuildDCATMetadata.getMetadataFromEntity(entity, publisherUrl);
-            getLogger().info("DCAT metadata: {}", dcatMetadata);
+            final DatasetMetadataCache.DatasetMetadata datasetMetadata = datasetMetadataCache.get(entity, publisherUrl, ckanBackend);
+            DCATMetadata dcatMetadata = BuildDCATMetadata.getMetadataFromEntity(entity, datasetMetadata.dcatMetadata());
+            getLogger().debug("DCAT metadata: {}", dcatMetadata);
 
-            final String orgName = ckanBackend.buildOrgName(dcatMetadata);
-            final String pkgName = ckanBackend.buildPkgName(dcatMetadata);
+            final String orgName = datasetMetadata.orgName();
+            final String pkgName = datasetMetadata.pkgName();
             final String resName = ckanBackend.buildResName(entity, dcatMetadata);
 
-            CKANColumnAggregator aggregator = new CKANColumnAggregator();
-            aggregator.initialize(entity, creationTime, datasetIdPrefixTruncate);
-            List<JsonObject> jsonObjects = aggregator.toJsonObjects();
+            ResourceBatch entityBatch = new ResourceBatch(orgName, pkgName, resName, dcatMetadata);
+            for (CKANColumnAggregator aggregator : CKANColumnAggregator.forEntity(entity, creationTime, datasetIdPrefixTruncate)) {
+                Map<String, JsonElement> record = aggregator.toRecord();
 
-            getLogger().info("Persisting data in CKAN: orgName=" + orgName
-                    + ", pkgName=" + pkgName + ", resName=" + resName + ", data=" + jsonObjects);
+                getLogger().debug("Collecting data for CKAN: orgName={}, pkgName={}, resName={}, data={}",
+                        orgName, pkgName, resName, record);
 
-            ckanBackend.persist(orgName, pkgName, resName, jsonObjects, dcatMetadata, createDataStore);
+                entityBatch.addRecord(record, aggregator.getColumnTypes(), flowFile);
+            }
+            entityBatchHandler.accept(entityBatch);
+        });
+    }
+
+    private CompletableFuture<Void> persistBatch(ResourceBatch batch, CKANBackend ckanBackend, DataStoreSettings dataStoreSettings) {
+        // in file rollup mode, the records are on the local disk once appended, they are uploaded in the background
+        final FileRollupSink sink = fileRollupSink;
+        if (sink != null) {
+            try {
+                sink.append(batch);
+                return CompletableFuture.completedFuture(null);
+            } catch (Exception e) {
+                return CompletableFuture.failedFuture(e);
+            }
         }
 
+        final ExecutorService executor = virtualThreadExecutor;
+        if (executor == null) {
+            return ckanBackend.persistAsync(batch.getOrgName(), batch.getPkgName(), batch.getResName(),
+                    batch.getRecords(), batch.getColumnTypes(), batch.getDcatMetadata(), dataStoreSettings);
+        }
+
+        final Semaphore permits = resourcePermits;
+        return CompletableFuture.runAsync(() -> {
+            try {
+                permits.acquire();
+                try {
+                    ckanBackend.persist(batch.getOrgName(), batch.getPkgName(), batch.getResName(),
+                            batch.getRecords(), batch.getColumnTypes(), batch.getDcatMetadata(), dataStoreSettings);
+                } finally {
+                    permits.release();
+                }
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Starts sending the records of a resource. The previous write of the same resource is awaited first, so that the
+     * writes of a resource keep their order and at most one chunk of each resource is being sent while the next one is
+     * collected.
+     */
+    private CompletableFuture<Void> writeBatch(ResourceBatch batch, Map<String, CompletableFuture<Void>> lastWrites,
+                                               CKANBackend ckanBackend, DataStoreSettings dataStoreSettings) {
+        final CompletableFuture<Void> previousWrite = lastWrites.get(batch.getKey());
+        if (previousWrite != null) {
+            // its failure is reported with the FlowFiles of its own batch
+            previousWrite.exceptionally(e -> null).join();
+        }
+        getLogger().info("Persisting {} records from {} FlowFiles in CKAN: orgName={}, pkgName={}, resName={}",
+                batch.getRecords().size(), batch.getFlowFiles().size(), batch.getOrgName(), batch.getPkgName(), batch.getResName());
+        final CompletableFuture<Void> write = persistBatch(batch, ckanBackend, dataStoreSettings);
+        lastWrites.put(batch.getKey(), write);
+        return write;
     }
 
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
         CKANBackend ckanBackend = ckanBackendAtomicReference.get();
-        final FlowFile flowFile = session.get();
-        if (flowFile == null) {
+
+        // CKAN asked all its clients to slow down, do not take FlowFiles that would only be routed to retry
+        final Duration retryAfter = ckanBackend.getRetryAfterRemaining();
+        if (!retryAfter.isZero()) {
+            getLogger().debug("CKAN asked to wait {} before retrying", retryAfter);
+            context.yield();
+            return;
+        }
+
+        final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        final List<FlowFile> flowFiles = new ArrayList<>(batchSize);
+        for (FlowFile flowFile : session.get(batchSize)) {
+            flowFile = takeIfRetryDue(session, flowFile);
+            if (flowFile != null) {
+                flowFiles.add(flowFile);
+            }
+        }
+        if (flowFiles.isEmpty()) {
             return;
         }
 
+        final DataStoreSettings dataStoreSettings = new DataStoreSettings(
+                context.getProperty(CREATE_DATASTORE).asBoolean(),
+                WriteMethod.fromMethod(context.getProperty(WRITE_METHOD).getValue()),
+                getColumns(context, PRIMARY_KEY),
+                getColumns(context, INDEXES),
+                context.getProperty(UPSERT_CHUNK_SIZE).asInteger());
+        final Map<String, ResourceBatch> batches = new LinkedHashMap<>();
+        final Map<FlowFile, Exception> failures = new HashMap<>();
+        final Map<String, CompletableFuture<Void>> lastWrites = new HashMap<>();
+        // only the FlowFiles covered by each write are kept, the records of a batch are released once it is written
+        final Map<CompletableFuture<Void>, Set<FlowFile>> writes = new LinkedHashMap<>();
+
+        for (FlowFile flowFile : flowFiles) {
+            // the records of the FlowFile not sent yet, they are only added to the batches once all of its entities
+            // have been read successfully
+            final Map<String, ResourceBatch> flowFileBatches = new LinkedHashMap<>();
+            final AtomicLong entities = new AtomicLong();
+            final AtomicLong rows = new AtomicLong();
+            try {
+                collectFlowFile(context, flowFile, session, ckanBackend, entityBatch -> {
+                    entities.incrementAndGet();
+                    rows.addAndGet(entityBatch.getRecords().size());
+                    ResourceBatch batch = flowFileBatches.putIfAbsent(entityBatch.getKey(), entityBatch);
+                    if (batch != null) {
+                        batch.addAll(entityBatch);
+                    } else {
+                        batch = entityBatch;
+                    }
+                    // a resource is sent as soon as it holds a chunk, so that the records of the whole batch of
+                    // FlowFiles, or of a large FlowFile, are not held in memory at once
+                    final ResourceBatch collected = batches.get(batch.getKey());
+                    if (batch.getRecords().size() + (collected == null ? 0 : collected.getRecords().size()) >= dataStoreSettings.chunkSize()) {
+                        flowFileBatches.remove(batch.getKey());
+                        if (collected != null) {
+                            batches.remove(batch.getKey());
+                            collected.addAll(batch);
+                            batch = collected;
+                        }
+                        writes.put(writeBatch(batch, lastWrites, ckanBackend, dataStoreSettings), batch.getFlowFiles());
+                    }
+                });
+                // one batch is collected per entity, the ratios per FlowFile are given by the FlowFiles counter
+                session.adjustCounter("FlowFiles collected", 1, false);
+                session.adjustCounter("NGSI-LD entities collected", entities.get(), false);
+                session.adjustCounter("Rows collected", rows.get(), false);
+                for (ResourceBatch flowFileBatch : flowFileBatches.values()) {
+                    final ResourceBatch batch = batches.putIfAbsent(flowFileBatch.getKey(), flowFileBatch);
+                    if (batch != null) {
+                        batch.addAll(flowFileBatch);
+                    }
+                }
+            } catch (Exception e) {
+                // the chunks already sent with some of its records are still written
+                failures.put(flowFile, e);
+            }
+        }
+
+        // Records of different resources are sent concurrently, then all the writes are awaited
+        for (ResourceBatch batch : batches.values()) {
+            writes.put(writeBatch(batch, lastWrites, ckanBackend, dataStoreSettings), batch.getFlowFiles());
+        }
+        batches.clear();
+
+        final CompletableFuture<Void> allWrites = CompletableFuture.allOf(writes.keySet().toArray(CompletableFuture[]::new));
         try {
-            persistFlowFile(context, flowFile, session, ckanBackend);
-            getLogger().info("inserted {} into CKAN", flowFile);
-            session.getProvenanceReporter().send(flowFile, "report");
-            session.transfer(flowFile, REL_SUCCESS);
-        } catch (Exception e) {
-            getLogger().error("Failed to insert {} into CKAN due to {}", new Object[]{flowFile, e}, e);
-            session.putAttribute(flowFile, "ckan.error.details", e.getMessage());
-            session.transfer(flowFile, REL_FAILURE);
-            context.yield();
+            allWrites.get();
+        } catch (ExecutionException e) {
+            // all the writes are done, the outcome of each of them is looked at below
+        } catch (InterruptedException e) {
+            // the processor is stopping: cancelling the writes would not abort the HTTP requests in progress, so they
+            // are given some time to complete and the FlowFiles are routed according to their outcome
+            try {
+                allWrites.get(STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException ignored) {
+                // all the writes are done
+            } catch (InterruptedException | TimeoutException notDone) {
+                // the outcome of the writes still in progress is unknown: no FlowFile is routed, they are all taken
+                // again once the processor is restarted, the records CKAN wrote meanwhile being written again
+                Thread.currentThread().interrupt();
+                getLogger().warn("Interrupted while waiting for the CKAN writes, which did not complete within {}, rolling back the session",
+                        STOP_TIMEOUT);
+                session.rollback();
+                drainMetrics(ckanBackend, session);
+                return;
+            }
+            Thread.currentThread().interrupt();
+        }
+
+        for (Map.Entry<CompletableFuture<Void>, Set<FlowFile>> write : writes.entrySet()) {
+            if (write.getKey().state() == Future.State.FAILED) {
+                final Throwable failure = write.getKey().exceptionNow();
+                final Exception cause = failure instanceof Exception exception ? exception : new ExecutionException(failure);
+                for (FlowFile flowFile : write.getValue()) {
+                    failures.putIfAbsent(flowFile, cause);
+                }
+            }
+        }
+
+        if (!failures.isEmpty() && context.getProperty(RollbackOnFailure.ROLLBACK_ON_FAILURE).asBoolean()) {
+            final Exception e = failures.values().iterator().next();
+            getLogger().error("Failed to insert {} FlowFiles into CKAN, rolling back the session due to {}", new Object[]{failures.size(), e}, e);
+            session.rollback(true);
+            drainMetrics(ckanBackend, session);
+            return;
+        }
+
+        for (FlowFile flowFile : flowFiles) {
+            final Exception e = failures.get(flowFile);
+            if (e == null) {
+                getLogger().info("inserted {} into CKAN", flowFile);
+                session.getProvenanceReporter().send(flowFile, "report");
+                session.transfer(flowFile, REL_SUCCESS);
+            } else if (e instanceof CKANTransientException) {
+                // only this FlowFile is delayed, the others keep flowing
+                getLogger().warn("Failed to insert {} into CKAN, it will be retried, due to {}", flowFile, e.getMessage());
+                final FlowFile retryFlowFile = session.putAttribute(flowFile, "ckan.error.details", e.getMessage());
+                session.transfer(penalizeForRetry(session, retryFlowFile, e), REL_RETRY);
+            } else {
+                getLogger().error("Failed to insert {} into CKAN due to {}", new Object[]{flowFile, e}, e);
+                session.transfer(session.putAttribute(flowFile, "ckan.error.details", e.getMessage()), REL_FAILURE);
+            }
+        }
+        drainMetrics(ckanBackend, session);
+        snapshotCache(context, ckanBackend, false);
+    }
+
+    // the metrics of the CKAN calls made by this task, and possibly by concurrent tasks, are reported as counters
+    private void drainMetrics(final CKANBackend ckanBackend, final ProcessSession session) {
+        ckanBackend.drainMetrics((name, delta) -> session.adjustCounter(name, delta, false));
+    }
+
+    // the identifiers are written at most once per interval, by a single task, and when the processor is stopped, only if
+    // they changed since the last snapshot
+    private void snapshotCache(final ProcessContext context, final CKANBackend ckanBackend, final boolean force) {
+        if (!context.getProperty(CACHE_PERSISTENCE).asBoolean()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long last = lastCacheSnapshot.get();
+        final long interval = context.getProperty(CACHE_PERSISTENCE_INTERVAL).asTimePeriod(TimeUnit.NANOSECONDS);
+        if (!force && (now - last < interval || !lastCacheSnapshot.compareAndSet(last, now))) {
+            return;
+        }
+
+        final long modificationCount = ckanBackend.getCacheModificationCount();
+        if (modificationCount == snapshotModificationCount) {
+            return;
+        }
+        try {
+            final Map<String, String> snapshot = ckanBackend.snapshotCache();
+            context.getStateManager().setState(snapshot, Scope.LOCAL);
+            snapshotModificationCount = modificationCount;
+            getLogger().debug("Persisted {} CKAN identifiers in the state of the processor", snapshot.size());
+        } catch (IOException e) {
+            getLogger().warn("Could not persist the CKAN identifiers in the state of the processor", e);
         }
     }
 
@@ -0,0 +1,288 @@
+package egm.io.nifi.processors.ckan;
+
+import com.google.gson.JsonElement;
+import egm.io.nifi.processors.ckan.http.CKANTransientException;
+import egm.io.nifi.processors.ckan.model.ColumnType;
+import egm.io.nifi.processors.ckan.model.DCATMetadata;
+import egm.io.nifi.processors.ckan.model.DataStoreSettings;
+import egm.io.nifi.processors.ckan.model.WriteMethod;
+import egm.io.nifi.processors.ckan.utils.CKANRecordMapper;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.record.Record;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"CKAN", "ckan", "Open Data", "record", "put", "datastore"})
+@CapabilityDescription("Writes the records of a FlowFile, read with a Record Reader, in the datastore of a CKAN resource. Each field "
+        + "of the records is a column of the datastore. The organization, package and resource are created if they do not exist, "
+        + "and the records are sent in chunks of datastore_upsert requests")
+@SeeAlso({NgsiLdToCkan.class})
+@WritesAttributes({
+        @WritesAttribute(attribute = "record.count", description = "The number of records written in the datastore"),
+        @WritesAttribute(attribute = "ckan.records.written", description = "The number of records written before a failure, they are "
+                + "skipped when the FlowFile is retried"),
+        @WritesAttribute(attribute = "ckan.error.details", description = "The reason why the records could not be written"),
+        @WritesAttribute(attribute = NgsiLdToCkan.RETRY_AFTER_ATTRIBUTE, description = "The time, in milliseconds since the epoch, "
+                + "before which CKAN asked not to retry the FlowFile, when it is later than the end of its penalty")
+})
+public class PutCKANRecord extends AbstractProcessor {
+
+    protected static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+            .name("record-reader")
+            .displayName("Record Reader")
+            .description("The Record Reader used to read the records of the FlowFiles")
+            .required(true)
+            .identifiesControllerService(RecordReaderFactory.class)
+            .build();
+
+    protected static final PropertyDescriptor PUBLISHER_URL = new PropertyDescriptor.Builder()
+            .name("publisher-url")
+            .displayName("Publisher URL")
+            .description("The URL of the publisher of the data, the organization is named after it like with NgsiLdToCkan")
+            .required(true)
+            .defaultValue("${publisherURL}")
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    protected static final PropertyDescriptor PACKAGE_NAME = new PropertyDescriptor.Builder()
+            .name("package-name")
+            .displayName("Package Name")
+            .description("The title of the package holding the resource, the package is named after it and the publisher URL like "
+                    + "with NgsiLdToCkan")
+            .required(true)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    protected static final PropertyDescriptor RESOURCE_NAME = new PropertyDescriptor.Builder()
+            .name("resource-name")
+            .displayName("Resource Name")
+            .description("The name of the resource whose datastore the records are written in")
+            .required(true)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    static final String RECORDS_WRITTEN_ATTRIBUTE = "ckan.records.written";
+
+    protected static final Relationship REL_SUCCESS = NgsiLdToCkan.REL_SUCCESS;
+    protected static final Relationship REL_RETRY = NgsiLdToCkan.REL_RETRY;
+    protected static final Relationship REL_FAILURE = NgsiLdToCkan.REL_FAILURE;
+
+    private final AtomicReference<CKANBackend> ckanBackendAtomicReference = new AtomicReference<>();
+    private volatile ViewProvisioner viewProvisioner;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(RECORD_READER);
+        properties.add(NgsiLdToCkan.CKAN_CLIENT_SERVICE);
+        properties.add(NgsiLdToCkan.CKAN_URL);
+        properties.add(NgsiLdToCkan.CKAN_VIEWER);
+        properties.add(NgsiLdToCkan.CKAN_API_KEY);
+        properties.add(PUBLISHER_URL);
+        properties.add(PACKAGE_NAME);
+        properties.add(RESOURCE_NAME);
+        properties.add(NgsiLdToCkan.WRITE_METHOD);
+        properties.add(NgsiLdToCkan.PRIMARY_KEY);
+        properties.add(NgsiLdToCkan.INDEXES);
+        properties.add(NgsiLdToCkan.UPSERT_CHUNK_SIZE);
+        properties.add(NgsiLdToCkan.CACHE_MAX_SIZE);
+        properties.add(NgsiLdToCkan.CACHE_EXPIRATION);
+        properties.add(NgsiLdToCkan.CACHE_NEGATIVE_EXPIRATION);
+        properties.add(NgsiLdToCkan.DISTRIBUTED_CACHE);
+        return properties;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return Set.of(REL_SUCCESS, REL_RETRY, REL_FAILURE);
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext validationContext) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!validationContext.getProperty(NgsiLdToCkan.CKAN_CLIENT_SERVICE).isSet()
+                && !validationContext.getProperty(NgsiLdToCkan.CKAN_API_KEY).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(NgsiLdToCkan.CKAN_API_KEY.getDisplayName())
+                    .valid(false)
+                    .explanation("a CKAN API Key is required when no CKAN Client Service is set")
+                    .build());
+        }
+        if (!WriteMethod.INSERT.getMethod().equals(validationContext.getProperty(NgsiLdToCkan.WRITE_METHOD).getValue())
+                && !validationContext.getProperty(NgsiLdToCkan.PRIMARY_KEY).isSet()) {
+            results.add(new ValidationResult.Builder()
+                    .subject(NgsiLdToCkan.PRIMARY_KEY.getDisplayName())
+                    .valid(false)
+                    .explanation("primary key columns are required to upsert or update records")
+                    .build());
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void setUpCKANBackend(final ProcessContext context) {
+        ckanBackendAtomicReference.set(NgsiLdToCkan.createBackend(context));
+        viewProvisioner = new ViewProvisioner(ckanBackendAtomicReference.get());
+        ckanBackendAtomicReference.get().setViewProvisioner(viewProvisioner);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (viewProvisioner != null) {
+            viewProvisioner.close();
+            viewProvisioner = null;
+        }
+        final CKANBackend ckanBackend = ckanBackendAtomicReference.get();
+        if (ckanBackend != null) {
+            ckanBackend.close();
+        }
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        CKANBackend ckanBackend = ckanBackendAtomicReference.get();
+
+        // CKAN asked all its clients to slow down, do not take FlowFiles that would only be routed to retry
+        final Duration retryAfter = ckanBackend.getRetryAfterRemaining();
+        if (!retryAfter.isZero()) {
+            getLogger().debug("CKAN asked to wait {} before retrying", retryAfter);
+            context.yield();
+            return;
+        }
+
+        FlowFile flowFile = session.get();
+        if (flowFile == null) {
+            return;
+        }
+        flowFile = NgsiLdToCkan.takeIfRetryDue(session, flowFile);
+        if (flowFile == null) {
+            return;
+        }
+
+        final DataStoreSettings dataStoreSettings = new DataStoreSettings(
+                true,
+                WriteMethod.fromMethod(context.getProperty(NgsiLdToCkan.WRITE_METHOD).getValue()),
+                NgsiLdToCkan.getColumns(context, NgsiLdToCkan.PRIMARY_KEY),
+                NgsiLdToCkan.getColumns(context, NgsiLdToCkan.INDEXES),
+                context.getProperty(NgsiLdToCkan.UPSERT_CHUNK_SIZE).asInteger());
+        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+
+        // the records written by a previous attempt are skipped, so that retrying an insert does not duplicate them
+        final String writtenAttribute = flowFile.getAttribute(RECORDS_WRITTEN_ATTRIBUTE);
+        long previouslyWritten = -1;
+        // the records whose chunk was acknowledged by CKAN
+        long recordCount = 0;
+        try {
+            previouslyWritten = writtenAttribute != null ? Long.parseLong(writtenAttribute) : 0;
+            if (previouslyWritten < 0) {
+                throw new NumberFormatException("Negative number of records written: " + writtenAttribute);
+            }
+            final DCATMetadata dcatMetadata = new DCATMetadata();
+            dcatMetadata.setPublisherURL(context.getProperty(PUBLISHER_URL).evaluateAttributeExpressions(flowFile).getValue());
+            dcatMetadata.setPackageName(context.getProperty(PACKAGE_NAME).evaluateAttributeExpressions(flowFile).getValue());
+            dcatMetadata.setResourceName(context.getProperty(RESOURCE_NAME).evaluateAttributeExpressions(flowFile).getValue());
+            final String orgName = ckanBackend.buildOrgName(dcatMetadata);
+            final String pkgName = ckanBackend.buildPkgName(dcatMetadata);
+            final String resName = ckanBackend.buildResName(dcatMetadata.getResourceName());
+
+            try (InputStream in = session.read(flowFile);
+                 RecordReader reader = readerFactory.createRecordReader(flowFile, in, getLogger())) {
+                final Map<String, ColumnType> columnTypes = CKANRecordMapper.getColumnTypes(reader.getSchema());
+                final int chunkSize = dataStoreSettings.chunkSize();
+                long skipped = 0;
+                while (skipped < previouslyWritten && reader.nextRecord() != null) {
+                    // already written
+                    skipped++;
+                }
+
+                // a chunk is read while the previous one is being sent, the chunks are sent one after the other
+                CompletableFuture<Void> previousChunk = CompletableFuture.completedFuture(null);
+                long pendingCount = 0;
+                List<Map<String, JsonElement>> chunk = new ArrayList<>(chunkSize);
+                Record record;
+                while ((record = reader.nextRecord()) != null) {
+                    chunk.add(CKANRecordMapper.toRow(record, columnTypes));
+                    if (chunk.size() == chunkSize) {
+                        previousChunk.get();
+                        recordCount += pendingCount;
+                        previousChunk = ckanBackend.persistAsync(orgName, pkgName, resName, chunk, new LinkedHashMap<>(columnTypes), dcatMetadata, dataStoreSettings);
+                        pendingCount = chunk.size();
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                }
+                previousChunk.get();
+                recordCount += pendingCount;
+                if (!chunk.isEmpty()) {
+                    ckanBackend.persist(orgName, pkgName, resName, chunk, columnTypes, dcatMetadata, dataStoreSettings);
+                    recordCount += chunk.size();
+                }
+            }
+
+            session.adjustCounter("Records written", recordCount, false);
+            getLogger().info("Wrote {} records of {} in CKAN: orgName={}, pkgName={}, resName={}", recordCount, flowFile, orgName, pkgName, resName);
+            flowFile = session.removeAttribute(flowFile, RECORDS_WRITTEN_ATTRIBUTE);
+            flowFile = session.putAttribute(flowFile, "record.count", String.valueOf(previouslyWritten + recordCount));
+            session.getProvenanceReporter().send(flowFile, "report");
+            session.transfer(flowFile, REL_SUCCESS);
+        } catch (InterruptedException e) {
+            // the processor is stopping: the FlowFile is taken again once it is restarted, the chunks acknowledged by
+            // CKAN so far being written again
+            Thread.currentThread().interrupt();
+            getLogger().warn("Interrupted while writing the records of {} in CKAN, rolling back the session", flowFile);
+            session.rollback();
+        } catch (Exception e) {
+            final Exception cause = e instanceof ExecutionException && e.getCause() instanceof Exception exception ? exception : e;
+            // the records of the chunks acknowledged by CKAN stay in the datastore, they are skipped when the FlowFile is
+            // retried, as inserting them again would duplicate them. A chunk written by CKAN but whose response was lost
+            // is written again by the retry.
+            session.adjustCounter("Records written", recordCount, false);
+            if (previouslyWritten >= 0) {
+                flowFile = session.putAttribute(flowFile, RECORDS_WRITTEN_ATTRIBUTE, String.valueOf(previouslyWritten + recordCount));
+            }
+            if (cause instanceof CKANTransientException) {
+                getLogger().warn("Failed to write the records of {} in CKAN after {} records, it will be retried, due to {}",
+                        flowFile, recordCount, cause.getMessage());
+                flowFile = session.putAttribute(flowFile, "ckan.error.details", cause.getMessage());
+                session.transfer(NgsiLdToCkan.penalizeForRetry(session, flowFile, cause), REL_RETRY);
+            } else {
+                getLogger().error("Failed to write the records of {} in CKAN after {} records due to {}", new Object[]{flowFile, recordCount, cause}, cause);
+                session.transfer(session.putAttribute(flowFile, "ckan.error.details", String.valueOf(cause.getMessage())), REL_FAILURE);
+            }
+        }
+        ckanBackend.drainMetrics((name, delta) -> session.adjustCounter(name, delta, false));
+    }
+}
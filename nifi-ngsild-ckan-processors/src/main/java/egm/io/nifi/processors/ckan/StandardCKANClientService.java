@@ -0,0 +1,176 @@
+package egm.io.nifi.processors.ckan;
+
+import egm.io.nifi.processors.ckan.http.HttpBackend;
+import egm.io.nifi.processors.ckan.http.HttpClientSettings;
+import egm.io.nifi.processors.ckan.http.HttpProtocol;
+import egm.io.nifi.processors.ckan.utils.CKANCache;
+import egm.io.nifi.processors.ckan.utils.CKANCacheSettings;
+import okhttp3.OkHttpClient;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static egm.io.nifi.processors.ckan.NgsiLdToCkan.CACHE_EXPIRATION;
+import static egm.io.nifi.processors.ckan.NgsiLdToCkan.CACHE_MAX_SIZE;
+import static egm.io.nifi.processors.ckan.NgsiLdToCkan.CACHE_NEGATIVE_EXPIRATION;
+import static egm.io.nifi.processors.ckan.NgsiLdToCkan.CKAN_URL;
+
+@Tags({"CKAN", "ckan", "Open Data", "http", "client"})
+@CapabilityDescription("Provides a connection to a CKAN server shared by several processors: a single HTTP client with "
+        + "its connection pool and a single cache of organization, package and resource identifiers.")
+public class StandardCKANClientService extends AbstractControllerService implements CKANClientService {
+
+    static final PropertyDescriptor CKAN_API_KEY = new PropertyDescriptor.Builder()
+            .fromPropertyDescriptor(NgsiLdToCkan.CKAN_API_KEY)
+            .description("The API Key you are going to authenticate in CKAN")
+            .required(true)
+            .build();
+
+    static final PropertyDescriptor MAX_IDLE_CONNECTIONS = new PropertyDescriptor.Builder()
+            .name("max-idle-connections")
+            .displayName("Max Idle Connections")
+            .description("The maximum number of idle connections to CKAN kept in the connection pool")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("5")
+            .build();
+
+    static final PropertyDescriptor KEEP_ALIVE_DURATION = new PropertyDescriptor.Builder()
+            .name("keep-alive-duration")
+            .displayName("Keep Alive Duration")
+            .description("The time an idle connection is kept in the connection pool before being closed")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("5 min")
+            .build();
+
+    static final PropertyDescriptor CONNECT_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("connect-timeout")
+            .displayName("Connect Timeout")
+            .description("The maximum time to establish a connection to CKAN")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 sec")
+            .build();
+
+    static final PropertyDescriptor READ_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("read-timeout")
+            .displayName("Read Timeout")
+            .description("The maximum time between two reads of a CKAN response")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 sec")
+            .build();
+
+    static final PropertyDescriptor WRITE_TIMEOUT = new PropertyDescriptor.Builder()
+            .name("write-timeout")
+            .displayName("Write Timeout")
+            .description("The maximum time between two writes of a request to CKAN")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("10 sec")
+            .build();
+
+    static final PropertyDescriptor HTTP_PROTOCOL = new PropertyDescriptor.Builder()
+            .name("http-protocol")
+            .displayName("HTTP Protocol")
+            .description("The HTTP protocol used to reach CKAN. HTTP/2 is used over TLS when the server supports it and falls back "
+                    + "to HTTP/1.1 otherwise. HTTP/2 prior knowledge uses HTTP/2 over plain connections and requires a server supporting it")
+            .required(true)
+            .allowableValues(HttpProtocol.HTTP_2.getDisplayName(), HttpProtocol.HTTP_1_1.getDisplayName(),
+                    HttpProtocol.H2_PRIOR_KNOWLEDGE.getDisplayName())
+            .defaultValue(HttpProtocol.HTTP_2.getDisplayName())
+            .build();
+
+    static final PropertyDescriptor COMPRESS_REQUESTS = new PropertyDescriptor.Builder()
+            .name("compress-requests")
+            .displayName("Compress Requests")
+            .description("true or false, true sends the request bodies larger than 1 KB gzip encoded. "
+                    + "The CKAN server, or the proxy in front of it, must accept gzip encoded request bodies")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    static final PropertyDescriptor MAX_CONCURRENT_REQUESTS = new PropertyDescriptor.Builder()
+            .name("max-concurrent-requests")
+            .displayName("Max Concurrent Requests")
+            .description("The maximum number of asynchronous requests sent to CKAN at the same time, "
+                    + "for instance datastore inserts into different resources")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("5")
+            .build();
+
+    private volatile String url;
+    private volatile String apiKey;
+    private volatile OkHttpClient httpClient;
+    private volatile CKANCache cache;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        final List<PropertyDescriptor> properties = new ArrayList<>();
+        properties.add(CKAN_URL);
+        properties.add(CKAN_API_KEY);
+        properties.add(CACHE_MAX_SIZE);
+        properties.add(CACHE_EXPIRATION);
+        properties.add(CACHE_NEGATIVE_EXPIRATION);
+        properties.add(MAX_IDLE_CONNECTIONS);
+        properties.add(KEEP_ALIVE_DURATION);
+        properties.add(CONNECT_TIMEOUT);
+        properties.add(READ_TIMEOUT);
+        properties.add(WRITE_TIMEOUT);
+        properties.add(HTTP_PROTOCOL);
+        properties.add(COMPRESS_REQUESTS);
+        properties.add(MAX_CONCURRENT_REQUESTS);
+        return properties;
+    }
+
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) {
+        url = context.getProperty(CKAN_URL).getValue();
+        apiKey = context.getProperty(CKAN_API_KEY).getValue();
+        final CKANCacheSettings cacheSettings = new CKANCacheSettings(
+                context.getProperty(CACHE_MAX_SIZE).asLong(),
+                Duration.ofMillis(context.getProperty(CACHE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS)),
+                Duration.ofMillis(context.getProperty(CACHE_NEGATIVE_EXPIRATION).asTimePeriod(TimeUnit.MILLISECONDS)));
+        final String protocol = context.getProperty(HTTP_PROTOCOL).getValue();
+        final HttpClientSettings httpClientSettings = new HttpClientSettings(
+                context.getProperty(MAX_IDLE_CONNECTIONS).asInteger(),
+                Duration.ofMillis(context.getProperty(KEEP_ALIVE_DURATION).asTimePeriod(TimeUnit.MILLISECONDS)),
+                Duration.ofMillis(context.getProperty(CONNECT_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS)),
+                Duration.ofMillis(context.getProperty(READ_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS)),
+                Duration.ofMillis(context.getProperty(WRITE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS)),
+                Arrays.stream(HttpProtocol.values()).filter(p -> p.getDisplayName().equals(protocol)).findFirst().orElseThrow(),
+                context.getProperty(COMPRESS_REQUESTS).asBoolean(),
+                context.getProperty(MAX_CONCURRENT_REQUESTS).asInteger());
+        httpClient = HttpBackend.buildClient(httpClientSettings);
+        cache = new CKANCache(url, apiKey, cacheSettings, httpClient);
+        getLogger().info("CKAN client initialized with URL: {}", url);
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        if (httpClient != null) {
+            HttpBackend.closeClient(httpClient);
+        }
+        httpClient = null;
+        cache = null;
+    }
+
+    @Override
+    public CKANBackend createBackend(String ckanViewer) {
+        return new CKANBackend(url, apiKey, ckanViewer, httpClient, cache);
+    }
+}
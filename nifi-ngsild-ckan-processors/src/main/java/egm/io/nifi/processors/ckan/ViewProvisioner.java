@@ -0,0 +1,114 @@
+package egm.io.nifi.processors.ckan;
+
+import egm.io.nifi.processors.ckan.http.CKANTransientException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the views of new resources in the background, so that the first records of a resource are inserted as soon
+ * as its datastore exists instead of waiting for its view. Views failing with a transient error are retried with an
+ * exponential backoff, or after the time CKAN asked to wait, up to a maximum number of attempts.
+ * Views still pending when the provisioner is closed are not created: a resource whose view is not known is submitted
+ * again when it is next written, so that its view is checked, and created if missing, by the next provisioner. A
+ * resource whose view could not be created after the maximum number of attempts is submitted again the same way.
+ */
+class ViewProvisioner implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(ViewProvisioner.class);
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Duration INITIAL_BACKOFF = Duration.ofSeconds(1);
+    private static final Duration MAX_BACKOFF = Duration.ofMinutes(1);
+
+    private final CKANBackend ckanBackend;
+    private final Duration initialBackoff;
+    private final ScheduledThreadPoolExecutor executor;
+    // the resources whose view was submitted, a resource is only queued once per provisioner
+    private final Set<String> submitted = ConcurrentHashMap.newKeySet();
+    // the resources whose view is queued or being created
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    ViewProvisioner(CKANBackend ckanBackend) {
+        this(ckanBackend, INITIAL_BACKOFF);
+    }
+
+    ViewProvisioner(CKANBackend ckanBackend, Duration initialBackoff) {
+        this.ckanBackend = ckanBackend;
+        this.initialBackoff = initialBackoff;
+        executor = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("ckan-views-", 0).daemon().factory());
+        // retries waiting for their backoff are dropped on close, like the views not created yet
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Queues the creation of the view of a resource, if it was not already submitted.
+     *
+     * @param resId           Resource whose view is created
+     * @param createdResource True if the resource was just created, so that it cannot have a view yet
+     */
+    void submit(String resId, boolean createdResource) {
+        // once closed, the resource is submitted to the next provisioner when it is next written
+        if (executor.isShutdown()) {
+            return;
+        }
+        if (submitted.add(resId)) {
+            pending.add(resId);
+            logger.debug("View creation queued (resId={})", resId);
+            schedule(resId, 1, Duration.ZERO, createdResource);
+        }
+    }
+
+    private void schedule(String resId, int attempt, Duration delay, boolean createdResource) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        executor.schedule(() -> provision(resId, attempt, createdResource), delay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void provision(String resId, int attempt, boolean createdResource) {
+        try {
+            // a view whose creation failed may have been created by CKAN anyway, it is looked up before a retry
+            ckanBackend.createView(resId, createdResource && attempt == 1);
+            pending.remove(resId);
+        } catch (CKANTransientException e) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            if (attempt >= MAX_ATTEMPTS) {
+                logger.error("Could not create the view after {} attempts, it is checked again when the resource is next written (resId={})",
+                        attempt, resId, e);
+                pending.remove(resId);
+                submitted.remove(resId);
+                return;
+            }
+            Duration backoff = initialBackoff.multipliedBy(1L << (attempt - 1));
+            if (e.getRetryAfter() != null && e.getRetryAfter().compareTo(backoff) > 0) {
+                backoff = e.getRetryAfter();
+            }
+            backoff = backoff.compareTo(MAX_BACKOFF) > 0 ? MAX_BACKOFF : backoff;
+            logger.warn("Could not create the view (resId={}), retrying in {} due to {}", resId, backoff, e.getMessage());
+            schedule(resId, attempt + 1, backoff, createdResource);
+        } catch (Exception e) {
+            logger.error("Could not create the view (resId={})", resId, e);
+            pending.remove(resId);
+        }
+    }
+
+    /**
+     * Stops creating views without waiting, the view being created if any is interrupted. A view created by CKAN
+     * anyway is found when the resource is next checked, it is not created twice.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        if (!pending.isEmpty()) {
+            logger.warn("The views of {} resources were not created, they are checked again when the resources are next written (resIds={})",
+                    pending.size(), pending);
+        }
+    }
+}
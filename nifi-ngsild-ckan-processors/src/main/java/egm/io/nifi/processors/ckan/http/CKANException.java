@@ -0,0 +1,16 @@
+package egm.io.nifi.processors.ckan.http;
+
+/**
+ * Failure to store data in CKAN. Unless it is a {@link CKANTransientException}, the failure would happen again if the
+ * same operation were retried, for instance a validation error or a name violating the CKAN naming conventions.
+ */
+public class CKANException extends Exception {
+
+    public CKANException(String message) {
+        super(message);
+    }
+
+    public CKANException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,81 @@
+package egm.io.nifi.processors.ckan.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Counts the calls to the CKAN actions (number, time, latency distribution, bytes sent and received, errors) and the
+ * hits and misses of the cache, until they are drained, for instance into NiFi counters.
+ * Counting is lock-free, so that concurrent requests are not slowed down.
+ */
+public class CKANMetrics {
+
+    // upper bounds of the latency buckets, the last bucket holding the slower calls
+    private static final long[] LATENCY_BUCKETS_MS = {10, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Records a call to a CKAN action.
+     *
+     * @param action        Name of the action, for instance datastore_upsert
+     * @param durationNanos Time from sending the request to receiving the whole response
+     * @param bytesSent     Size of the request body
+     * @param bytesReceived Size of the response body
+     * @param failed        Whether the call failed, either with an error status or without response
+     */
+    public void recordCall(String action, long durationNanos, long bytesSent, long bytesReceived, boolean failed) {
+        long durationMillis = TimeUnit.NANOSECONDS.toMillis(durationNanos);
+        String prefix = "CKAN " + action;
+        add(prefix + " calls", 1);
+        add(prefix + " time (ms)", durationMillis);
+        add(prefix + " latency " + getLatencyBucket(durationMillis), 1);
+        add(prefix + " bytes sent", bytesSent);
+        add(prefix + " bytes received", bytesReceived);
+        if (failed) {
+            add(prefix + " errors", 1);
+        }
+    }
+
+    /**
+     * Records a lookup in the cache.
+     *
+     * @param level Level of the cache: organization, package, resource or fields
+     * @param hit   Whether the lookup was answered by the cache, without querying CKAN
+     */
+    public void recordCacheLookup(String level, boolean hit) {
+        add("CKAN cache " + level + (hit ? " hits" : " misses"), 1);
+    }
+
+    /**
+     * Hands the value of each counter changed since the last drain to the consumer, then resets it.
+     */
+    public void drain(BiConsumer<String, Long> consumer) {
+        counters.forEach((name, counter) -> {
+            long value = counter.sumThenReset();
+            if (value != 0) {
+                consumer.accept(name, value);
+            }
+        });
+    }
+
+    private void add(String name, long value) {
+        LongAdder counter = counters.get(name);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(name, k -> new LongAdder());
+        }
+        counter.add(value);
+    }
+
+    private static String getLatencyBucket(long durationMillis) {
+        for (long bucket : LATENCY_BUCKETS_MS) {
+            if (durationMillis <= bucket) {
+                return "<= " + bucket + " ms";
+            }
+        }
+        return "> " + LATENCY_BUCKETS_MS[LATENCY_BUCKETS_MS.length - 1] + " ms";
+    }
+}
@@ -0,0 +1,29 @@
+package egm.io.nifi.processors.ckan.http;
+
+import java.time.Duration;
+
+/**
+ * Failure to store data in CKAN that may not happen again if the same operation is retried later, for instance
+ * a network error, an overloaded (429) or unavailable (5xx) server.
+ */
+public class CKANTransientException extends CKANException {
+
+    private final Duration retryAfter;
+
+    public CKANTransientException(String message, Throwable cause) {
+        super(message, cause);
+        this.retryAfter = null;
+    }
+
+    public CKANTransientException(String message, Duration retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Gets the time CKAN asked to wait before retrying, if any.
+     */
+    public Duration getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,66 @@
+package egm.io.nifi.processors.ckan.http;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+import java.io.IOException;
+
+/**
+ * Sends the request bodies larger than a threshold gzip encoded.
+ */
+public class GzipRequestInterceptor implements Interceptor {
+
+    private final long minSize;
+
+    public GzipRequestInterceptor(long minSize) {
+        this.minSize = minSize;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        RequestBody body = request.body();
+        if (body == null || request.header("Content-Encoding") != null) {
+            return chain.proceed(request);
+        }
+
+        // bodies of unknown length are streamed and expected to be large
+        long contentLength = body.contentLength();
+        if (contentLength >= 0 && contentLength < minSize) {
+            return chain.proceed(request);
+        }
+
+        Request compressedRequest = request.newBuilder()
+            .header("Content-Encoding", "gzip")
+            .method(request.method(), gzip(body))
+            .build();
+        return chain.proceed(compressedRequest);
+    }
+
+    private RequestBody gzip(RequestBody body) {
+        return new RequestBody() {
+            @Override
+            public MediaType contentType() {
+                return body.contentType();
+            }
+
+            @Override
+            public long contentLength() {
+                return -1;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+                body.writeTo(gzipSink);
+                gzipSink.close();
+            }
+        };
+    }
+}
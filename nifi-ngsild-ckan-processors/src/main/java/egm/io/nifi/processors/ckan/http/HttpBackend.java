@@ -2,29 +2,158 @@ package egm.io.nifi.processors.ckan.http;
 
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 import okhttp3.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
 public class HttpBackend {
     private static final Logger logger = LoggerFactory.getLogger(HttpBackend.class);
+    // below this size, compressing a request body costs more than it saves
+    private static final long GZIP_MIN_SIZE = 1024;
+    private static final MediaType JSON = MediaType.get("application/json");
     private final String url;
     private final OkHttpClient httpClient;
+    private final CKANMetrics metrics = new CKANMetrics();
+    private final RetryAfterDeadline retryAfterDeadline;
+
+    public HttpBackend(String url, OkHttpClient httpClient) {
+        this(url, httpClient, new RetryAfterDeadline());
+    }
 
-    public HttpBackend(String url) {
+    /**
+     * Creates a backend waiting, like the other backends sharing the deadline, for the time CKAN asked to wait.
+     */
+    public HttpBackend(String url, OkHttpClient httpClient, RetryAfterDeadline retryAfterDeadline) {
         this.url = url;
+        this.httpClient = httpClient;
+        this.retryAfterDeadline = retryAfterDeadline;
+    }
+
+    /**
+     * Builds an HTTP client with the given connection pool, timeouts, protocols and request compression.
+     */
+    public static OkHttpClient buildClient(HttpClientSettings settings) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(settings.maxRequestsPerHost());
+        dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), settings.maxRequestsPerHost()));
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+            .dispatcher(dispatcher)
+            .connectionPool(new ConnectionPool(settings.maxIdleConnections(), settings.keepAlive().toMillis(), TimeUnit.MILLISECONDS))
+            .connectTimeout(settings.connectTimeout())
+            .readTimeout(settings.readTimeout())
+            .writeTimeout(settings.writeTimeout())
+            .protocols(settings.protocol().getProtocols());
+        if (settings.compressRequests()) {
+            builder.addInterceptor(new GzipRequestInterceptor(GZIP_MIN_SIZE));
+        }
+        return builder.build();
+    }
 
-        httpClient = new OkHttpClient();
+    /**
+     * Releases the threads and the idle connections of an HTTP client, once no more requests are sent with it.
+     */
+    public static void closeClient(OkHttpClient httpClient) {
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
     }
 
     protected JsonResponse doRequest(String method, String path, Headers headers, String body)
             throws Exception {
+        return doStreamingRequest(method, path, headers, toRequestBody(body));
+    }
+
+    /**
+     * Sends a request whose body is written by the HTTP client, such as a {@link JsonRequestBody} streaming a large
+     * document.
+     */
+    protected JsonResponse doStreamingRequest(String method, String path, Headers headers, RequestBody body)
+            throws Exception {
+
+        Request request = buildRequest(method, path, headers, body);
+        checkRetryAfter();
+
+        long start = System.nanoTime();
+        try (Response response = httpClient.newCall(request).execute()) {
+            byte[] responseBody = response.body().bytes();
+            recordCall(request, path, start, responseBody.length, response.code());
+            return createJsonResponse(responseBody, response.code(), response.headers());
+        } catch (IOException e) {
+            recordCall(request, path, start, 0, 0);
+            throw new CKANTransientException("Could not reach CKAN (" + request.method() + " " + path + "): " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Sends a request without blocking the calling thread. Requests are run by the dispatcher of the HTTP client,
+     * which bounds the number of requests running concurrently against the same host.
+     *
+     * @return A future completed with the response, or exceptionally if the request could not be sent
+     */
+    protected CompletableFuture<JsonResponse> doRequestAsync(String method, String path, Headers headers, String body) {
+        return doStreamingRequestAsync(method, path, headers, toRequestBody(body));
+    }
+
+    /**
+     * Sends a request whose body is written by the HTTP client, without blocking the calling thread.
+     */
+    protected CompletableFuture<JsonResponse> doStreamingRequestAsync(String method, String path, Headers headers, RequestBody body) {
+        final Request request;
+        try {
+            request = buildRequest(method, path, headers, body);
+            checkRetryAfter();
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        CompletableFuture<JsonResponse> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        httpClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                recordCall(request, path, start, 0, 0);
+                future.completeExceptionally(
+                    new CKANTransientException("Could not reach CKAN (" + request.method() + " " + path + "): " + e.getMessage(), e));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (response) {
+                    byte[] responseBody = response.body().bytes();
+                    recordCall(request, path, start, responseBody.length, response.code());
+                    future.complete(createJsonResponse(responseBody, response.code(), response.headers()));
+                } catch (IOException e) {
+                    recordCall(request, path, start, 0, 0);
+                    future.completeExceptionally(
+                        new CKANTransientException("Could not reach CKAN (" + request.method() + " " + path + "): " + e.getMessage(), e));
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        });
+        return future;
+    }
+
+    private static RequestBody toRequestBody(String body) {
+        return body != null ? RequestBody.create(body, JSON) : null;
+    }
 
+    private Request buildRequest(String method, String path, Headers headers, RequestBody body) throws Exception {
         Request.Builder requestBuilder = new Request.Builder().url(url + path);
         requestBuilder = switch (method) {
-            case "PUT" -> requestBuilder.put(RequestBody.create(body, MediaType.get("application/json")));
-            case "POST" -> requestBuilder.post(RequestBody.create(body, MediaType.get("application/json")));
+            case "PUT" -> requestBuilder.put(body);
+            case "POST" -> requestBuilder.post(body);
             case "GET" -> requestBuilder;
             case "DELETE" -> requestBuilder.delete();
             case null, default -> throw new Exception("HTTP method not supported: " + method);
@@ -35,21 +164,115 @@ public class HttpBackend {
         }
 
         Request request = requestBuilder.build();
-        logger.info("Http request: {}", request);
+        logger.debug("Http request: {}", request);
+        return request;
+    }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            return createJsonResponse(response.body(), response.code());
+    /**
+     * Gets the base URL of the CKAN server.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Gets the metrics of the requests sent by this backend.
+     */
+    public CKANMetrics getMetrics() {
+        return metrics;
+    }
+
+    // a status of 0 stands for a call without response
+    private void recordCall(Request request, String path, long start, long bytesReceived, int status) {
+        long bytesSent = 0;
+        try {
+            RequestBody body = request.body();
+            if (body instanceof JsonRequestBody jsonBody) {
+                bytesSent = jsonBody.getBytesWritten();
+            } else if (body != null) {
+                bytesSent = Math.max(body.contentLength(), 0);
+            }
+        } catch (IOException e) {
+            // the size of a body built from a string is always known
+        }
+        metrics.recordCall(getAction(path), System.nanoTime() - start, bytesSent, bytesReceived, status < 200 || status >= 300);
+    }
+
+    // the CKAN action is the last segment of the path, for instance datastore_upsert in /api/3/action/datastore_upsert
+    private static String getAction(String path) {
+        int queryStart = path.indexOf('?');
+        String actionPath = queryStart < 0 ? path : path.substring(0, queryStart);
+        return actionPath.substring(actionPath.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Gets the time to wait before sending requests again, as last asked by CKAN with a Retry-After header.
+     */
+    public Duration getRetryAfterRemaining() {
+        return retryAfterDeadline.getRemaining();
+    }
+
+    /**
+     * Gets the time until which CKAN asked to wait, shared with the backends created with it.
+     */
+    public RetryAfterDeadline getRetryAfterDeadline() {
+        return retryAfterDeadline;
+    }
+
+    // fails fast, without reaching CKAN, while CKAN asked to wait before retrying
+    private void checkRetryAfter() throws CKANTransientException {
+        Duration retryAfter = getRetryAfterRemaining();
+        if (!retryAfter.isZero()) {
+            throw new CKANTransientException("CKAN asked to wait before retrying (retryAfter=" + retryAfter + ")", retryAfter);
+        }
+    }
+
+    /**
+     * Builds the exception for a CKAN request that did not succeed. Too many requests (429) and server errors (5xx)
+     * are transient failures, taking into account the Retry-After header if any, others are permanent failures.
+     *
+     * @param message Message describing the failed operation
+     * @param res     Response of CKAN
+     */
+    protected CKANException requestFailure(String message, JsonResponse res) {
+        int status = res.statusCode();
+        if (status == 429 || status >= 500) {
+            Duration retryAfter = parseRetryAfter(res.headers() != null ? res.headers().get("Retry-After") : null);
+            if (retryAfter != null) {
+                retryAfterDeadline.extend(retryAfter);
+            }
+            return new CKANTransientException(message, retryAfter);
         }
+        return new CKANException(message);
     }
 
-    private JsonResponse createJsonResponse(ResponseBody body, int status) throws Exception {
+    // Retry-After is either a number of seconds or an HTTP date
+    private static Duration parseRetryAfter(String retryAfter) {
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return null;
+        }
         try {
-            logger.info("Http response status: {}", status);
+            return Duration.ofSeconds(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                Duration retryAfterDuration = Duration.between(ZonedDateTime.now(date.getZone()), date);
+                return retryAfterDuration.isNegative() ? Duration.ZERO : retryAfterDuration;
+            } catch (DateTimeParseException dtpe) {
+                logger.warn("Ignoring invalid Retry-After header: {}", retryAfter);
+                return null;
+            }
+        }
+    }
+
+    private JsonResponse createJsonResponse(byte[] body, int status, Headers headers) throws Exception {
+        try {
+            logger.debug("Http response status: {}", status);
 
             JsonObject jsonPayload = null;
             if (body != null) {
-                String stringBody = body.string();
-                logger.info("Http response payload: {}", stringBody);
+                String stringBody = new String(body, StandardCharsets.UTF_8);
+                logger.debug("Http response payload: {}", stringBody);
 
                 if (!stringBody.isEmpty()) {
                     if (stringBody.startsWith("[")) {
@@ -62,9 +285,13 @@ public class HttpBackend {
                 }
             }
 
-            return new JsonResponse(jsonPayload, status);
-        } catch (IllegalStateException e) {
-            throw new Exception(e.getMessage());
+            return new JsonResponse(jsonPayload, status, headers);
+        } catch (JsonParseException | IllegalStateException e) {
+            // error pages of a proxy in front of CKAN are not JSON, their status is enough to classify the failure
+            if (status >= 200 && status < 300) {
+                throw new CKANException("Invalid response from CKAN: " + e.getMessage(), e);
+            }
+            return new JsonResponse(null, status, headers);
         }
     }
 }
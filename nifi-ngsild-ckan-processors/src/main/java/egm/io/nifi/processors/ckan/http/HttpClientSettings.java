@@ -0,0 +1,27 @@
+package egm.io.nifi.processors.ckan.http;
+
+import java.time.Duration;
+
+/**
+ * Transport settings of the HTTP client used to reach CKAN.
+ *
+ * @param maxIdleConnections Maximum number of idle connections kept in the pool
+ * @param keepAlive          Time an idle connection is kept in the pool
+ * @param connectTimeout     Timeout for establishing a connection
+ * @param readTimeout        Timeout between two reads of a response
+ * @param writeTimeout       Timeout between two writes of a request
+ * @param protocol           HTTP protocol negotiation
+ * @param compressRequests   Whether large request bodies are sent gzip encoded
+ * @param maxRequestsPerHost Maximum number of requests run concurrently against CKAN
+ */
+public record HttpClientSettings(
+    int maxIdleConnections,
+    Duration keepAlive,
+    Duration connectTimeout,
+    Duration readTimeout,
+    Duration writeTimeout,
+    HttpProtocol protocol,
+    boolean compressRequests,
+    int maxRequestsPerHost
+) {
+}
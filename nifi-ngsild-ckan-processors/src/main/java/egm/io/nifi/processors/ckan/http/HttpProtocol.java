@@ -0,0 +1,32 @@
+package egm.io.nifi.processors.ckan.http;
+
+import okhttp3.Protocol;
+
+import java.util.List;
+
+/**
+ * HTTP protocols the client may use to reach CKAN.
+ */
+public enum HttpProtocol {
+    // HTTP/2 when the server accepts it during the TLS handshake, HTTP/1.1 otherwise
+    HTTP_2("HTTP/2", List.of(Protocol.HTTP_2, Protocol.HTTP_1_1)),
+    HTTP_1_1("HTTP/1.1", List.of(Protocol.HTTP_1_1)),
+    // HTTP/2 without TLS, the server must support it
+    H2_PRIOR_KNOWLEDGE("HTTP/2 prior knowledge", List.of(Protocol.H2_PRIOR_KNOWLEDGE));
+
+    private final String displayName;
+    private final List<Protocol> protocols;
+
+    HttpProtocol(String displayName, List<Protocol> protocols) {
+        this.displayName = displayName;
+        this.protocols = protocols;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public List<Protocol> getProtocols() {
+        return protocols;
+    }
+}
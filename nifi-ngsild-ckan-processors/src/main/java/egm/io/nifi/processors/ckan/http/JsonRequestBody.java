@@ -0,0 +1,143 @@
+package egm.io.nifi.processors.ckan.http;
+
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonWriter;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Request body whose JSON document is serialized when the request is sent. A document up to the buffer limit is
+ * serialized in memory when the HTTP client asks for its length, so that it is sent with a Content-Length header,
+ * while a larger document is written straight to the connection, chunked, without being built in memory first.
+ * A streamed document is written again each time the request is sent, for instance when the request is retried.
+ */
+public class JsonRequestBody extends RequestBody {
+
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    /**
+     * Size of the largest document serialized in memory by default.
+     */
+    public static final int DEFAULT_BUFFER_LIMIT = 1024 * 1024;
+
+    /**
+     * Writes a JSON document.
+     */
+    @FunctionalInterface
+    public interface JsonContent {
+        void writeTo(JsonWriter writer) throws IOException;
+    }
+
+    // the document is larger than the buffer limit
+    private static class BufferLimitExceededException extends IOException {
+    }
+
+    private final JsonContent content;
+    private final int bufferLimit;
+    private volatile long bytesWritten;
+    // the serialized document, or null until its length is asked for or if it is streamed
+    private byte[] bytes;
+    private boolean streamed;
+
+    public JsonRequestBody(JsonContent content) {
+        this(content, DEFAULT_BUFFER_LIMIT);
+    }
+
+    /**
+     * @param content     Writes the JSON document
+     * @param bufferLimit Size of the largest document serialized in memory, 0 to always stream the document
+     */
+    public JsonRequestBody(JsonContent content, int bufferLimit) {
+        this.content = content;
+        this.bufferLimit = bufferLimit;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public synchronized long contentLength() throws IOException {
+        if (bytes == null && !streamed) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try {
+                write(new CountingOutputStream(buffer, bufferLimit));
+                bytes = buffer.toByteArray();
+            } catch (BufferLimitExceededException e) {
+                streamed = true;
+            }
+        }
+        return bytes != null ? bytes.length : -1;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        byte[] serialized;
+        synchronized (this) {
+            serialized = bytes;
+        }
+        if (serialized != null) {
+            sink.write(serialized);
+            bytesWritten = serialized.length;
+        } else {
+            CountingOutputStream outputStream = new CountingOutputStream(sink.outputStream(), Long.MAX_VALUE);
+            write(outputStream);
+            bytesWritten = outputStream.count;
+        }
+    }
+
+    private void write(CountingOutputStream outputStream) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+        // lenient like JsonElement.toString, which the bodies used to be built with
+        writer.setStrictness(Strictness.LENIENT);
+        content.writeTo(writer);
+        // the sink belongs to the HTTP client, it is flushed but not closed
+        writer.flush();
+    }
+
+    /**
+     * Gets the size of the document the last time it was written, the length of a streamed body not being known
+     * upfront.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // counts the bytes written, failing once more than the limit would be written
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final long limit;
+        private long count;
+
+        CountingOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count + 1 > limit) {
+                throw new BufferLimitExceededException();
+            }
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (count + len > limit) {
+                throw new BufferLimitExceededException();
+            }
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
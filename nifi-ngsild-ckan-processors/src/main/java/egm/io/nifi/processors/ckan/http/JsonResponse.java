@@ -1,10 +1,12 @@
 package egm.io.nifi.processors.ckan.http;
 
 import com.google.gson.JsonObject;
+import okhttp3.Headers;
 
 public record JsonResponse(
     JsonObject jsonObject,
-    int statusCode
+    int statusCode,
+    Headers headers
 ) {
     @Override
     public JsonObject jsonObject() {
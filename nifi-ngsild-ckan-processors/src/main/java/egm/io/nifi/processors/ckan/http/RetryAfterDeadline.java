@@ -0,0 +1,30 @@
+package egm.io.nifi.processors.ckan.http;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time until which CKAN asked its clients to wait, with a Retry-After header, before sending requests again. It is
+ * shared by the backends reaching the same CKAN, such as a backend and its identifiers cache, so that a Retry-After
+ * received by any of them holds back all of them.
+ */
+public final class RetryAfterDeadline {
+
+    private final AtomicLong deadline = new AtomicLong();
+
+    /**
+     * Extends the deadline, if needed, so that requests are not sent again before the given time has elapsed.
+     */
+    public void extend(Duration retryAfter) {
+        long retryAt = System.currentTimeMillis() + retryAfter.toMillis();
+        deadline.accumulateAndGet(retryAt, Math::max);
+    }
+
+    /**
+     * Gets the time to wait before sending requests again, or zero if CKAN can be reached.
+     */
+    public Duration getRemaining() {
+        long remaining = deadline.get() - System.currentTimeMillis();
+        return remaining > 0 ? Duration.ofMillis(remaining) : Duration.ZERO;
+    }
+}
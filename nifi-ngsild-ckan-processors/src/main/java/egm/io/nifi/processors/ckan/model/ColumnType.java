@@ -0,0 +1,49 @@
+package egm.io.nifi.processors.ckan.model;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Types of the DataStore columns.
+ * CKAN types reference: https://docs.ckan.org/en/latest/maintaining/datastore.html#field-types
+ */
+public enum ColumnType {
+    NUMERIC("numeric"),
+    TIMESTAMP("timestamp"),
+    JSON("json"),
+    TEXT("text");
+
+    private final String ckanType;
+
+    ColumnType(String ckanType) {
+        this.ckanType = ckanType;
+    }
+
+    public String getCkanType() {
+        return ckanType;
+    }
+
+    /**
+     * Gets the type of a column holding values of both given types: values of different types can only be
+     * stored together as text.
+     */
+    public static ColumnType merge(ColumnType type, ColumnType otherType) {
+        if (type == null || type == otherType) {
+            return otherType;
+        }
+        return otherType == null ? type : TEXT;
+    }
+
+    /**
+     * Gets the type of the column storing a JSON value, according to its shape.
+     */
+    public static ColumnType of(JsonElement value) {
+        if (value == null || value.isJsonNull()) {
+            return TEXT;
+        } else if (value.isJsonObject() || value.isJsonArray()) {
+            return JSON;
+        } else if (value.getAsJsonPrimitive().isNumber()) {
+            return NUMERIC;
+        }
+        return TEXT;
+    }
+}
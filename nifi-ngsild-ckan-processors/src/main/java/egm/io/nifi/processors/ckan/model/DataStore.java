@@ -1,24 +1,24 @@
 package egm.io.nifi.processors.ckan.model;
 
-import com.google.gson.JsonElement;
-
-import java.util.ArrayList;
+import java.util.List;
 
 public class DataStore {
 
     private String resource_id;
-    private ArrayList<JsonElement> fields;
+    private List<DataStoreField> fields;
     private String force;
     private String aliases;
+    private List<String> primary_key;
+    private List<String> indexes;
 
     public DataStore() {
     }
 
-    public ArrayList<JsonElement> getFields() {
+    public List<DataStoreField> getFields() {
         return fields;
     }
 
-    public void setFields(ArrayList<JsonElement> fields) {
+    public void setFields(List<DataStoreField> fields) {
         this.fields = fields;
     }
 
@@ -41,4 +41,20 @@ public class DataStore {
     public void setAliases(String aliases) {
         this.aliases = aliases;
     }
+
+    public List<String> getPrimary_key() {
+        return primary_key;
+    }
+
+    public void setPrimary_key(List<String> primary_key) {
+        this.primary_key = primary_key;
+    }
+
+    public List<String> getIndexes() {
+        return indexes;
+    }
+
+    public void setIndexes(List<String> indexes) {
+        this.indexes = indexes;
+    }
 }
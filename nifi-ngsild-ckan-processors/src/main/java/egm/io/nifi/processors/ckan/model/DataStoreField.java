@@ -0,0 +1,10 @@
+package egm.io.nifi.processors.ckan.model;
+
+/**
+ * A field of a DataStore, as described in the datastore_create request.
+ *
+ * @param id   Name of the field
+ * @param type CKAN type of the field
+ */
+public record DataStoreField(String id, String type) {
+}
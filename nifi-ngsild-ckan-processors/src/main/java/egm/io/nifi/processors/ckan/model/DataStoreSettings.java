@@ -0,0 +1,15 @@
+package egm.io.nifi.processors.ckan.model;
+
+import java.util.List;
+
+/**
+ * Settings of the datastores records are written to.
+ *
+ * @param create      Whether the datastore of a resource is created, records are only written if it is
+ * @param writeMethod How the records are written in the datastore
+ * @param primaryKey  Columns identifying a record, declared when the datastore is created, possibly empty
+ * @param indexes     Columns indexed when the datastore is created, possibly empty
+ * @param chunkSize   Maximum number of records sent in a single request
+ */
+public record DataStoreSettings(boolean create, WriteMethod writeMethod, List<String> primaryKey, List<String> indexes, int chunkSize) {
+}
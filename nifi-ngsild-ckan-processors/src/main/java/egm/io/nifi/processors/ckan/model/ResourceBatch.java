@@ -0,0 +1,88 @@
+package egm.io.nifi.processors.ckan.model;
+
+import com.google.gson.JsonElement;
+import org.apache.nifi.flowfile.FlowFile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records targeting the same CKAN resource, collected from one or more FlowFiles so they can be
+ * written with a single datastore request.
+ */
+public class ResourceBatch {
+
+    private final String orgName;
+    private final String pkgName;
+    private final String resName;
+    private final DCATMetadata dcatMetadata;
+    private final List<Map<String, JsonElement>> records = new ArrayList<>();
+    private final Map<String, ColumnType> columnTypes = new LinkedHashMap<>();
+    private final Set<FlowFile> flowFiles = new LinkedHashSet<>();
+
+    public ResourceBatch(String orgName, String pkgName, String resName, DCATMetadata dcatMetadata) {
+        this.orgName = orgName;
+        this.pkgName = pkgName;
+        this.resName = resName;
+        this.dcatMetadata = dcatMetadata;
+    }
+
+    public static String key(String orgName, String pkgName, String resName) {
+        return orgName + "_" + pkgName + "_" + resName;
+    }
+
+    public void addRecord(Map<String, JsonElement> record, Map<String, ColumnType> recordColumnTypes, FlowFile flowFile) {
+        records.add(record);
+        mergeColumnTypes(recordColumnTypes);
+        flowFiles.add(flowFile);
+    }
+
+    public void addAll(ResourceBatch other) {
+        records.addAll(other.records);
+        mergeColumnTypes(other.columnTypes);
+        flowFiles.addAll(other.flowFiles);
+    }
+
+    private void mergeColumnTypes(Map<String, ColumnType> otherColumnTypes) {
+        otherColumnTypes.forEach((column, type) -> columnTypes.merge(column, type, ColumnType::merge));
+    }
+
+    public String getKey() {
+        return key(orgName, pkgName, resName);
+    }
+
+    public String getOrgName() {
+        return orgName;
+    }
+
+    public String getPkgName() {
+        return pkgName;
+    }
+
+    public String getResName() {
+        return resName;
+    }
+
+    public DCATMetadata getDcatMetadata() {
+        return dcatMetadata;
+    }
+
+    public List<Map<String, JsonElement>> getRecords() {
+        return records;
+    }
+
+    /**
+     * Gets the types of the columns of the records, a column holding values of different types being typed as text.
+     */
+    public Map<String, ColumnType> getColumnTypes() {
+        return columnTypes;
+    }
+
+    public Set<FlowFile> getFlowFiles() {
+        return flowFiles;
+    }
+}
@@ -0,0 +1,32 @@
+package egm.io.nifi.processors.ckan.model;
+
+/**
+ * Methods of the datastore_upsert action.
+ */
+public enum WriteMethod {
+    // adds the records, failing on records whose primary key already exists
+    INSERT("insert"),
+    // adds the records, replacing the ones whose primary key already exists
+    UPSERT("upsert"),
+    // replaces the records whose primary key already exists, failing on the others
+    UPDATE("update");
+
+    private final String method;
+
+    WriteMethod(String method) {
+        this.method = method;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public static WriteMethod fromMethod(String method) {
+        for (WriteMethod writeMethod : values()) {
+            if (writeMethod.method.equals(method)) {
+                return writeMethod;
+            }
+        }
+        throw new IllegalArgumentException("Unknown write method: " + method);
+    }
+}
@@ -1,6 +1,12 @@
 package egm.io.nifi.processors.ckan.ngsild;
 
+import egm.io.nifi.processors.ckan.model.ColumnType;
+
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class Attributes {
     public String attrName;
@@ -9,11 +15,18 @@ public class Attributes {
     public String datasetId;
     public boolean hasSubAttrs;
     public ArrayList<Attributes> subAttrs;
+    public ColumnType valueType;
+    private Map<String, Attributes> subAttrsByName; // built on the first lookup
 
     public Attributes(String attrName, String attrType, String attrValue, String datasetId, boolean hasSubAttrs, ArrayList<Attributes> subAttrs) {
+        this(attrName, attrType, attrValue, ColumnType.TEXT, datasetId, hasSubAttrs, subAttrs);
+    }
+
+    public Attributes(String attrName, String attrType, String attrValue, ColumnType valueType, String datasetId, boolean hasSubAttrs, ArrayList<Attributes> subAttrs) {
         this.attrName = attrName;
         this.attrType = attrType;
         this.attrValue = attrValue;
+        this.valueType = valueType;
         this.datasetId = datasetId;
         this.hasSubAttrs = hasSubAttrs;
         this.subAttrs = subAttrs;
@@ -40,10 +53,56 @@ public class Attributes {
         return attrValue;
     }
 
+    /**
+     * Gets the type of the column able to store the value of this attribute, according to the shape of its value.
+     */
+    public ColumnType getValueType() {
+        return valueType;
+    }
+
     public String getDatasetId() {
         return datasetId;
     }
 
+    /**
+     * Gets the first sub-attribute with the given name, ignoring case.
+     */
+    public Attributes getSubAttr(String subAttrName) {
+        if (subAttrs == null) {
+            return null;
+        }
+        if (subAttrsByName == null) {
+            subAttrsByName = indexByName(subAttrs);
+        }
+        return subAttrsByName.get(subAttrName.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Indexes attributes by their lower-cased name, keeping the first one of the attributes with the same name.
+     */
+    static Map<String, Attributes> indexByName(List<Attributes> attributes) {
+        Map<String, Attributes> attributesByName = new HashMap<>();
+        for (Attributes attribute : attributes) {
+            attributesByName.putIfAbsent(attribute.getAttrName().toLowerCase(Locale.ROOT), attribute);
+        }
+        return attributesByName;
+    }
+
+    /**
+     * Gets the observedAt sub-attribute of this attribute, if any.
+     */
+    public String getObservedAt() {
+        if (subAttrs == null) {
+            return null;
+        }
+        for (Attributes subAttr : subAttrs) {
+            if (NGSIConstants.NGSILD_OBSERVED_AT.equals(subAttr.getAttrName())) {
+                return subAttr.getAttrValue();
+            }
+        }
+        return null;
+    }
+
     @Override
     public String toString() {
         return "Attributes{" +
@@ -1,12 +1,14 @@
 package egm.io.nifi.processors.ckan.ngsild;
 
 import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
 
 public class Entity {
     public String entityId;
     public String entityType;
     public ArrayList<Attributes> entityAttrs;
-
+    private Map<String, Attributes> attrsByName; // built on the first lookup, the attributes are not changed afterwards
 
     public Entity(String entityId, String entityType, ArrayList<Attributes> entityAttrs) {
         this.entityId = entityId;
@@ -18,6 +20,19 @@ public class Entity {
         return entityAttrs;
     }
 
+    /**
+     * Gets the first attribute with the given name, ignoring case.
+     */
+    public Attributes getAttribute(String attrName) {
+        if (entityAttrs == null) {
+            return null;
+        }
+        if (attrsByName == null) {
+            attrsByName = Attributes.indexByName(entityAttrs);
+        }
+        return attrsByName.get(attrName.toLowerCase(Locale.ROOT));
+    }
+
     public String getEntityType() {
         return entityType;
     }
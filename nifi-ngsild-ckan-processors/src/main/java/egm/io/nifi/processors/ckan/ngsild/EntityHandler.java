@@ -0,0 +1,10 @@
+package egm.io.nifi.processors.ckan.ngsild;
+
+/**
+ * Receives the entities of a notification, one at a time, as they are read from the FlowFile content.
+ */
+@FunctionalInterface
+public interface EntityHandler {
+
+    void handle(Entity entity) throws Exception;
+}
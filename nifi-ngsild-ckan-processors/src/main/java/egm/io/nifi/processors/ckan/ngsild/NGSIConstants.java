@@ -15,6 +15,7 @@ public final class NGSIConstants {
     public static final String NGSILD_CREATED_AT = "createdAt";
     public static final String NGSILD_MODIFIED_AT = "modifiedAt";
     public static final String NGSILD_OBSERVED_AT = "observedAt";
+    public static final String NGSILD_INSTANCE_ID = "instanceId";
     public static final String NGSILD_TYPE = "type";
     public static final String NGSILD_VALUE = "value";
     public static final String NGSILD_OBJECT = "object";
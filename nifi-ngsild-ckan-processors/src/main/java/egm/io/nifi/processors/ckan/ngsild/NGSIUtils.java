@@ -4,16 +4,20 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import egm.io.nifi.processors.ckan.model.ColumnType;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.ProcessSession;
-import org.apache.nifi.stream.io.StreamUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import static egm.io.nifi.processors.ckan.ngsild.NGSIConstants.*;
@@ -23,85 +27,124 @@ public class NGSIUtils {
 
     private static final Logger logger = LoggerFactory.getLogger(NGSIUtils.class);
     public static List<String> IGNORED_KEYS_ON_ATTRIBUTES =
-            List.of(NGSILD_TYPE, NGSILD_VALUE, NGSILD_OBJECT, NGSILD_JSON, NGSILD_CREATED_AT, NGSILD_MODIFIED_AT, NGSILD_DATASET_ID);
+            List.of(NGSILD_TYPE, NGSILD_VALUE, NGSILD_OBJECT, NGSILD_JSON, NGSILD_CREATED_AT, NGSILD_MODIFIED_AT, NGSILD_DATASET_ID,
+                    NGSILD_INSTANCE_ID);
 
     public static String getSpecificAttributeValue(Entity entity, String attributeName) {
-        ArrayList<Attributes> entityAttributes = entity.getEntityAttrs();
-        for (Attributes attr : entityAttributes) {
-            if (attr.getAttrName().equalsIgnoreCase(attributeName))
-                return attr.getAttrValue();
-        }
+        Attributes attr = entity.getAttribute(attributeName);
+        if (attr != null)
+            return attr.getAttrValue();
         logger.info("Did not find attribute {} in entity {}", attributeName, entity.getEntityId());
 
         return null;
     }
 
     public static String getSpecificDatasetValue(Entity entity, String attributeName) {
-        Attributes servesDatasetAttribute =
-                entity.getEntityAttrs().stream()
-                        .filter(attr -> DCAT_SERVES_DATASET.equals(attr.getAttrName()))
-                        .findFirst().orElse(null);
+        Attributes servesDatasetAttribute = getServesDataset(entity);
         if (servesDatasetAttribute == null) {
             logger.warn("Did not find attribute {} in entity {}", DCAT_SERVES_DATASET, entity.getEntityId());
             return null;
         }
-        for (Attributes attr : servesDatasetAttribute.getSubAttrs()) {
-            if (attr.getAttrName().equalsIgnoreCase(attributeName))
-                return attr.getAttrValue();
-        }
+        Attributes attr = servesDatasetAttribute.getSubAttr(attributeName);
+        if (attr != null)
+            return attr.getAttrValue();
         logger.info("Did not find dataset attribute {} in entity {}", attributeName, entity.getEntityId());
 
         return null;
     }
 
-    public NGSIEvent getEventFromFlowFile(FlowFile flowFile, final ProcessSession session) {
-
-        final byte[] buffer = new byte[(int) flowFile.getSize()];
+    /**
+     * Gets the servesDataset attribute of an entity, whose name is case-sensitive.
+     */
+    public static Attributes getServesDataset(Entity entity) {
+        Attributes servesDatasetAttribute = entity.getAttribute(DCAT_SERVES_DATASET);
+        if (servesDatasetAttribute == null || DCAT_SERVES_DATASET.equals(servesDatasetAttribute.getAttrName())) {
+            return servesDatasetAttribute;
+        }
+        // an attribute with the same name in another case comes first
+        return entity.getEntityAttrs().stream()
+                .filter(attr -> DCAT_SERVES_DATASET.equals(attr.getAttrName()))
+                .findFirst().orElse(null);
+    }
 
-        session.read(flowFile, in -> StreamUtils.fillBuffer(in, buffer));
-        final String flowFileContent = new String(buffer, StandardCharsets.UTF_8);
+    public NGSIEvent getEventFromFlowFile(FlowFile flowFile, final ProcessSession session) throws Exception {
         long creationTime = flowFile.getEntryDate();
-        JsonObject content = JsonParser.parseString(flowFileContent).getAsJsonObject();
-        JsonArray data;
-        String entityType;
-        String entityId;
         ArrayList<Entity> entities = new ArrayList<>();
-        NGSIEvent event;
-
-        data = content.getAsJsonArray(NGSILD_DATA);
-        for (int i = 0; i < data.size(); i++) {
-            JsonObject lData = data.get(i).getAsJsonObject();
-            entityId = lData.get(NGSILD_ID).getAsString();
-            entityType = parseEntityTypes(lData);
-            ArrayList<Attributes> attributes = new ArrayList<>();
-
-            for (String key : lData.keySet()) {
-                if (!NGSILD_ID.equals(key) && !NGSILD_TYPE.equals(key) && !NGSILD_CONTEXT.equals(key)) {
-                    JsonElement element = lData.get(key);
-                    if (element.isJsonArray()) {
-                        // it is a multi-attribute (see section 4.5.5 in NGSI-LD specification)
-                        JsonArray values = element.getAsJsonArray();
-                        for (int j = 0; j < values.size(); j++) {
-                            JsonObject value = values.get(j).getAsJsonObject();
-                            Attributes attribute = parseNgsiLdAttribute(key, value);
-                            addAttributeIfValid(attributes, attribute);
-                        }
-                    } else if (element.isJsonObject()) {
-                        JsonObject value = element.getAsJsonObject();
+        streamEntitiesFromFlowFile(flowFile, session, entities::add);
+        return new NGSIEvent(creationTime, entities);
+    }
+
+    /**
+     * Reads the entities of the notification held by a FlowFile and hands them one at a time to the handler,
+     * without loading the whole content in memory.
+     */
+    public void streamEntitiesFromFlowFile(FlowFile flowFile, final ProcessSession session, EntityHandler handler) throws Exception {
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        session.read(flowFile, in -> {
+            try {
+                streamEntities(in, handler);
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Reads the entities of a notification from a stream and hands them one at a time to the handler.
+     * Only the entity being handled is held in memory.
+     */
+    public void streamEntities(InputStream in, EntityHandler handler) throws Exception {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (NGSILD_DATA.equals(reader.nextName())) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    JsonObject lData = JsonParser.parseReader(reader).getAsJsonObject();
+                    handler.handle(parseEntity(lData));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private Entity parseEntity(JsonObject lData) {
+        String entityId = lData.get(NGSILD_ID).getAsString();
+        String entityType = parseEntityTypes(lData);
+        ArrayList<Attributes> attributes = new ArrayList<>();
+
+        for (String key : lData.keySet()) {
+            if (!NGSILD_ID.equals(key) && !NGSILD_TYPE.equals(key) && !NGSILD_CONTEXT.equals(key)) {
+                JsonElement element = lData.get(key);
+                if (element.isJsonArray()) {
+                    // it is a multi-attribute (see section 4.5.5 in NGSI-LD specification)
+                    // or the instances of an attribute in a temporal representation (see section 4.5.7)
+                    JsonArray values = element.getAsJsonArray();
+                    for (int j = 0; j < values.size(); j++) {
+                        JsonObject value = values.get(j).getAsJsonObject();
                         Attributes attribute = parseNgsiLdAttribute(key, value);
                         addAttributeIfValid(attributes, attribute);
                     }
+                } else if (element.isJsonObject()) {
+                    JsonObject value = element.getAsJsonObject();
+                    Attributes attribute = parseNgsiLdAttribute(key, value);
+                    addAttributeIfValid(attributes, attribute);
                 }
             }
-            entities.add(new Entity(entityId, entityType, attributes));
         }
-        event = new NGSIEvent(creationTime, entities);
-        return event;
+        return new Entity(entityId, entityType, attributes);
     }
 
     private Attributes parseNgsiLdAttribute(String key, JsonObject value) {
         String attrType;
         String attrValue = "";
+        ColumnType valueType = ColumnType.TEXT;
         String datasetId;
         ArrayList<Attributes> subAttributes = new ArrayList<>();
 
@@ -112,14 +155,20 @@ public class NGSIUtils {
             attrValue = attributeValueToString(value.get(NGSILD_OBJECT));
         } else if (NGSILD_PROPERTY.contentEquals(attrType)) {
             attrValue = attributeValueToString(value.get(NGSILD_VALUE));
+            valueType = ColumnType.of(value.get(NGSILD_VALUE));
         } else if (NGSILD_GEOPROPERTY.contentEquals(attrType)) {
             attrValue = attributeValueToString(value.get(NGSILD_VALUE));
+            valueType = ColumnType.JSON;
         }
 
         for (String keyOne : value.keySet()) {
             if (IGNORED_KEYS_ON_ATTRIBUTES.contains(keyOne)) {
                 // Do Nothing
-            } else if (keyOne.equals(NGSILD_OBSERVED_AT) || keyOne.equals(NGSILD_UNIT_CODE)) {
+            } else if (keyOne.equals(NGSILD_OBSERVED_AT)) {
+                subAttributes.add(
+                    new Attributes(keyOne, "NonReifiedProperty", value.get(keyOne).getAsString(), ColumnType.TIMESTAMP, "", false, null)
+                );
+            } else if (keyOne.equals(NGSILD_UNIT_CODE)) {
                 subAttributes.add(
                     new Attributes(keyOne, "NonReifiedProperty", value.get(keyOne).getAsString(), "", false, null)
                 );
@@ -131,10 +180,11 @@ public class NGSIUtils {
                     subAttributes.add(new Attributes(keyOne, subAttrType, subAttrValue, "", false, null));
                 } else if (NGSILD_PROPERTY.contentEquals(subAttrType)) {
                     String subAttrValue = attributeValueToString(value2.get(NGSILD_VALUE));
-                    subAttributes.add(new Attributes(keyOne, subAttrType, subAttrValue, "", false, null));
+                    ColumnType subAttrValueType = ColumnType.of(value2.get(NGSILD_VALUE));
+                    subAttributes.add(new Attributes(keyOne, subAttrType, subAttrValue, subAttrValueType, "", false, null));
                 } else if (NGSILD_GEOPROPERTY.contentEquals(subAttrType)) {
                     String subAttrValue = attributeValueToString(value2.get(NGSILD_VALUE));
-                    subAttributes.add(new Attributes(keyOne, subAttrType, subAttrValue, "", false, null));
+                    subAttributes.add(new Attributes(keyOne, subAttrType, subAttrValue, ColumnType.JSON, "", false, null));
                 } else if ("entity".equals(keyOne)) {
                     value2.remove(NGSILD_ID);
                     value2.remove(NGSILD_TYPE);
@@ -159,7 +209,7 @@ public class NGSIUtils {
                 }
             }
         }
-        return new Attributes(key, attrType, attrValue, datasetId, !subAttributes.isEmpty(), subAttributes);
+        return new Attributes(key, attrType, attrValue, valueType, datasetId, !subAttributes.isEmpty(), subAttributes);
     }
 
     private String parseEntityTypes(JsonObject temporalEntity) {
@@ -179,15 +229,18 @@ public class NGSIUtils {
     private Attributes parseNgsiLdSubAttribute(String key, JsonObject value) {
         String subAttrType = value.get(NGSILD_TYPE).getAsString();
         String subAttrValue = "";
+        ColumnType subAttrValueType = ColumnType.TEXT;
         if (NGSILD_RELATIONSHIP.contentEquals(subAttrType)) {
             subAttrValue = attributeValueToString(value.get(NGSILD_OBJECT));
         } else if (NGSILD_PROPERTY.contentEquals(subAttrType)) {
             subAttrValue = attributeValueToString(value.get(NGSILD_VALUE));
+            subAttrValueType = ColumnType.of(value.get(NGSILD_VALUE));
         } else if (NGSILD_GEOPROPERTY.contentEquals(subAttrType)) {
             subAttrValue = attributeValueToString(value.get(NGSILD_VALUE));
+            subAttrValueType = ColumnType.JSON;
         }
 
-        return new Attributes(key.toLowerCase(), subAttrType, subAttrValue, "", false, null);
+        return new Attributes(key.toLowerCase(), subAttrType, subAttrValue, subAttrValueType, "", false, null);
     }
 
     // When this processor is used in a flow with a `Join Enrichment` processor, it harmonizes JSON among all processed entities,
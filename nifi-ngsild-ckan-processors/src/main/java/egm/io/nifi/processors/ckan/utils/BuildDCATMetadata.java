@@ -10,17 +10,7 @@ public class BuildDCATMetadata {
 
     public static DCATMetadata getMetadataFromEntity(Entity entity, String publisherUrl) {
         DCATMetadata dcatMetadata = new DCATMetadata();
-        dcatMetadata.setAccessURL(NGSIUtils.getSpecificAttributeValue(entity, "accessURL"));
-        dcatMetadata.setAvailability(NGSIUtils.getSpecificAttributeValue(entity, "availability"));
-        dcatMetadata.setMimeType(NGSIUtils.getSpecificAttributeValue(entity, "mediaType"));
-        dcatMetadata.setLicense(NGSIUtils.getSpecificAttributeValue(entity, "license"));
-        dcatMetadata.setDownloadURL(NGSIUtils.getSpecificAttributeValue(entity, "downloadURL"));
-        dcatMetadata.setByteSize(NGSIUtils.getSpecificAttributeValue(entity, "byteSize"));
-        dcatMetadata.setResourceRights(NGSIUtils.getSpecificAttributeValue(entity, "rights"));
-        dcatMetadata.setResourceDescription(NGSIUtils.getSpecificAttributeValue(entity, "description"));
-        dcatMetadata.setResourceName(NGSIUtils.getSpecificAttributeValue(entity, "title"));
-        dcatMetadata.setLicenseType(NGSIUtils.getSpecificAttributeValue(entity, "licenseType"));
-        dcatMetadata.setFormat(JSON_LD_FORMAT);
+        setResourceMetadata(dcatMetadata, entity);
 
         dcatMetadata.setPackageDescription(NGSIUtils.getSpecificDatasetValue(entity, "description"));
         dcatMetadata.setPackageName(NGSIUtils.getSpecificDatasetValue(entity, "title"));
@@ -48,4 +38,46 @@ public class BuildDCATMetadata {
 
         return dcatMetadata;
     }
+
+    /**
+     * Gets the metadata of an entity whose dataset metadata were already extracted from another entity serving the
+     * same dataset: only the resource metadata are extracted from the entity.
+     */
+    public static DCATMetadata getMetadataFromEntity(Entity entity, DCATMetadata datasetMetadata) {
+        DCATMetadata dcatMetadata = new DCATMetadata();
+        setResourceMetadata(dcatMetadata, entity);
+
+        dcatMetadata.setPackageDescription(datasetMetadata.getPackageDescription());
+        dcatMetadata.setPackageName(datasetMetadata.getPackageName());
+        dcatMetadata.setContactPoint(datasetMetadata.getContactPoint());
+        dcatMetadata.setContactName(datasetMetadata.getContactName());
+        dcatMetadata.setContactEmail(datasetMetadata.getContactEmail());
+        dcatMetadata.setKeywords(datasetMetadata.getKeywords());
+        dcatMetadata.setPublisherURL(datasetMetadata.getPublisherURL());
+        dcatMetadata.setSpatialUri(datasetMetadata.getSpatialUri());
+        dcatMetadata.setSpatialCoverage(datasetMetadata.getSpatialCoverage());
+        dcatMetadata.setTemporalStart(datasetMetadata.getTemporalStart());
+        dcatMetadata.setTemporalEnd(datasetMetadata.getTemporalEnd());
+        dcatMetadata.setThemes(datasetMetadata.getThemes());
+        dcatMetadata.setVersion(datasetMetadata.getVersion());
+        dcatMetadata.setLandingPage(datasetMetadata.getLandingPage());
+        dcatMetadata.setVisibility(datasetMetadata.getVisibility());
+        dcatMetadata.setDatasetRights(datasetMetadata.getDatasetRights());
+
+        return dcatMetadata;
+    }
+
+    private static void setResourceMetadata(DCATMetadata dcatMetadata, Entity entity) {
+        dcatMetadata.setAccessURL(NGSIUtils.getSpecificAttributeValue(entity, "accessURL"));
+        dcatMetadata.setAvailability(NGSIUtils.getSpecificAttributeValue(entity, "availability"));
+        dcatMetadata.setMimeType(NGSIUtils.getSpecificAttributeValue(entity, "mediaType"));
+        dcatMetadata.setLicense(NGSIUtils.getSpecificAttributeValue(entity, "license"));
+        dcatMetadata.setDownloadURL(NGSIUtils.getSpecificAttributeValue(entity, "downloadURL"));
+        dcatMetadata.setByteSize(NGSIUtils.getSpecificAttributeValue(entity, "byteSize"));
+        dcatMetadata.setResourceRights(NGSIUtils.getSpecificAttributeValue(entity, "rights"));
+        dcatMetadata.setResourceDescription(NGSIUtils.getSpecificAttributeValue(entity, "description"));
+        dcatMetadata.setResourceName(NGSIUtils.getSpecificAttributeValue(entity, "title"));
+        dcatMetadata.setLicenseType(NGSIUtils.getSpecificAttributeValue(entity, "licenseType"));
+        dcatMetadata.setFormat(JSON_LD_FORMAT);
+    }
 }
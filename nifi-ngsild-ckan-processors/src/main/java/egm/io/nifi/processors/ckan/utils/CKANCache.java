@@ -1,15 +1,33 @@
 package egm.io.nifi.processors.ckan.utils;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import egm.io.nifi.processors.ckan.http.CKANException;
 import egm.io.nifi.processors.ckan.http.HttpBackend;
 import egm.io.nifi.processors.ckan.http.JsonResponse;
 import okhttp3.Headers;
+import okhttp3.OkHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -18,40 +36,343 @@ import java.util.HashMap;
 public class CKANCache extends HttpBackend {
 
     private static final Logger logger = LoggerFactory.getLogger(CKANCache.class);
+    private static final String ORG_PREFIX = "org:";
+    private static final String PKG_PREFIX = "pkg:";
+    private static final String RES_PREFIX = "res:";
     private final String apiKey;
-    private final HashMap<String, HashMap<String, ArrayList<String>>> tree; // this cache only contain human readable names
-    private final HashMap<String, String> orgMap; // this cache contains the translation from organization name to identifier
-    private final HashMap<String, String> pkgMap; // this cache contains the translation from package name to identifier
-    private final HashMap<String, String> resMap; // this cache contains the translation from resource name to identifier
-
-    public CKANCache(String url, String apiKey) {
-        super(url);
+    private final Cache<String, String> orgMap; // this cache contains the translation from organization name to identifier
+    private final Cache<String, String> pkgMap; // this cache contains the translation from package name to identifier
+    private final Cache<String, String> resMap; // this cache contains the translation from resource name to identifier
+    private final Cache<String, Map<String, String>> fieldsMap; // this cache contains the datastore fields and their types, by resource identifier
+    private final Cache<String, Boolean> viewsMap; // this cache contains the resources known to have a view, by resource identifier
+    private final Cache<String, Boolean> notFound; // this cache contains the objects recently found missing in CKAN
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inFlight; // this contains the lookups or creations being run
+    private final CKANCacheSettings settings;
+    private volatile long warmedUpAt; // the time of the last warm-up, in nanoseconds, 0 if never warmed up
+    private final AtomicLong modifications = new AtomicLong(); // this counts the changes of the identifiers, to know when to take a snapshot
+
+    public CKANCache(String url, String apiKey, CKANCacheSettings settings, OkHttpClient httpClient) {
+        super(url, httpClient);
         this.apiKey = apiKey;
-        tree = new HashMap<>();
-        orgMap = new HashMap<>();
-        pkgMap = new HashMap<>();
-        resMap = new HashMap<>();
+        this.settings = settings;
+        // Bounded with W-TinyLFU eviction, and expired so that objects renamed or deleted in CKAN are looked up again
+        orgMap = Caffeine.newBuilder()
+            .maximumSize(settings.maximumSize())
+            .expireAfterWrite(settings.expiration())
+            .build();
+        pkgMap = Caffeine.newBuilder()
+            .maximumSize(settings.maximumSize())
+            .expireAfterWrite(settings.expiration())
+            .build();
+        resMap = Caffeine.newBuilder()
+            .maximumSize(settings.maximumSize())
+            .expireAfterWrite(settings.expiration())
+            .build();
+        fieldsMap = Caffeine.newBuilder()
+            .maximumSize(settings.maximumSize())
+            .expireAfterWrite(settings.expiration())
+            .build();
+        viewsMap = Caffeine.newBuilder()
+            .maximumSize(settings.maximumSize())
+            .expireAfterWrite(settings.expiration())
+            .build();
+        notFound = Caffeine.newBuilder()
+            .maximumSize(settings.maximumSize())
+            .expireAfterWrite(settings.negativeExpiration())
+            .build();
+        inFlight = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Runs the lookup or creation of a CKAN object. Concurrent callers asking for the same key wait for the
+     * call already running and share its result (or its failure) instead of running it again, while callers
+     * asking for other keys are not blocked.
+     *
+     * @param key            Key identifying the CKAN object
+     * @param lookupOrCreate Lookup or creation returning the identifier (or description) of the CKAN object
+     * @return The identifier (or description) of the CKAN object
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T singleFlight(String key, Callable<T> lookupOrCreate) throws Exception {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> runningCall = inFlight.putIfAbsent(key, call);
+        if (runningCall != null) {
+            logger.debug("Waiting for the lookup or creation already running (key={})", key);
+            try {
+                return (T) runningCall.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+        }
+
+        try {
+            T id = lookupOrCreate.call();
+            call.complete(id);
+            return id;
+        } catch (Exception e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, call);
+        }
+    }
+
+    /**
+     * Fills the cache with the organizations of CKAN, then with its packages and their resources, so that the objects
+     * already in CKAN are not looked up one by one by the first notifications. The pages of packages are requested
+     * concurrently, no more packages than the cache can hold are requested, and the warm-up stops at the timeout,
+     * keeping what was cached so far. It is skipped if the cache was warmed up less than an expiration ago, for
+     * instance for another processor sharing it.
+     *
+     * @param pageSize Number of organizations or packages requested at a time
+     * @param timeout  Maximum duration of the warm-up
+     */
+    public void warmUp(int pageSize, Duration timeout) throws Exception {
+        singleFlight("warm-up", () -> {
+            long start = System.nanoTime();
+            if (warmedUpAt != 0 && start - warmedUpAt < settings.expiration().toNanos()) {
+                logger.info("The cache was warmed up {} ago, not warming it up again", Duration.ofNanos(start - warmedUpAt));
+                return null;
+            }
+
+            Listing listing = listIds(pageSize, timeout);
+            restore(listing.ids());
+            warmedUpAt = System.nanoTime();
+            logger.info("Cache warm-up done in {}: {} identifiers cached", Duration.ofNanos(warmedUpAt - start), listing.ids().size());
+            return null;
+        });
+    }
+
+    /**
+     * Checks identifiers restored from a snapshot against CKAN, listing its objects like the warm-up does. Restored
+     * identifiers of objects that are no longer in CKAN are dropped, provided the whole of CKAN could be listed, and
+     * the cache is filled with the listed ones, which also replace the restored identifiers that changed.
+     *
+     * @param restored Identifiers restored from the snapshot, as given by {@link #snapshot()}
+     * @param pageSize Number of organizations or packages requested at a time
+     * @param timeout  Maximum duration of the check
+     */
+    public void validate(Map<String, String> restored, int pageSize, Duration timeout) throws Exception {
+        singleFlight("warm-up", () -> {
+            long start = System.nanoTime();
+            Listing listing = listIds(pageSize, timeout);
+            long dropped = 0;
+            if (listing.complete()) {
+                for (String key : restored.keySet()) {
+                    if (!listing.ids().containsKey(key)) {
+                        invalidate(key);
+                        dropped++;
+                    }
+                }
+            } else {
+                logger.warn("CKAN could not be fully listed, the restored identifiers not listed are kept until they expire");
+            }
+            restore(listing.ids());
+            warmedUpAt = System.nanoTime();
+            logger.info("Restored cache checked in {}: {} identifiers dropped, {} identifiers cached", Duration.ofNanos(warmedUpAt - start),
+                dropped, listing.ids().size());
+            return null;
+        });
+    }
+
+    /**
+     * Identifiers of the objects listed in CKAN, keyed like in a snapshot.
+     *
+     * @param complete Whether all the objects of CKAN were listed
+     */
+    private record Listing(Map<String, String> ids, boolean complete) {
+    }
+
+    private Listing listIds(int pageSize, Duration timeout) throws Exception {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        Headers headers = new Headers.Builder().add("Authorization", apiKey).build();
+        Map<String, String> ids = new ConcurrentHashMap<>();
+        boolean complete = true;
+
+        // packages only reference their organization by id in some CKAN versions, the names are kept to resolve them
+        Map<String, String> orgNames = new HashMap<>();
+        // CKAN may return fewer organizations than asked for with all their fields, the listing ends with an empty page
+        for (int offset = 0; ; ) {
+            JsonArray organizations = getListingResult(doRequest("GET", "/api/3/action/organization_list?all_fields=true&limit="
+                + pageSize + "&offset=" + offset, headers, null), "organizations").getAsJsonArray();
+            for (JsonElement organization : organizations) {
+                String orgId = organization.getAsJsonObject().get("id").getAsString();
+                String orgName = organization.getAsJsonObject().get("name").getAsString();
+                ids.put(ORG_PREFIX + orgName, orgId);
+                orgNames.put(orgId, orgName);
+            }
+            offset += organizations.size();
+            if (organizations.isEmpty()) {
+                break;
+            } else if (System.nanoTime() > deadline) {
+                complete = false;
+                break;
+            }
+        }
+        logger.info("Listing CKAN: {} organizations listed", orgNames.size());
+
+        String searchPath = "/api/3/action/package_search?include_private=true&sort=name+asc&rows=" + pageSize + "&start=";
+        JsonObject firstPage = getListingResult(doRequest("GET", searchPath + 0, headers, null), "packages").getAsJsonObject();
+        long count = firstPage.get("count").getAsLong();
+        long total = Math.min(count, settings.maximumSize());
+        if (total < count) {
+            complete = false;
+        }
+        JsonArray firstResults = firstPage.getAsJsonArray("results");
+        AtomicLong listedPackages = new AtomicLong(collectPackages(firstResults, orgNames, ids));
+
+        // CKAN caps the rows of a search (ckan.search.rows_max), the pages are as large as the first one
+        int stride = Math.max(Math.min(pageSize, firstResults.size()), 1);
+        List<CompletableFuture<Void>> pages = new ArrayList<>();
+        for (long pageStart = stride; pageStart < total; pageStart += stride) {
+            pages.add(doRequestAsync("GET", searchPath + pageStart, headers, null).thenAccept(res -> {
+                try {
+                    JsonObject page = getListingResult(res, "packages").getAsJsonObject();
+                    long listed = listedPackages.addAndGet(collectPackages(page.getAsJsonArray("results"), orgNames, ids));
+                    logger.info("Listing CKAN: {}/{} packages listed", listed, total);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }));
+        }
+
+        for (CompletableFuture<Void> page : pages) {
+            try {
+                page.get(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                logger.warn("Listing CKAN timed out after {}, {}/{} packages listed", timeout, listedPackages.get(), total);
+                pages.forEach(pending -> pending.cancel(false));
+                complete = false;
+                break;
+            } catch (InterruptedException e) {
+                pages.forEach(pending -> pending.cancel(false));
+                throw e;
+            } catch (ExecutionException e) {
+                // the packages of this page are looked up when they are first needed
+                logger.warn("Could not list a page of packages: {}", e.getCause().getMessage());
+                complete = false;
+            }
+        }
+        return new Listing(ids, complete);
+    }
+
+    private JsonElement getListingResult(JsonResponse res, String objects) throws CKANException {
+        if (res.statusCode() != 200) {
+            throw requestFailure("Could not list the " + objects + " (statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
+        }
+        return res.jsonObject().get("result");
+    }
+
+    // packages without organization are left out, the processors never write to them
+    private long collectPackages(JsonArray packages, Map<String, String> orgNames, Map<String, String> ids) {
+        long listed = 0;
+        for (JsonElement element : packages) {
+            JsonObject pkgObject = element.getAsJsonObject();
+            String orgName = null;
+            if (pkgObject.has("organization") && pkgObject.get("organization").isJsonObject()) {
+                orgName = pkgObject.getAsJsonObject("organization").get("name").getAsString();
+            } else if (pkgObject.has("owner_org") && !pkgObject.get("owner_org").isJsonNull()) {
+                orgName = orgNames.get(pkgObject.get("owner_org").getAsString());
+            }
+            if (orgName == null) {
+                continue;
+            }
+
+            String pkgName = pkgObject.get("name").getAsString();
+            ids.put(PKG_PREFIX + orgName + "_" + pkgName, pkgObject.get("id").getAsString());
+            JsonArray resources = pkgObject.getAsJsonArray("resources");
+            if (resources != null) {
+                for (JsonElement resource : resources) {
+                    JsonObject resourceObject = resource.getAsJsonObject();
+                    if (resourceObject.has("name") && !resourceObject.get("name").isJsonNull()) {
+                        ids.put(RES_PREFIX + orgName + "_" + pkgName + "_" + resourceObject.get("name").getAsString(),
+                            resourceObject.get("id").getAsString());
+                    }
+                }
+            }
+            listed++;
+        }
+        return listed;
+    }
+
+    /**
+     * Gets the organization, package and resource identifiers of the cache, keyed by their level and their names,
+     * for instance pkg:orgName_pkgName. The datastore fields are left out, they are looked up again when needed.
+     */
+    public Map<String, String> snapshot() {
+        Map<String, String> snapshot = new HashMap<>();
+        orgMap.asMap().forEach((name, id) -> snapshot.put(ORG_PREFIX + name, id));
+        pkgMap.asMap().forEach((name, id) -> snapshot.put(PKG_PREFIX + name, id));
+        resMap.asMap().forEach((name, id) -> snapshot.put(RES_PREFIX + name, id));
+        return snapshot;
+    }
+
+    /**
+     * Puts identifiers in the cache, keyed like in a {@link #snapshot()}. Unknown keys are ignored.
+     */
+    public void restore(Map<String, String> snapshot) {
+        snapshot.forEach((key, id) -> {
+            Cache<String, String> map = getMap(key);
+            if (map != null) {
+                map.put(key.substring(key.indexOf(':') + 1), id);
+            }
+        });
+        modifications.incrementAndGet();
+    }
+
+    private void invalidate(String key) {
+        Cache<String, String> map = getMap(key);
+        if (map != null) {
+            map.invalidate(key.substring(key.indexOf(':') + 1));
+            modifications.incrementAndGet();
+        }
+    }
+
+    private Cache<String, String> getMap(String key) {
+        if (key.startsWith(ORG_PREFIX)) {
+            return orgMap;
+        } else if (key.startsWith(PKG_PREFIX)) {
+            return pkgMap;
+        } else if (key.startsWith(RES_PREFIX)) {
+            return resMap;
+        }
+        return null;
+    }
+
+    /**
+     * Gets a number increased each time identifiers are added to or removed from the cache, so that a snapshot is
+     * only taken when the cache changed.
+     */
+    public long getModificationCount() {
+        return modifications.get();
+    }
+
+    /**
+     * Gets the sizing and expiration of the cache.
+     */
+    public CKANCacheSettings getSettings() {
+        return settings;
     }
 
     /**
      * Gets the organization id, given its name.
      */
     public String getOrgId(String orgName) {
-        return orgMap.get(orgName);
+        return orgMap.getIfPresent(orgName);
     } // getOrgId
 
     /**
      * Gets the package id, given its name.
      */
     public String getPkgId(String orgName, String pkgName) {
-        return pkgMap.get(orgName + "_" + pkgName);
+        return pkgMap.getIfPresent(orgName + "_" + pkgName);
     } // getPkgId
 
     /**
      * Gets the resource id, given its name.
      */
     public String getResId(String orgName, String pkgName, String resName) {
-        return resMap.get(orgName + "_" + pkgName + "_" + resName);
+        return resMap.getIfPresent(orgName + "_" + pkgName + "_" + resName);
     } // getResId
 
     /**
@@ -62,6 +383,8 @@ public class CKANCache extends HttpBackend {
      */
     public void setOrgId(String orgName, String orgId) {
         orgMap.put(orgName, orgId);
+        modifications.incrementAndGet();
+        notFound.invalidate("org:" + orgName);
     } // setOrgId
 
     /**
@@ -69,6 +392,8 @@ public class CKANCache extends HttpBackend {
      */
     public void setPkgId(String orgName, String pkgName, String pkgId) {
         pkgMap.put(orgName + "_" + pkgName, pkgId);
+        modifications.incrementAndGet();
+        notFound.invalidate("pkg:" + orgName + "_" + pkgName);
     } // setPkgId
 
     /**
@@ -76,28 +401,127 @@ public class CKANCache extends HttpBackend {
      */
     public void setResId(String orgName, String pkgName, String resName, String resId) {
         resMap.put(orgName + "_" + pkgName + "_" + resName, resId);
+        modifications.incrementAndGet();
+        notFound.invalidate("res:" + orgName + "_" + pkgName + "_" + resName);
     } // setResId
 
     /**
-     * Adds an organization to the tree.
+     * Gets the fields of the datastore of a resource and their types, given the resource id.
+     */
+    public Map<String, String> getDataStoreFields(String resId) {
+        return fieldsMap.getIfPresent(resId);
+    } // getDataStoreFields
+
+    /**
+     * Sets the fields of the datastore of a resource and their types, given the resource id.
+     *
+     * @param resId  Resource id
+     * @param fields Fields of the datastore and their types, in the order of the datastore columns
      */
-    public void addOrg(String orgName) {
-        tree.put(orgName, new HashMap<>());
-    } // addOrg
+    public void setDataStoreFields(String resId, Map<String, String> fields) {
+        fieldsMap.put(resId, Collections.unmodifiableMap(new LinkedHashMap<>(fields)));
+    } // setDataStoreFields
 
     /**
-     * Adds a package to the tree within a given package.
+     * Sets that a resource has a view, given the resource id.
      */
-    public void addPkg(String orgName, String pkgName) {
-        tree.get(orgName).put(pkgName, new ArrayList<>());
-    } // addPkg
+    public void setView(String resId) {
+        viewsMap.put(resId, Boolean.TRUE);
+    } // setView
 
     /**
-     * Adds a resource to the tree within a given package within a given organization.
+     * Gets if a resource is known to have a view, without querying CKAN.
      */
-    public void addRes(String orgName, String pkgName, String resName) {
-        tree.get(orgName).get(pkgName).add(resName);
-    } // addRes
+    public boolean hasCachedView(String resId) {
+        return viewsMap.getIfPresent(resId) != null;
+    } // hasCachedView
+
+    /**
+     * Checks if a view of a resource is cached. If not cached, CKAN is queried in order to update the cache. Only
+     * resources having a view are cached, so that a view missing in CKAN is created.
+     *
+     * @param resId Resource id
+     * @return True if the resource has a view, false otherwise
+     */
+    public boolean isCachedView(String resId) throws Exception {
+        if (viewsMap.getIfPresent(resId) != null) {
+            logger.debug("View found in the cache (resId={})", resId);
+            getMetrics().recordCacheLookup("view", true);
+            return true;
+        }
+        getMetrics().recordCacheLookup("view", false);
+
+        logger.info("View not found in the cache, querying CKAN for it (resId={})", resId);
+
+        String ckanURL = "/api/3/action/resource_view_list?id=" + resId;
+        Headers headers = new Headers.Builder().add("Authorization", apiKey).build();
+        JsonResponse res = doRequest("GET", ckanURL, headers, null);
+
+        if (res.statusCode() == 200) {
+            if (res.jsonObject().getAsJsonArray("result").isEmpty()) {
+                logger.info("View not found in CKAN (resId={})", resId);
+                return false;
+            }
+            setView(resId);
+            logger.info("View found in CKAN, now cached (resId={})", resId);
+            return true;
+        }
+        throw requestFailure("Could not check if the view exists (resId=" + resId
+            + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
+    }
+
+    /**
+     * Checks if the fields of the datastore of a resource are cached. If not cached, CKAN is queried in order to
+     * update the cache. A resource without datastore is cached with no fields.
+     *
+     * @param resId Resource id
+     * @return True if the fields were cached, false otherwise
+     */
+    public boolean isCachedDataStoreFields(String resId) throws Exception {
+        if (getDataStoreFields(resId) != null) {
+            logger.debug("Datastore fields found in the cache (resId={})", resId);
+            getMetrics().recordCacheLookup("fields", true);
+            return true;
+        }
+        getMetrics().recordCacheLookup("fields", false);
+
+        logger.info("Datastore fields not found in the cache, querying CKAN for them (resId={})", resId);
+
+        String ckanURL = "/api/3/action/datastore_info?id=" + resId;
+        Headers headers = new Headers.Builder().add("Authorization", apiKey).build();
+        JsonResponse res = doRequest("GET", ckanURL, headers, null);
+
+        switch (res.statusCode()) {
+            case 200:
+                JsonObject result = res.jsonObject().getAsJsonObject("result");
+                Map<String, String> fields = new LinkedHashMap<>();
+                if (result.has("fields")) {
+                    // CKAN 2.10 and later describe the fields as a list, in the order of the columns
+                    for (JsonElement field : result.getAsJsonArray("fields")) {
+                        JsonObject fieldObject = field.getAsJsonObject();
+                        fields.put(fieldObject.get("id").getAsString(), fieldObject.get("type").getAsString());
+                    }
+                } else if (result.has("schema")) {
+                    // older CKAN versions describe the fields as a map from name to type
+                    for (Map.Entry<String, JsonElement> field : result.getAsJsonObject("schema").entrySet()) {
+                        fields.put(field.getKey(), field.getValue().getAsString());
+                    }
+                }
+                // internal columns are managed by CKAN
+                fields.remove("_id");
+                fields.remove("_full_text");
+                setDataStoreFields(resId, fields);
+                logger.info("Datastore fields found in CKAN, now cached (resId={}, fields={})", resId, fields.keySet());
+                return true;
+            case 404:
+                logger.info("Datastore not found in CKAN (resId={})", resId);
+                setDataStoreFields(resId, Map.of());
+                return false;
+            default:
+                throw requestFailure("Could not get the datastore fields (resId=" + resId
+                    + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
+        }
+    }
 
     /**
      * Checks if the organization is cached. If not cached, CKAN is queried in order to update the cache.
@@ -107,11 +531,19 @@ public class CKANCache extends HttpBackend {
      */
     public boolean isCachedOrg(String orgName) throws Exception {
         // check if the organization has already been cached
-        if (tree.containsKey(orgName)) {
-            logger.info("Organization found in the cache (orgName={})", orgName);
+        if (getOrgId(orgName) != null) {
+            logger.debug("Organization found in the cache (orgName={})", orgName);
+            getMetrics().recordCacheLookup("organization", true);
             return true;
         } // if
 
+        if (notFound.getIfPresent("org:" + orgName) != null) {
+            logger.debug("Organization recently not found in CKAN, not querying it again (orgName={})", orgName);
+            getMetrics().recordCacheLookup("organization", true);
+            return false;
+        }
+        getMetrics().recordCacheLookup("organization", false);
+
         logger.info("Organization not found in the cache, querying CKAN for it (orgName={})", orgName);
 
         // query CKAN for the organization information
@@ -126,35 +558,43 @@ public class CKANCache extends HttpBackend {
                 // the organization exists in CKAN
                 JsonObject result = res.jsonObject().getAsJsonObject("result");
 
-                // put the organization in the tree and in the organization map
+                // put the organization in the organization map
                 String orgId = result.get("id").getAsString();
-                tree.put(orgName, new HashMap<>());
-                orgMap.put(orgName, orgId);
+                setOrgId(orgName, orgId);
                 logger.info("Organization found in CKAN, now cached (orgName/orgId={}/{})", orgName, orgId);
                 return true;
             case 404:
                 logger.info("Organization '{}' not found in CKAN", orgName);
+                notFound.put("org:" + orgName, Boolean.TRUE);
                 return false;
             default:
-                throw new Exception("Could not check if the organization exists ("
-                    + "orgName=" + orgName + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+                throw requestFailure("Could not check if the organization exists ("
+                    + "orgName=" + orgName + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
     /**
      * Checks if the package is cached. If not cached, CKAN is queried in order to update the cache.
-     * This method assumes the given organization exists and it is cached.
+     * This method assumes the given organization exists.
      *
      * @param orgName Organization name
      * @param pkgName Package name
      * @return True if the organization was cached, false otherwise
      */
     public boolean isCachedPkg(String orgName, String pkgName) throws Exception {
-        if (tree.get(orgName).containsKey(pkgName)) {
-            logger.info("Package found in the cache (orgName={}, pkgName={})", orgName, pkgName);
+        if (getPkgId(orgName, pkgName) != null) {
+            logger.debug("Package found in the cache (orgName={}, pkgName={})", orgName, pkgName);
+            getMetrics().recordCacheLookup("package", true);
             return true;
         }
 
+        if (notFound.getIfPresent("pkg:" + orgName + "_" + pkgName) != null) {
+            logger.debug("Package recently not found in CKAN, not querying it again (orgName={}, pkgName={})", orgName, pkgName);
+            getMetrics().recordCacheLookup("package", true);
+            return false;
+        }
+        getMetrics().recordCacheLookup("package", false);
+
         logger.info("Package not found in the cache, querying CKAN for it (orgName={}, pkgName={})", orgName, pkgName);
 
         // query CKAN for the package information
@@ -168,6 +608,7 @@ public class CKANCache extends HttpBackend {
                 JsonObject result = (JsonObject) res.jsonObject().get("result");
                 if (result.get("count").getAsLong() == 0L) {
                     logger.info("Package '{}' not found in CKAN", pkgName);
+                    notFound.put("pkg:" + orgName + "_" + pkgName, Boolean.TRUE);
                     return false;
                 }
 
@@ -178,13 +619,12 @@ public class CKANCache extends HttpBackend {
                 String pkgState = pkgObject.get("state").getAsString();
 
                 if (pkgState.equals("deleted")) {
-                    throw new Exception("The package '" + pkgName + "' exists but it is in a "
+                    throw new CKANException("The package '" + pkgName + "' exists but it is in a "
                             + "deleted state");
                 }
 
-                // put the package in the tree and in the package map
+                // put the package in the package map
                 String pkgId = pkgObject.get("id").getAsString();
-                tree.get(orgName).put(pkgName, new ArrayList<>());
                 setPkgId(orgName, pkgName, pkgId);
                 logger.info("Package found in CKAN, now cached (orgName={}, pkgName/pkgId={}/{})", orgName, pkgName, pkgId);
 
@@ -194,16 +634,17 @@ public class CKANCache extends HttpBackend {
                 populateResourcesMap(resources, orgName, pkgName, false);
                 return true;
             case 404:
+                notFound.put("pkg:" + orgName + "_" + pkgName, Boolean.TRUE);
                 return false;
             default:
-                throw new Exception("Could not check if the package exists ("
-                    + "orgName=" + orgName + ", pkgName=" + pkgName + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+                throw requestFailure("Could not check if the package exists ("
+                    + "orgName=" + orgName + ", pkgName=" + pkgName + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
     /**
      * Checks if the resource is cached. If not cached, CKAN is queried in order to update the cache.
-     * This method assumes the given organization and package exist and they are cached.
+     * This method assumes the given organization and package exist.
      *
      * @param orgName Organization name
      * @param pkgName Package name
@@ -211,11 +652,20 @@ public class CKANCache extends HttpBackend {
      * @return True if the organization was cached, false otherwise
      */
     public boolean isCachedRes(String orgName, String pkgName, String resName) throws Exception {
-        if (tree.get(orgName).get(pkgName).contains(resName)) {
-            logger.info("Resource found in the cache (orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
+        if (getResId(orgName, pkgName, resName) != null) {
+            logger.debug("Resource found in the cache (orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
+            getMetrics().recordCacheLookup("resource", true);
             return true;
         }
 
+        if (notFound.getIfPresent("res:" + orgName + "_" + pkgName + "_" + resName) != null) {
+            logger.debug("Resource recently not found in CKAN, not querying it again "
+                    + "(orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
+            getMetrics().recordCacheLookup("resource", true);
+            return false;
+        }
+        getMetrics().recordCacheLookup("resource", false);
+
         logger.info("Resource not found in the cache, querying CKAN for the whole package containing it "
                 + "(orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
 
@@ -239,28 +689,31 @@ public class CKANCache extends HttpBackend {
                 JsonArray resources = result.getAsJsonArray("resources");
 
                 if (resources.isEmpty()) {
+                    notFound.put("res:" + orgName + "_" + pkgName + "_" + resName, Boolean.TRUE);
                     return false;
                 } else {
                     logger.info("Going to populate the resources cache (orgName=\"{}\", pkgName=\"{}\")", orgName, pkgName);
                     populateResourcesMap(resources, orgName, pkgName, true);
 
                     // check if the resource is within the resources cache, once populated
-                    if (tree.get(orgName).get(pkgName).contains(resName)) {
+                    if (getResId(orgName, pkgName, resName) != null) {
                         logger.info("Resource found in the cache, once queried CKAN " +
                                 "(orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
                         return true;
                     } else {
                         logger.info("Resource not found in the cache, once queried CKAN " +
                                 "(orgName=\"{}\", pkgName=\"{}\", resName=\"{}\")", orgName, pkgName, resName);
+                        notFound.put("res:" + orgName + "_" + pkgName + "_" + resName, Boolean.TRUE);
                         return false;
                     }
                 }
             case 404:
+                notFound.put("res:" + orgName + "_" + pkgName + "_" + resName, Boolean.TRUE);
                 return false;
             default:
-                throw new Exception("Could not check if the resource exists ("
+                throw requestFailure("Could not check if the resource exists ("
                     + "orgName=" + orgName + ", pkgName=" + pkgName + ", resName=" + resName
-                    + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")");
+                    + ", statusCode=" + res.statusCode() + ", response=" + res.jsonObject() + ")", res);
         }
     }
 
@@ -286,14 +739,13 @@ public class CKANCache extends HttpBackend {
             String resourceName = resourceObject.get("name").getAsString();
             String resourceId = resourceObject.get("id").getAsString();
 
-            // put the resource in the tree and in the resource map
+            // put the resource in the resource map
             if (checkExistence) {
-                if (tree.get(orgName).get(pkgName).contains(resourceName)) {
+                if (getResId(orgName, pkgName, resourceName) != null) {
                     continue;
                 }
             }
 
-            tree.get(orgName).get(pkgName).add(resourceName);
             this.setResId(orgName, pkgName, resourceName, resourceId);
             logger.info("Resource found in CKAN, now cached (orgName={}, pkgName={}, " +
                 "resourceName/resourceId={}/{})", orgName, pkgName, resourceName, resourceId);
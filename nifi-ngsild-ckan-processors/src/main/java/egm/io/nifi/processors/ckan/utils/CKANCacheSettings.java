@@ -0,0 +1,17 @@
+package egm.io.nifi.processors.ckan.utils;
+
+import java.time.Duration;
+
+/**
+ * Sizing and expiration of the CKAN identifiers cache.
+ *
+ * @param maximumSize        Maximum number of identifiers cached per level (organizations, packages and resources)
+ * @param expiration         Time after which a cached identifier is dropped and looked up again in CKAN
+ * @param negativeExpiration Time during which an object not found in CKAN is not looked up again
+ */
+public record CKANCacheSettings(
+    long maximumSize,
+    Duration expiration,
+    Duration negativeExpiration
+) {
+}
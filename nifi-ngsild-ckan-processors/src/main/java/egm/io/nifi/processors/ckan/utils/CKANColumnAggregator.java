@@ -1,14 +1,15 @@
 package egm.io.nifi.processors.ckan.utils;
 
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.google.gson.JsonPrimitive;
+import egm.io.nifi.processors.ckan.model.ColumnType;
 import egm.io.nifi.processors.ckan.ngsild.Attributes;
 import egm.io.nifi.processors.ckan.ngsild.Entity;
 import egm.io.nifi.processors.ckan.ngsild.NGSIConstants;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * Class for aggregating batches in column mode.
@@ -16,34 +17,91 @@ import java.util.stream.Collectors;
 public class CKANColumnAggregator {
 
     private final Map<String, JsonElement> aggregation = new LinkedHashMap<>();
+    private final Map<String, ColumnType> columnTypes = new LinkedHashMap<>();
 
     /**
-     * Linked hash map without default fields linked hash map.
-     *
-     * @return the linked hash map without metadata objects (if attrMetadataStore is set to true)
-     *  also removes "_type" and "RECV_TIME_TSC" keys from the object
+     * Gets the record to be written in the datastore, its column values in the order the attributes were aggregated.
+     * The internal types of the attributes and the "recvTimeTsC" column are left out.
      */
-    private Map<String, JsonElement> aggregationWithoutDefaultFields() {
-        return aggregation.entrySet().stream().filter(entry ->
-            !entry.getKey().contains(NGSIConstants.AUTOGENERATED_ATTR_TYPE) &&
-                !entry.getKey().equals(NGSIConstants.RECV_TIME_TS + "C")
-        ).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    public Map<String, JsonElement> toRecord() {
+        Map<String, JsonElement> record = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> entry : aggregation.entrySet()) {
+            if (!entry.getKey().contains(NGSIConstants.AUTOGENERATED_ATTR_TYPE)
+                    && !entry.getKey().equals(NGSIConstants.RECV_TIME_TS + "C")) {
+                record.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return record;
+    }
+
+    /**
+     * Gets the types of the columns of the record, inferred from the NGSI-LD type of the attributes and from
+     * the shape of their values.
+     */
+    public Map<String, ColumnType> getColumnTypes() {
+        return columnTypes;
+    }
+
+    /**
+     * Builds the aggregators of all the records an entity is made of.
+     * An entity in the usual representation gives a single record. An entity in temporal representation, where
+     * attributes hold several instances, gives one record per distinct observedAt: each record holds the instances
+     * observed at that time along with the attributes that are not observed at a given time.
+     */
+    public static List<CKANColumnAggregator> forEntity(Entity entity, long creationTime, String datasetIdPrefixToTruncate) {
+        ArrayList<Attributes> attributes = entity.getEntityAttrs();
+        if (attributes == null || !hasMultipleInstances(attributes)) {
+            CKANColumnAggregator aggregator = new CKANColumnAggregator();
+            aggregator.initialize(entity, creationTime, datasetIdPrefixToTruncate);
+            return List.of(aggregator);
+        }
+
+        ArrayList<Attributes> unobservedAttributes = new ArrayList<>();
+        Map<String, ArrayList<Attributes>> attributesByObservedAt = new TreeMap<>();
+        for (Attributes attribute : attributes) {
+            String observedAt = attribute.getObservedAt();
+            if (observedAt == null) {
+                unobservedAttributes.add(attribute);
+            } else {
+                attributesByObservedAt.computeIfAbsent(observedAt, k -> new ArrayList<>()).add(attribute);
+            }
+        }
+
+        List<CKANColumnAggregator> aggregators = new ArrayList<>(attributesByObservedAt.size());
+        for (Map.Entry<String, ArrayList<Attributes>> instances : attributesByObservedAt.entrySet()) {
+            ArrayList<Attributes> recordAttributes = new ArrayList<>(unobservedAttributes);
+            recordAttributes.addAll(instances.getValue());
+            Entity instantEntity = new Entity(entity.getEntityId(), entity.getEntityType(), recordAttributes);
+
+            CKANColumnAggregator aggregator = new CKANColumnAggregator();
+            aggregator.aggregation.put(NGSIConstants.NGSILD_OBSERVED_AT, new JsonPrimitive(instances.getKey()));
+            aggregator.columnTypes.put(NGSIConstants.NGSILD_OBSERVED_AT, ColumnType.TIMESTAMP);
+            aggregator.initialize(instantEntity, creationTime, datasetIdPrefixToTruncate);
+            aggregators.add(aggregator);
+        }
+        return aggregators;
     }
 
-    public List<JsonObject> toJsonObjects() {
-        return aggregationWithoutDefaultFields().entrySet().stream().map(entry -> {
-            JsonObject jsonObject = new JsonObject();
-            jsonObject.add(entry.getKey(), entry.getValue());
-            return jsonObject;
-        }).collect(Collectors.toList());
+    private static boolean hasMultipleInstances(List<Attributes> attributes) {
+        Set<String> attributeKeys = new HashSet<>();
+        for (Attributes attribute : attributes) {
+            if (!attributeKeys.add(attribute.getAttrName() + "_" + attribute.getDatasetId())) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void initialize(Entity entity, long creationTime, String datasetIdPrefixToTruncate) {
-        String recvTime = CKANUtils.getHumanReadable(creationTime, true);
+        // the column is typed as a timestamp, its milliseconds must be padded
+        String recvTime = CKANUtils.getTimestamp(creationTime);
 
         aggregation.put(NGSIConstants.RECV_TIME, new JsonPrimitive(recvTime));
         aggregation.put(NGSIConstants.ENTITY_ID, new JsonPrimitive(entity.getEntityId()));
         aggregation.put(NGSIConstants.ENTITY_TYPE, new JsonPrimitive(entity.getEntityType()));
+        columnTypes.put(NGSIConstants.RECV_TIME, ColumnType.TIMESTAMP);
+        columnTypes.put(NGSIConstants.ENTITY_ID, ColumnType.TEXT);
+        columnTypes.put(NGSIConstants.ENTITY_TYPE, ColumnType.TEXT);
 
         ArrayList<Attributes> attributes = entity.getEntityAttrs();
         if (attributes == null || attributes.isEmpty()) {
@@ -62,8 +120,15 @@ public class CKANColumnAggregator {
             String encodedAttrName = encodeAttributeName(attribute.getAttrName(), attribute.getDatasetId(), datasetIdPrefixToTruncate);
             String attrName = (attributePrefix.isEmpty() ? attributePrefix : attributePrefix + "_") + encodedAttrName;
             String attrType = attribute.getAttrType();
-            JsonElement attrValue = new JsonPrimitive(attribute.getAttrValue());
+            ColumnType columnType = inferColumnType(attribute);
+            JsonElement attrValue = toColumnValue(attribute.getAttrValue(), columnType);
+            if (attrValue == null) {
+                // the value does not have the expected shape, it is stored as text
+                columnType = ColumnType.TEXT;
+                attrValue = new JsonPrimitive(attribute.getAttrValue());
+            }
             aggregation.put(attrName, attrValue);
+            columnTypes.put(attrName, columnType);
             aggregation.put(attrName + NGSIConstants.AUTOGENERATED_ATTR_TYPE, new JsonPrimitive(attrType));
             if (attribute.isHasSubAttrs()) {
                 aggregateAttributeValues(attrName, attribute.getSubAttrs(), datasetIdPrefixToTruncate);
@@ -71,6 +136,30 @@ public class CKANColumnAggregator {
         }
     }
 
+    // the internal type of the attribute comes first, a GeoProperty is always stored as JSON and a Relationship as
+    // the URI of its object, whatever the shape of the value
+    static ColumnType inferColumnType(Attributes attribute) {
+        if (NGSIConstants.NGSILD_GEOPROPERTY.equals(attribute.getAttrType())) {
+            return ColumnType.JSON;
+        } else if (NGSIConstants.NGSILD_RELATIONSHIP.equals(attribute.getAttrType()) || attribute.getValueType() == null) {
+            return ColumnType.TEXT;
+        }
+        return attribute.getValueType();
+    }
+
+    // numbers and JSON values are sent as such to CKAN, other values as strings
+    private static JsonElement toColumnValue(String value, ColumnType columnType) {
+        if (columnType == ColumnType.NUMERIC || columnType == ColumnType.JSON) {
+            try {
+                JsonElement parsedValue = JsonParser.parseString(value);
+                return ColumnType.of(parsedValue) == columnType ? parsedValue : null;
+            } catch (JsonParseException e) {
+                return null;
+            }
+        }
+        return new JsonPrimitive(value);
+    }
+
     private String encodeAttributeName(String attributeName, String datasetId, String datasetIdPrefixToTruncate) {
         String datasetIdEncodedValue =
                 (!datasetId.isEmpty() ?
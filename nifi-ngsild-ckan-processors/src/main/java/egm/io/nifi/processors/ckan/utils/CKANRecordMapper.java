@@ -0,0 +1,124 @@
+package egm.io.nifi.processors.ckan.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import egm.io.nifi.processors.ckan.model.ColumnType;
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.time.temporal.TemporalAccessor;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class for mapping NiFi records to datastore records, each field of a record being a column.
+ */
+public final class CKANRecordMapper {
+
+    private CKANRecordMapper() {
+    }
+
+    /**
+     * Gets the types of the columns of the records of a schema, inferred from the types of their fields.
+     */
+    public static Map<String, ColumnType> getColumnTypes(RecordSchema schema) {
+        Map<String, ColumnType> columnTypes = new LinkedHashMap<>();
+        for (RecordField field : schema.getFields()) {
+            columnTypes.put(field.getFieldName(), getColumnType(field.getDataType()));
+        }
+        return columnTypes;
+    }
+
+    /**
+     * Maps a record to the column values written in the datastore, in the order of the fields of its schema.
+     * Fields without value are left out, like the attributes an entity does not have.
+     *
+     * @param record      Record to be written
+     * @param columnTypes Types of the columns, completed with the fields of the record that are not in it yet
+     */
+    public static Map<String, JsonElement> toRow(Record record, Map<String, ColumnType> columnTypes) {
+        Map<String, JsonElement> row = new LinkedHashMap<>();
+        for (RecordField field : record.getSchema().getFields()) {
+            Object value = record.getValue(field);
+            if (value == null) {
+                continue;
+            }
+            ColumnType columnType = columnTypes.computeIfAbsent(field.getFieldName(), name -> getColumnType(field.getDataType()));
+            row.put(field.getFieldName(), toColumnValue(value, columnType));
+        }
+        return row;
+    }
+
+    private static ColumnType getColumnType(DataType dataType) {
+        return switch (dataType.getFieldType()) {
+            case BYTE, SHORT, INT, LONG, BIGINT, FLOAT, DOUBLE, DECIMAL -> ColumnType.NUMERIC;
+            // a time alone is not a timestamp, it is stored as text
+            case DATE, TIMESTAMP -> ColumnType.TIMESTAMP;
+            case RECORD, MAP, ARRAY -> ColumnType.JSON;
+            default -> ColumnType.TEXT;
+        };
+    }
+
+    // numbers and JSON values are sent as such to CKAN, other values as strings
+    private static JsonElement toColumnValue(Object value, ColumnType columnType) {
+        return switch (columnType) {
+            case NUMERIC -> value instanceof Number number ? new JsonPrimitive(number) : new JsonPrimitive(value.toString());
+            case JSON -> toJson(value);
+            default -> new JsonPrimitive(toText(value));
+        };
+    }
+
+    private static String toText(Object value) {
+        if (value instanceof java.sql.Date date) {
+            return date.toLocalDate().toString();
+        } else if (value instanceof java.sql.Time time) {
+            return time.toLocalTime().toString();
+        } else if (value instanceof Date date) {
+            // java.sql.Timestamp keeps its nanoseconds
+            return date.toInstant().toString();
+        } else if (value instanceof TemporalAccessor) {
+            return value.toString();
+        } else if (value instanceof Record || value instanceof Map<?, ?> || value instanceof Object[] || value instanceof Collection<?>) {
+            return toJson(value).toString();
+        }
+        return value.toString();
+    }
+
+    private static JsonElement toJson(Object value) {
+        if (value == null) {
+            return JsonNull.INSTANCE;
+        } else if (value instanceof Record record) {
+            JsonObject object = new JsonObject();
+            for (RecordField field : record.getSchema().getFields()) {
+                object.add(field.getFieldName(), toJson(record.getValue(field)));
+            }
+            return object;
+        } else if (value instanceof Map<?, ?> map) {
+            JsonObject object = new JsonObject();
+            map.forEach((key, entryValue) -> object.add(String.valueOf(key), toJson(entryValue)));
+            return object;
+        } else if (value instanceof Object[] array) {
+            JsonArray jsonArray = new JsonArray(array.length);
+            for (Object element : array) {
+                jsonArray.add(toJson(element));
+            }
+            return jsonArray;
+        } else if (value instanceof Collection<?> collection) {
+            JsonArray jsonArray = new JsonArray(collection.size());
+            collection.forEach(element -> jsonArray.add(toJson(element)));
+            return jsonArray;
+        } else if (value instanceof Number number) {
+            return new JsonPrimitive(number);
+        } else if (value instanceof Boolean bool) {
+            return new JsonPrimitive(bool);
+        }
+        return new JsonPrimitive(toText(value));
+    }
+}
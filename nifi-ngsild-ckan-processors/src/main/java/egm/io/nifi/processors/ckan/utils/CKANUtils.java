@@ -2,40 +2,190 @@ package egm.io.nifi.processors.ckan.utils;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 import java.util.TimeZone;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 public final class CKANUtils {
 
-    private static final Pattern ENCODEPATTERN = Pattern.compile("[^a-zA-Z0-9\\_\\-]");
+    // bounds the memos of encoded names and hashes, names are not memoized any more once it is reached
+    private static final int MEMO_MAX_SIZE = 10000;
+    // first and last instants written by hand, the others are left to SimpleDateFormat (Julian calendar before 1583)
+    private static final long MIN_FAST_TIMESTAMP = -12212553600000L; // 1583-01-01T00:00:00Z
+    private static final long MAX_FAST_TIMESTAMP = 253402300799999L; // 9999-12-31T23:59:59.999Z
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final Map<String, String> ENCODED_NAMES = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> HASHES = new ConcurrentHashMap<>();
+    private static final ThreadLocal<MessageDigest> SHA_256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform supports SHA-256
+            throw new IllegalStateException(e);
+        }
+    });
+
+    // the records of a FlowFile all share its timestamp
+    private static volatile HumanReadableTimestamp lastTimestamp = new HumanReadableTimestamp(0L, true, formatHumanReadable(0L, true, false));
+    private static volatile HumanReadableTimestamp lastPaddedTimestamp = new HumanReadableTimestamp(0L, true, formatHumanReadable(0L, true, true));
+
+    private record HumanReadableTimestamp(long ts, boolean addUTC, String value) {
+    }
 
     /**
-     * Gets the human redable version of timestamp expressed in miliseconds.
+     * Gets the human redable version of timestamp expressed in miliseconds, as formatted by the
+     * "yyyy-MM-dd'T'HH:mm:ss.S'Z'" (or "yyyy-MM-dd HH:mm:ss.S") pattern of SimpleDateFormat in UTC: the milliseconds
+     * are not padded.
      */
     public static String getHumanReadable(long ts, boolean addUTC) {
+        HumanReadableTimestamp last = lastTimestamp;
+        if (last.ts() == ts && last.addUTC() == addUTC) {
+            return last.value();
+        }
+
+        String humanReadable = ts >= MIN_FAST_TIMESTAMP && ts <= MAX_FAST_TIMESTAMP
+            ? formatHumanReadable(ts, addUTC, false)
+            : formatHumanReadableWithCalendar(ts, addUTC, "S");
+        lastTimestamp = new HumanReadableTimestamp(ts, addUTC, humanReadable);
+        return humanReadable;
+    }
+
+    /**
+     * Gets the ISO 8601 version of a timestamp expressed in milliseconds, in UTC and with the milliseconds padded to
+     * 3 digits ("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'"), as written in timestamp columns: unlike the human readable version,
+     * 5 milliseconds are written .005 and not .5, which would be read as 500 milliseconds.
+     */
+    public static String getTimestamp(long ts) {
+        HumanReadableTimestamp last = lastPaddedTimestamp;
+        if (last.ts() == ts) {
+            return last.value();
+        }
+
+        String timestamp = ts >= MIN_FAST_TIMESTAMP && ts <= MAX_FAST_TIMESTAMP
+            ? formatHumanReadable(ts, true, true)
+            : formatHumanReadableWithCalendar(ts, true, "SSS");
+        lastPaddedTimestamp = new HumanReadableTimestamp(ts, true, timestamp);
+        return timestamp;
+    }
+
+    private static String formatHumanReadable(long ts, boolean addUTC, boolean padMillis) {
+        long epochDay = Math.floorDiv(ts, MILLIS_PER_DAY);
+        int millisOfDay = (int) Math.floorMod(ts, MILLIS_PER_DAY);
+
+        // civil date from the days since 1970-01-01 in the proleptic Gregorian calendar, eras of 400 years
+        // starting on March 1st
+        long days = epochDay + 719468;
+        long era = Math.floorDiv(days, 146097);
+        int dayOfEra = (int) (days - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+
+        int millis = millisOfDay % 1000;
+        int seconds = millisOfDay / 1000;
+
+        char[] chars = new char[24];
+        int pos = 0;
+        pos = writeDigits(chars, pos, year, 4);
+        chars[pos++] = '-';
+        pos = writeDigits(chars, pos, month, 2);
+        chars[pos++] = '-';
+        pos = writeDigits(chars, pos, day, 2);
+        chars[pos++] = addUTC ? 'T' : ' ';
+        pos = writeDigits(chars, pos, seconds / 3600, 2);
+        chars[pos++] = ':';
+        pos = writeDigits(chars, pos, seconds / 60 % 60, 2);
+        chars[pos++] = ':';
+        pos = writeDigits(chars, pos, seconds % 60, 2);
+        chars[pos++] = '.';
+        pos = writeDigits(chars, pos, millis, padMillis || millis >= 100 ? 3 : millis < 10 ? 1 : 2);
+        if (addUTC) {
+            chars[pos++] = 'Z';
+        }
+        return new String(chars, 0, pos);
+    }
+
+    private static int writeDigits(char[] chars, int pos, int value, int length) {
+        for (int i = pos + length - 1; i >= pos; i--) {
+            chars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + length;
+    }
+
+    private static String formatHumanReadableWithCalendar(long ts, boolean addUTC, String millisPattern) {
         SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
         sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
         String humanRedable = sdf.format(new Date(ts));
         humanRedable += (addUTC ? "T" : " ");
-        sdf = new SimpleDateFormat("HH:mm:ss.S");
+        sdf = new SimpleDateFormat("HH:mm:ss." + millisPattern);
         sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
         humanRedable += sdf.format(new Date(ts)) + (addUTC ? "Z" : "");
         return humanRedable;
     }
 
+    /**
+     * Replaces the characters other than ASCII letters, digits, '_' and '-' by '-'. A character outside the Basic
+     * Multilingual Plane, written with two chars, is replaced by a single '-'.
+     */
     public static String encodeCKAN(String in) {
-        return ENCODEPATTERN.matcher(in).replaceAll("-");
+        int length = in.length();
+        int i = 0;
+        while (i < length && isCKANChar(in.charAt(i))) {
+            i++;
+        }
+        if (i == length) {
+            return in;
+        }
+
+        String encoded = ENCODED_NAMES.get(in);
+        if (encoded == null) {
+            StringBuilder builder = new StringBuilder(length).append(in, 0, i);
+            while (i < length) {
+                char c = in.charAt(i);
+                if (isCKANChar(c)) {
+                    builder.append(c);
+                    i++;
+                } else {
+                    builder.append('-');
+                    i += Character.charCount(in.codePointAt(i));
+                }
+            }
+            encoded = builder.toString();
+            if (ENCODED_NAMES.size() < MEMO_MAX_SIZE) {
+                ENCODED_NAMES.putIfAbsent(in, encoded);
+            }
+        }
+        return encoded;
+    }
+
+    private static boolean isCKANChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_' || c == '-';
     }
 
-    public static int generateHash(String input) throws Exception {
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hashBytes = digest.digest(input.getBytes(StandardCharsets.UTF_8));
-        // Use the first 4 bytes to create a 32-bit integer
-        return ((hashBytes[0] & 0xff) << 24) |
-            ((hashBytes[1] & 0xff) << 16) |
-            ((hashBytes[2] & 0xff) << 8)  |
-            (hashBytes[3] & 0xff);
+    /**
+     * Gets a 32-bit hash of the input, made of the first 4 bytes of its SHA-256 digest.
+     */
+    public static int generateHash(String input) {
+        Integer hash = HASHES.get(input);
+        if (hash == null) {
+            byte[] hashBytes = SHA_256.get().digest(input.getBytes(StandardCharsets.UTF_8));
+            // Use the first 4 bytes to create a 32-bit integer
+            hash = ((hashBytes[0] & 0xff) << 24) |
+                ((hashBytes[1] & 0xff) << 16) |
+                ((hashBytes[2] & 0xff) << 8)  |
+                (hashBytes[3] & 0xff);
+            if (HASHES.size() < MEMO_MAX_SIZE) {
+                HASHES.putIfAbsent(input, hash);
+            }
+        }
+        return hash;
     }
 }
@@ -0,0 +1,37 @@
+package egm.io.nifi.processors.ckan.utils;
+
+import java.io.IOException;
+import java.time.Duration;
+
+/**
+ * Identifiers of CKAN objects shared by the nodes of a cluster, along with claims ensuring that a single node creates
+ * each object. Objects are keyed like in the {@link CKANCache}, for instance pkg:orgName_pkgName.
+ */
+public interface SharedIdStore {
+
+    /**
+     * Gets the identifier of an object, or null if no node shared it or if it was shared more than a cache
+     * expiration ago.
+     */
+    String get(String key) throws IOException;
+
+    /**
+     * Shares the identifier of an object with the other nodes.
+     */
+    void put(String key, String id) throws IOException;
+
+    /**
+     * Claims the creation of an object. A claim not released within its duration, for instance by a node that
+     * stopped, can be claimed again by another node.
+     *
+     * @param key      Key of the object to be created
+     * @param duration Duration of the claim
+     * @return True if this node holds the claim, false if another node does
+     */
+    boolean claim(String key, Duration duration) throws IOException;
+
+    /**
+     * Releases a claim held by this node.
+     */
+    void release(String key) throws IOException;
+}
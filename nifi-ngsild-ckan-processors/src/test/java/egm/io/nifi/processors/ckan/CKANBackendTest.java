@@ -0,0 +1,129 @@
+package egm.io.nifi.processors.ckan;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CKANBackendTest {
+
+    @Test
+    void anyValueIsWrittenAsTextInTextFields() throws IOException {
+        assertEquals("\"21.5\"", write(new JsonPrimitive(21.5), "text"));
+        assertEquals("\"true\"", write(new JsonPrimitive(true), "text"));
+        assertEquals("\"{\\\"a\\\":1}\"", write(object("a", 1), "text"));
+        assertEquals("\"ok\"", write(new JsonPrimitive("ok"), "text"));
+    }
+
+    @Test
+    void valuesAreWrittenAsTheyAreInFieldsNotCreatedYet() throws IOException {
+        assertEquals("21.5", write(new JsonPrimitive(21.5), null));
+        assertEquals("{\"a\":1}", write(object("a", 1), null));
+        assertEquals("\"n/a\"", write(new JsonPrimitive("n/a"), null));
+    }
+
+    @Test
+    void numbersHeldByStringsAreWrittenAsNumbersInNumericFields() throws IOException {
+        assertEquals("21.5", write(new JsonPrimitive("21.5"), "numeric"));
+        assertEquals("12", write(new JsonPrimitive(" 12 "), "int4"));
+        assertEquals("21.5", write(new JsonPrimitive(21.5), "float8"));
+    }
+
+    @Test
+    void nullValuesFitAnyField() throws IOException {
+        assertEquals("null", write(JsonNull.INSTANCE, "numeric"));
+        assertSame(JsonNull.INSTANCE, CKANBackend.toFieldValue(JsonNull.INSTANCE, "timestamp"));
+    }
+
+    @Test
+    void valuesNotFittingTheirFieldCannotBeConverted() {
+        assertNull(CKANBackend.toFieldValue(new JsonPrimitive("n/a"), "numeric"));
+        assertNull(CKANBackend.toFieldValue(object("a", 1), "numeric"));
+        assertNull(CKANBackend.toFieldValue(new JsonPrimitive(true), "numeric"));
+        assertNull(CKANBackend.toFieldValue(new JsonPrimitive("n/a"), "timestamp"));
+        assertNull(CKANBackend.toFieldValue(new JsonPrimitive(1704067200000L), "timestamp"));
+        assertNull(CKANBackend.toFieldValue(object("a", 1), "timestamp"));
+        assertNull(CKANBackend.toFieldValue(new JsonPrimitive("n/a"), "json"));
+        assertNull(CKANBackend.toFieldValue(new JsonPrimitive("maybe"), "bool"));
+    }
+
+    @Test
+    void isoDatesFitTimestampFields() {
+        for (String timestamp : List.of("2024-01-01T00:00:07.005Z", "2024-01-01T00:00:07Z", "2024-01-01T00:00:07+02:00",
+                "2024-01-01T00:00:07", "2024-01-01 00:00:07", "2024-01-01")) {
+            assertEquals(new JsonPrimitive(timestamp), CKANBackend.toFieldValue(new JsonPrimitive(timestamp), "timestamp"), timestamp);
+        }
+    }
+
+    @Test
+    void jsonFieldsTakeAnyValueButStrings() {
+        assertEquals(object("a", 1), CKANBackend.toFieldValue(object("a", 1), "json"));
+        assertEquals(new JsonPrimitive(12), CKANBackend.toFieldValue(new JsonPrimitive(12), "json"));
+    }
+
+    @Test
+    void booleansHeldByStringsFitBooleanFields() {
+        assertEquals(new JsonPrimitive(true), CKANBackend.toFieldValue(new JsonPrimitive("TRUE"), "bool"));
+        assertEquals(new JsonPrimitive(false), CKANBackend.toFieldValue(new JsonPrimitive(false), "bool"));
+    }
+
+    @Test
+    void recordsFittingTheirFieldsAreKept() {
+        Map<String, JsonElement> record = record(new JsonPrimitive(21.5), new JsonPrimitive("ok"));
+
+        assertSame(record, CKANBackend.moveConflictingValues(record, Map.of("temperature", "numeric", "status", "text")));
+    }
+
+    @Test
+    void conflictingValuesAreMovedToTextColumns() {
+        Map<String, JsonElement> record = record(new JsonPrimitive("n/a"), object("code", 3));
+
+        Map<String, JsonElement> movedRecord = CKANBackend.moveConflictingValues(record, Map.of("temperature", "numeric", "status", "text"));
+
+        assertEquals(List.of("temperature" + CKANBackend.TEXT_COLUMN_SUFFIX, "status"), List.copyOf(movedRecord.keySet()));
+        assertEquals(new JsonPrimitive("n/a"), movedRecord.get("temperature" + CKANBackend.TEXT_COLUMN_SUFFIX));
+        // the original record is left unchanged
+        assertEquals(List.of("temperature", "status"), List.copyOf(record.keySet()));
+    }
+
+    @Test
+    void valuesOfUnknownFieldTypesAreKept() {
+        JsonPrimitive value = new JsonPrimitive(new BigDecimal("1.5"));
+
+        assertSame(value, CKANBackend.toFieldValue(value, "_int4"));
+    }
+
+    private static String write(JsonElement value, String fieldType) throws IOException {
+        StringWriter out = new StringWriter();
+        try (JsonWriter writer = new JsonWriter(out)) {
+            CKANBackend.writeFieldValue(writer, value, fieldType);
+        }
+        return out.toString();
+    }
+
+    private static JsonObject object(String name, int value) {
+        JsonObject object = new JsonObject();
+        object.addProperty(name, value);
+        return object;
+    }
+
+    private static Map<String, JsonElement> record(JsonElement temperature, JsonElement status) {
+        Map<String, JsonElement> record = new LinkedHashMap<>();
+        record.put("temperature", temperature);
+        record.put("status", status);
+        return record;
+    }
+}
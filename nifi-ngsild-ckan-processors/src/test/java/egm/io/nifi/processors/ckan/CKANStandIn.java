@@ -0,0 +1,755 @@
+package egm.io.nifi.processors.ckan;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the CKAN action API, so that the processor can be exercised without a CKAN server.
+ * Organizations, packages, resources, datastores and views are kept in memory, and the actions used by the processor
+ * are answered the way CKAN answers them. Each request can be delayed, and a share of the requests can fail, to
+ * model a remote and unreliable CKAN. The objects and the records written can be inspected by the tests.
+ */
+public class CKANStandIn implements AutoCloseable {
+
+    private static final String ACTION_PATH = "/api/3/action/";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, String> organizations = new ConcurrentHashMap<>();
+    private final Map<String, Package> packages = new ConcurrentHashMap<>();
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> compressedRequests = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> chunkedRequests = new ConcurrentHashMap<>();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rows = new LongAdder();
+    private volatile Duration minLatency = Duration.ZERO;
+    private volatile Duration maxLatency = Duration.ZERO;
+    private volatile double failureRate;
+    private volatile int failureStatus = 503;
+    private final Map<String, ActionFailures> actionFailures = new ConcurrentHashMap<>();
+    private volatile String retryAfter;
+
+    private record Package(String id, String name, String orgId, List<Resource> resources) {
+    }
+
+    private static final class Resource {
+        private final String id;
+        private final String name;
+        private final String pkgId;
+        private final List<String> views = new CopyOnWriteArrayList<>();
+        // the content of the file uploaded as the resource, if any
+        private volatile String upload;
+        // the datastore, guarded by the resource
+        private Map<String, String> fields;
+        private List<String> primaryKey = List.of();
+        // the records by primary key, or by row number when inserted without a primary key
+        private final Map<Object, JsonObject> records = new LinkedHashMap<>();
+
+        private Resource(String id, String name, String pkgId) {
+            this.id = id;
+            this.name = name;
+            this.pkgId = pkgId;
+        }
+    }
+
+    // the requests of an action failing once the given number of them succeeded
+    private record ActionFailures(AtomicLong successfulRequests, int status) {
+    }
+
+    // an action answered with an error, like CKAN does with a status and a message
+    private static final class ActionException extends Exception {
+        private final int status;
+
+        private ActionException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Starts a stand-in listening on a free port of the loopback interface.
+     */
+    public CKANStandIn() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // requests are served concurrently, like CKAN behind several workers
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server.setExecutor(executor);
+        server.createContext(ACTION_PATH, this::handle);
+        server.start();
+    }
+
+    /**
+     * Gets the URL to set as CKAN URL.
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Delays every response by a random time between the given bounds.
+     */
+    public void setLatency(Duration minLatency, Duration maxLatency) {
+        this.minLatency = minLatency;
+        this.maxLatency = maxLatency.compareTo(minLatency) < 0 ? minLatency : maxLatency;
+    }
+
+    /**
+     * Fails a share of the requests with the given status, for instance 503 for a transient failure.
+     *
+     * @param failureRate   Share of the requests failing, between 0 and 1
+     * @param failureStatus HTTP status of the failed requests
+     */
+    public void setFailures(double failureRate, int failureStatus) {
+        this.failureRate = failureRate;
+        this.failureStatus = failureStatus;
+    }
+
+    /**
+     * Fails the requests of an action once the given number of them succeeded, for instance the second chunk of
+     * records sent with datastore_upsert.
+     *
+     * @param action             CKAN action failing, for instance datastore_upsert
+     * @param successfulRequests Number of requests of the action succeeding before the failures
+     * @param failureStatus      HTTP status of the failed requests
+     */
+    public void setFailures(String action, long successfulRequests, int failureStatus) {
+        actionFailures.put(action, new ActionFailures(new AtomicLong(successfulRequests), failureStatus));
+    }
+
+    /**
+     * Sets the Retry-After header of the failed requests, as a number of seconds or an HTTP date, or null for none.
+     */
+    public void setRetryAfter(String retryAfter) {
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Stops failing requests.
+     */
+    public void clearFailures() {
+        failureRate = 0;
+        actionFailures.clear();
+        retryAfter = null;
+    }
+
+    /**
+     * Creates an organization holding a package with the given resources, as if they had been created beforehand.
+     */
+    public void createPackage(String orgName, String pkgName, String... resNames) {
+        String orgId = organizations.computeIfAbsent(orgName, name -> UUID.randomUUID().toString());
+        Package pkg = packages.computeIfAbsent(pkgName,
+            name -> new Package(UUID.randomUUID().toString(), name, orgId, new CopyOnWriteArrayList<>()));
+        for (String resName : resNames) {
+            Resource resource = new Resource(UUID.randomUUID().toString(), resName, pkg.id());
+            resources.put(resource.id, resource);
+            pkg.resources().add(resource);
+        }
+    }
+
+    /**
+     * Gets the content of the files uploaded as resources, by name of resource.
+     */
+    public Map<String, String> getUploads() {
+        Map<String, String> uploads = new TreeMap<>();
+        for (Resource resource : resources.values()) {
+            if (resource.upload != null) {
+                uploads.put(resource.name, resource.upload);
+            }
+        }
+        return uploads;
+    }
+
+    /**
+     * Gets the number of requests received for each action.
+     */
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        requests.forEach((action, count) -> counts.put(action, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Gets the number of requests received gzip encoded for each action.
+     */
+    public Map<String, Long> getCompressedRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        compressedRequests.forEach((action, count) -> counts.put(action, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Gets the number of requests received with a chunked body, without Content-Length, for each action.
+     */
+    public Map<String, Long> getChunkedRequestCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        chunkedRequests.forEach((action, count) -> counts.put(action, count.sum()));
+        return counts;
+    }
+
+    /**
+     * Gets the number of requests received.
+     */
+    public long getRequestCount() {
+        return requests.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    /**
+     * Gets the number of requests that were failed on purpose.
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * Gets the number of records written in the datastores, a record replacing another one being counted too.
+     */
+    public long getRowCount() {
+        return rows.sum();
+    }
+
+    /**
+     * Gets the number of resources with the given name, in all the packages.
+     */
+    public int getResourceCount(String resName) {
+        return (int) resources.values().stream().filter(resource -> resource.name.equals(resName)).count();
+    }
+
+    /**
+     * Gets the id of a resource with the given name, or null if there is none.
+     */
+    public String getResourceId(String resName) {
+        return resources.values().stream().filter(resource -> resource.name.equals(resName))
+            .map(resource -> resource.id)
+            .findFirst().orElse(null);
+    }
+
+    /**
+     * Gets the number of views of the resources with the given name, in all the packages.
+     */
+    public int getViewCount(String resName) {
+        return resources.values().stream().filter(resource -> resource.name.equals(resName))
+            .mapToInt(resource -> resource.views.size())
+            .sum();
+    }
+
+    /**
+     * Gets the records stored in the datastores of the resources with the given name, a record replaced by an upsert
+     * or an update being given once.
+     */
+    public List<JsonObject> getRecords(String resName) {
+        List<JsonObject> records = new ArrayList<>();
+        for (Resource resource : resources.values()) {
+            if (resource.name.equals(resName)) {
+                synchronized (resource) {
+                    resource.records.values().forEach(record -> records.add(record.deepCopy()));
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Gets the fields of the datastore of the resource with the given name and their types, or null if it has none.
+     */
+    public Map<String, String> getFields(String resName) {
+        for (Resource resource : resources.values()) {
+            if (resource.name.equals(resName)) {
+                synchronized (resource) {
+                    return resource.fields != null ? new LinkedHashMap<>(resource.fields) : null;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String action = exchange.getRequestURI().getPath().substring(ACTION_PATH.length());
+            requests.computeIfAbsent(action, k -> new LongAdder()).increment();
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                compressedRequests.computeIfAbsent(action, k -> new LongAdder()).increment();
+            }
+            if ("chunked".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Transfer-Encoding"))) {
+                chunkedRequests.computeIfAbsent(action, k -> new LongAdder()).increment();
+            }
+            delay();
+
+            if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+                fail(exchange, failureStatus);
+                return;
+            }
+            ActionFailures failuresOfAction = actionFailures.get(action);
+            if (failuresOfAction != null && failuresOfAction.successfulRequests().getAndDecrement() <= 0) {
+                fail(exchange, failuresOfAction.status());
+                return;
+            }
+
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            JsonObject body = "POST".equals(exchange.getRequestMethod()) ? parseBody(exchange) : new JsonObject();
+            try {
+                JsonElement result = switch (action) {
+                    case "status_show" -> statusShow();
+                    case "organization_show" -> organizationShow(parameters.get("id"));
+                    case "organization_create" -> organizationCreate(body);
+                    case "organization_list" -> organizationList(parameters);
+                    case "package_search" -> packageSearch(parameters);
+                    case "package_show" -> packageShow(parameters.get("id"));
+                    case "package_create" -> packageCreate(body);
+                    case "resource_create" -> resourceCreate(body);
+                    case "resource_patch" -> resourcePatch(body);
+                    case "datastore_create" -> datastoreCreate(body);
+                    case "datastore_info" -> datastoreInfo(parameters.get("id"));
+                    case "datastore_upsert" -> datastoreUpsert(body);
+                    case "resource_view_list" -> resourceViewList(parameters.containsKey("id") ? parameters.get("id") : getString(body, "id"));
+                    case "resource_view_create" -> resourceViewCreate(body);
+                    default -> throw new ActionException(400, "Bad request - Action name not known: " + action);
+                };
+                JsonObject response = new JsonObject();
+                response.addProperty("help", getUrl() + ACTION_PATH + "help_show?name=" + action);
+                response.addProperty("success", true);
+                response.add("result", result);
+                respond(exchange, 200, response);
+            } catch (ActionException e) {
+                respond(exchange, e.status, error(e.getMessage()));
+            }
+        }
+    }
+
+    private void fail(HttpExchange exchange, int status) throws IOException {
+        failures.increment();
+        if (retryAfter != null) {
+            exchange.getResponseHeaders().set("Retry-After", retryAfter);
+        }
+        respond(exchange, status, error("Failure injected by the CKAN stand-in"));
+    }
+
+    private void delay() {
+        long min = minLatency.toNanos();
+        long max = maxLatency.toNanos();
+        if (max > 0) {
+            try {
+                Thread.sleep(Duration.ofNanos(min == max ? min : ThreadLocalRandom.current().nextLong(min, max)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private JsonElement statusShow() {
+        JsonObject status = new JsonObject();
+        status.addProperty("site_url", getUrl());
+        status.addProperty("ckan_version", "2.10.0");
+        return status;
+    }
+
+    private JsonElement organizationShow(String name) throws ActionException {
+        String id = organizations.get(notNull(name, "id"));
+        if (id == null) {
+            throw new ActionException(404, "Not found");
+        }
+        return organizationJson(name, id);
+    }
+
+    private JsonElement organizationCreate(JsonObject body) throws ActionException {
+        String name = getString(body, "name");
+        String id = UUID.randomUUID().toString();
+        if (organizations.putIfAbsent(name, id) != null) {
+            throw new ActionException(409, "Group name already exists in database");
+        }
+        return organizationJson(name, id);
+    }
+
+    // like CKAN, no more than 25 organizations are listed at a time with all their fields
+    private JsonElement organizationList(Map<String, String> parameters) {
+        int limit = Math.min(Integer.parseInt(parameters.getOrDefault("limit", "25")), 25);
+        int offset = Integer.parseInt(parameters.getOrDefault("offset", "0"));
+        JsonArray results = new JsonArray();
+        organizations.entrySet().stream()
+            .sorted(Map.Entry.comparingByKey())
+            .skip(offset)
+            .limit(limit)
+            .forEach(organization -> results.add(organizationJson(organization.getKey(), organization.getValue())));
+        return results;
+    }
+
+    private JsonElement packageSearch(Map<String, String> parameters) throws ActionException {
+        String filterQuery = parameters.get("fq");
+        if (filterQuery == null) {
+            return listPackages(Integer.parseInt(parameters.getOrDefault("rows", "10")), Integer.parseInt(parameters.getOrDefault("start", "0")));
+        }
+
+        // the processor filters on the organization and the name of the package: organization:<org> name:<pkg>
+        Map<String, String> filters = new HashMap<>();
+        for (String filter : filterQuery.split(" ")) {
+            int separator = filter.indexOf(':');
+            if (separator > 0) {
+                filters.put(filter.substring(0, separator), filter.substring(separator + 1));
+            }
+        }
+
+        JsonArray results = new JsonArray();
+        Package pkg = packages.get(notNull(filters.get("name"), "name"));
+        String orgName = filters.get("organization");
+        if (pkg != null && (orgName == null || pkg.orgId().equals(organizations.get(orgName)))) {
+            results.add(packageJson(pkg));
+        }
+        JsonObject search = new JsonObject();
+        search.addProperty("count", results.size());
+        search.add("results", results);
+        return search;
+    }
+
+    // the cache warm-up pages through all the packages, sorted by name
+    private JsonElement listPackages(int rows, int start) {
+        JsonArray results = new JsonArray();
+        packages.values().stream()
+            .sorted(Comparator.comparing(Package::name))
+            .skip(start)
+            .limit(Math.min(rows, 1000))
+            .forEach(pkg -> results.add(packageJson(pkg)));
+        JsonObject search = new JsonObject();
+        search.addProperty("count", packages.size());
+        search.add("results", results);
+        return search;
+    }
+
+    private JsonElement packageShow(String nameOrId) throws ActionException {
+        return packageJson(getPackage(notNull(nameOrId, "id")));
+    }
+
+    private JsonElement packageCreate(JsonObject body) throws ActionException {
+        String name = getString(body, "name");
+        String orgId = getString(body, "owner_org");
+        if (!organizations.containsValue(orgId)) {
+            throw new ActionException(409, "Organization does not exist: " + orgId);
+        }
+        Package pkg = new Package(UUID.randomUUID().toString(), name, orgId, new CopyOnWriteArrayList<>());
+        if (packages.putIfAbsent(name, pkg) != null) {
+            throw new ActionException(409, "That URL is already in use");
+        }
+        return packageJson(pkg);
+    }
+
+    private JsonElement resourceCreate(JsonObject body) throws ActionException {
+        Package pkg = getPackage(getString(body, "package_id"));
+        Resource resource = new Resource(UUID.randomUUID().toString(), getString(body, "name"), pkg.id());
+        if (body.has("upload")) {
+            resource.upload = body.get("upload").getAsString();
+        }
+        resources.put(resource.id, resource);
+        pkg.resources().add(resource);
+        return resourceJson(resource);
+    }
+
+    private JsonElement resourcePatch(JsonObject body) throws ActionException {
+        Resource resource = getResource(getString(body, "id"));
+        if (body.has("upload")) {
+            resource.upload = body.get("upload").getAsString();
+        }
+        return resourceJson(resource);
+    }
+
+    private JsonElement datastoreCreate(JsonObject body) throws ActionException {
+        Resource resource = getResource(getString(body, "resource_id"));
+        synchronized (resource) {
+            // like CKAN, existing fields are kept and the new ones appended
+            Map<String, String> fields = resource.fields != null ? new LinkedHashMap<>(resource.fields) : new LinkedHashMap<>();
+            if (body.has("fields")) {
+                for (JsonElement field : body.getAsJsonArray("fields")) {
+                    JsonObject fieldObject = field.getAsJsonObject();
+                    fields.putIfAbsent(getString(fieldObject, "id"), fieldObject.has("type") ? fieldObject.get("type").getAsString() : "text");
+                }
+            }
+            if (body.has("primary_key") && !body.get("primary_key").isJsonNull()) {
+                List<String> primaryKey = new ArrayList<>();
+                body.getAsJsonArray("primary_key").forEach(column -> primaryKey.add(column.getAsString()));
+                if (!fields.keySet().containsAll(primaryKey)) {
+                    throw new ActionException(409, "Primary key columns are not fields: " + primaryKey);
+                }
+                resource.primaryKey = List.copyOf(primaryKey);
+            }
+            resource.fields = fields;
+        }
+
+        JsonObject result = new JsonObject();
+        result.addProperty("resource_id", resource.id);
+        return result;
+    }
+
+    private JsonElement datastoreInfo(String resId) throws ActionException {
+        Resource resource = getResource(notNull(resId, "id"));
+        JsonArray fields = new JsonArray();
+        synchronized (resource) {
+            if (resource.fields == null) {
+                throw new ActionException(404, "Resource \"" + resId + "\" was not found.");
+            }
+            fields.add(fieldJson("_id", "int"));
+            resource.fields.forEach((name, type) -> fields.add(fieldJson(name, type)));
+        }
+        JsonObject info = new JsonObject();
+        info.add("meta", new JsonObject());
+        info.add("fields", fields);
+        return info;
+    }
+
+    private JsonElement datastoreUpsert(JsonObject body) throws ActionException {
+        Resource resource = getResource(getString(body, "resource_id"));
+        String method = body.has("method") ? body.get("method").getAsString() : "upsert";
+        JsonArray records = body.has("records") ? body.getAsJsonArray("records") : new JsonArray();
+
+        synchronized (resource) {
+            if (resource.fields == null) {
+                throw new ActionException(404, "Resource \"" + resource.id + "\" was not found.");
+            }
+            if (!"insert".equals(method) && resource.primaryKey.isEmpty()) {
+                throw new ActionException(409, "table does not have a unique key defined");
+            }
+            // the whole request is checked before any record is written, like in a transaction
+            List<List<String>> recordKeys = new ArrayList<>();
+            Set<List<String>> insertedKeys = new HashSet<>();
+            for (JsonElement record : records) {
+                JsonObject recordObject = record.getAsJsonObject();
+                for (String column : recordObject.keySet()) {
+                    if (!resource.fields.containsKey(column)) {
+                        throw new ActionException(409, "field \"" + column + "\" not in datastore");
+                    }
+                }
+                if (!resource.primaryKey.isEmpty()) {
+                    List<String> key = new ArrayList<>();
+                    for (String column : resource.primaryKey) {
+                        JsonElement value = recordObject.get(column);
+                        if (value == null || value.isJsonNull()) {
+                            throw new ActionException(409, "fields \"" + column + "\" are missing but needed as key");
+                        }
+                        key.add(value.isJsonPrimitive() ? value.getAsString() : value.toString());
+                    }
+                    if ("update".equals(method) && !resource.records.containsKey(key)) {
+                        throw new ActionException(409, "key \"" + key + "\" not found");
+                    } else if ("insert".equals(method) && (resource.records.containsKey(key) || !insertedKeys.add(key))) {
+                        throw new ActionException(409, "duplicate key value violates unique constraint: " + key);
+                    }
+                    recordKeys.add(key);
+                }
+            }
+            for (int i = 0; i < records.size(); i++) {
+                JsonObject record = records.get(i).getAsJsonObject();
+                if (recordKeys.isEmpty()) {
+                    resource.records.put(resource.records.size(), record);
+                } else if ("update".equals(method)) {
+                    // the columns not given keep their value
+                    JsonObject storedRecord = resource.records.get(recordKeys.get(i));
+                    record.entrySet().forEach(column -> storedRecord.add(column.getKey(), column.getValue()));
+                } else {
+                    resource.records.put(recordKeys.get(i), record);
+                }
+            }
+        }
+        rows.add(records.size());
+
+        JsonObject result = new JsonObject();
+        result.addProperty("resource_id", resource.id);
+        result.addProperty("method", method);
+        return result;
+    }
+
+    private JsonElement resourceViewList(String id) throws ActionException {
+        Resource resource = getResource(id);
+        JsonArray views = new JsonArray();
+        for (String viewType : resource.views) {
+            JsonObject view = new JsonObject();
+            view.addProperty("resource_id", resource.id);
+            view.addProperty("view_type", viewType);
+            views.add(view);
+        }
+        return views;
+    }
+
+    private JsonElement resourceViewCreate(JsonObject body) throws ActionException {
+        Resource resource = getResource(getString(body, "resource_id"));
+        String viewType = getString(body, "view_type");
+        resource.views.add(viewType);
+
+        JsonObject view = new JsonObject();
+        view.addProperty("id", UUID.randomUUID().toString());
+        view.addProperty("resource_id", resource.id);
+        view.addProperty("view_type", viewType);
+        return view;
+    }
+
+    private Package getPackage(String nameOrId) throws ActionException {
+        Package pkg = packages.get(nameOrId);
+        if (pkg == null) {
+            pkg = packages.values().stream().filter(p -> p.id().equals(nameOrId)).findFirst()
+                .orElseThrow(() -> new ActionException(404, "Not found"));
+        }
+        return pkg;
+    }
+
+    private Resource getResource(String resId) throws ActionException {
+        Resource resource = resources.get(resId);
+        if (resource == null) {
+            throw new ActionException(404, "Resource \"" + resId + "\" was not found.");
+        }
+        return resource;
+    }
+
+    private static JsonObject organizationJson(String name, String id) {
+        JsonObject organization = new JsonObject();
+        organization.addProperty("id", id);
+        organization.addProperty("name", name);
+        organization.addProperty("state", "active");
+        return organization;
+    }
+
+    private static JsonObject packageJson(Package pkg) {
+        JsonArray packageResources = new JsonArray();
+        pkg.resources().forEach(resource -> packageResources.add(resourceJson(resource)));
+
+        JsonObject packageObject = new JsonObject();
+        packageObject.addProperty("id", pkg.id());
+        packageObject.addProperty("name", pkg.name());
+        packageObject.addProperty("owner_org", pkg.orgId());
+        packageObject.addProperty("state", "active");
+        packageObject.add("resources", packageResources);
+        return packageObject;
+    }
+
+    private static JsonObject resourceJson(Resource resource) {
+        JsonObject resourceObject = new JsonObject();
+        resourceObject.addProperty("id", resource.id);
+        resourceObject.addProperty("name", resource.name);
+        resourceObject.addProperty("package_id", resource.pkgId);
+        return resourceObject;
+    }
+
+    private static JsonObject fieldJson(String name, String type) {
+        JsonObject field = new JsonObject();
+        field.addProperty("id", name);
+        field.addProperty("type", type);
+        return field;
+    }
+
+    private static JsonObject error(String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("message", message);
+        JsonObject response = new JsonObject();
+        response.addProperty("success", false);
+        response.add("error", error);
+        return response;
+    }
+
+    private static String getString(JsonObject body, String name) throws ActionException {
+        JsonElement value = body.get(name);
+        if (value == null || value.isJsonNull()) {
+            throw new ActionException(409, "Missing value: " + name);
+        }
+        return value.getAsString();
+    }
+
+    private static String notNull(String value, String name) throws ActionException {
+        if (value == null) {
+            throw new ActionException(409, "Missing value: " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery != null) {
+            for (String parameter : rawQuery.split("&")) {
+                int separator = parameter.indexOf('=');
+                if (separator > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+                        URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static JsonObject parseBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+        }
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("multipart/form-data")) {
+            try (InputStream form = body) {
+                return parseMultipart(form.readAllBytes(), contentType.substring(contentType.indexOf("boundary=") + "boundary=".length()));
+            }
+        }
+        try (InputStreamReader reader = new InputStreamReader(body, StandardCharsets.UTF_8)) {
+            JsonElement element = JsonParser.parseReader(reader);
+            return element.isJsonObject() ? element.getAsJsonObject() : new JsonObject();
+        }
+    }
+
+    // the parts of a form, like the uploads of resource_create, the content of a file part being given as text
+    private static JsonObject parseMultipart(byte[] body, String boundary) {
+        // ISO-8859-1 keeps one char per byte, so that the parts can be decoded as UTF-8 afterwards
+        String content = new String(body, StandardCharsets.ISO_8859_1);
+        JsonObject form = new JsonObject();
+        for (String part : content.split("--" + Pattern.quote(boundary))) {
+            int headersEnd = part.indexOf("\r\n\r\n");
+            if (headersEnd < 0) {
+                continue;
+            }
+            Matcher name = Pattern.compile("name=\"([^\"]*)\"").matcher(part.substring(0, headersEnd));
+            if (name.find()) {
+                // the part ends with the line break before the next boundary
+                String value = part.substring(headersEnd + 4, part.length() - 2);
+                form.addProperty(name.group(1), new String(value.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8));
+            }
+        }
+        return form;
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject response) throws IOException {
+        byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
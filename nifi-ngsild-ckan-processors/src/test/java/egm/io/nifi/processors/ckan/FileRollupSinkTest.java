@@ -0,0 +1,162 @@
+package egm.io.nifi.processors.ckan;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonPrimitive;
+import egm.io.nifi.processors.ckan.model.DCATMetadata;
+import egm.io.nifi.processors.ckan.model.ResourceBatch;
+import egm.io.nifi.processors.ckan.utils.CKANCacheSettings;
+import org.apache.nifi.util.MockFlowFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writes records through the sink and checks the files uploaded to the {@link CKANStandIn}.
+ */
+class FileRollupSinkTest {
+
+    private static final String ORG_NAME = "stand-in-org";
+    private static final String PKG_NAME = "stations";
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    private CKANStandIn ckan;
+    private CKANBackend ckanBackend;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ckan = new CKANStandIn();
+        ckan.createPackage(ORG_NAME, PKG_NAME);
+        ckanBackend = new CKANBackend(ckan.getUrl(), "stand-in", null,
+            new CKANCacheSettings(1000, Duration.ofHours(1), Duration.ofMinutes(1)));
+    }
+
+    @AfterEach
+    void tearDown() {
+        ckanBackend.close();
+        ckan.close();
+    }
+
+    @Test
+    void fileIsUploadedOnceItReachesTheMaximumSize() throws Exception {
+        try (FileRollupSink sink = new FileRollupSink(directory, 10, Duration.ofHours(1), ckanBackend)) {
+            sink.append(batch("Station 1", record("flow", new JsonPrimitive(1.5))));
+            sink.append(batch("Station 1", record("flow", new JsonPrimitive(2.5))));
+
+            awaitUntil(() -> ckan.getUploads().size() == 2);
+        }
+        // one file per append, as each one reached the maximum size
+        assertEquals(List.of("flow\r\n1.5\r\n", "flow\r\n2.5\r\n"), List.copyOf(ckan.getUploads().values()));
+        assertTrue(ckan.getUploads().keySet().stream().allMatch(name -> name.startsWith("Station 1_")));
+    }
+
+    @Test
+    void fileIsUploadedOnceItReachesTheMaximumAge() throws Exception {
+        try (FileRollupSink sink = new FileRollupSink(directory, MAX_SIZE, Duration.ofMillis(100), ckanBackend)) {
+            sink.append(batch("Station 1", record("flow", new JsonPrimitive(1.5))));
+
+            awaitUntil(() -> ckan.getUploads().size() == 1);
+        }
+        assertEquals(List.of("flow\r\n1.5\r\n"), List.copyOf(ckan.getUploads().values()));
+    }
+
+    @Test
+    void fileIsRolledWhenRecordsBringNewColumns() throws Exception {
+        try (FileRollupSink sink = new FileRollupSink(directory, MAX_SIZE, Duration.ofHours(1), ckanBackend)) {
+            sink.append(batch("Station 1", record("flow", new JsonPrimitive(1.5))));
+            sink.append(batch("Station 1", record("flow", new JsonPrimitive(2.5), "waterLevel", new JsonPrimitive(12))));
+
+            awaitUntil(() -> ckan.getUploads().size() == 1);
+        }
+        assertEquals(List.of("flow\r\n1.5\r\n"), List.copyOf(ckan.getUploads().values()));
+        // the file opened for the new columns is rolled when the sink is closed, and uploaded by the next run
+        assertEquals(List.of("flow,waterLevel\r\n2.5,12\r\n"), rolledFiles());
+    }
+
+    @Test
+    void cellsAreEscapedLikeRfc4180() throws Exception {
+        try (FileRollupSink sink = new FileRollupSink(directory, 10, Duration.ofHours(1), ckanBackend)) {
+            sink.append(batch("Station 1", record(
+                "name", new JsonPrimitive("Station, \"north\""),
+                "note", new JsonPrimitive("line\nbreak"),
+                "flow", new JsonPrimitive(1.5),
+                "status", JsonNull.INSTANCE)));
+
+            awaitUntil(() -> ckan.getUploads().size() == 1);
+        }
+        assertEquals(List.of("name,note,flow,status\r\n\"Station, \"\"north\"\"\",\"line\nbreak\",1.5,\r\n"),
+            List.copyOf(ckan.getUploads().values()));
+    }
+
+    @Test
+    void filesLeftByAPreviousRunAreUploaded() throws Exception {
+        Path packageDirectory = Files.createDirectories(directory.resolve(ORG_NAME).resolve(PKG_NAME));
+        // a file being written and a file rolled but not uploaded when the previous run stopped
+        Files.writeString(packageDirectory.resolve("Station+1.1704067200000.csv.part"), "flow\r\n1.5\r\n");
+        Files.writeString(packageDirectory.resolve("Station+2.1704067200000.csv"), "flow\r\n2.5\r\n");
+
+        try (FileRollupSink sink = new FileRollupSink(directory, MAX_SIZE, Duration.ofHours(1), ckanBackend)) {
+            awaitUntil(() -> ckan.getUploads().size() == 2);
+        }
+        assertEquals(Map.of(
+                "Station 1_20240101T000000000Z", "flow\r\n1.5\r\n",
+                "Station 2_20240101T000000000Z", "flow\r\n2.5\r\n"),
+            ckan.getUploads());
+        awaitUntil(() -> rolledFiles().isEmpty());
+    }
+
+    private static ResourceBatch batch(String resName, Map<String, JsonElement> record) {
+        ResourceBatch batch = new ResourceBatch(ORG_NAME, PKG_NAME, resName, new DCATMetadata());
+        batch.addRecord(record, Map.of(), new MockFlowFile(1));
+        return batch;
+    }
+
+    private static Map<String, JsonElement> record(Object... columns) {
+        Map<String, JsonElement> record = new LinkedHashMap<>();
+        for (int i = 0; i < columns.length; i += 2) {
+            record.put((String) columns[i], (JsonElement) columns[i + 1]);
+        }
+        return record;
+    }
+
+    // the content of the files rolled and not uploaded yet
+    private List<String> rolledFiles() {
+        try (Stream<Path> files = Files.find(directory, 3, (path, attributes) -> path.toString().endsWith(".csv"))) {
+            return files.sorted().map(file -> {
+                try {
+                    return Files.readString(file, StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }).toList();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met within 10 seconds");
+            Thread.sleep(20);
+        }
+    }
+}
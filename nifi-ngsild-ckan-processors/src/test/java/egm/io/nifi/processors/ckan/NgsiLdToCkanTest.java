@@ -0,0 +1,521 @@
+package egm.io.nifi.processors.ckan;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import egm.io.nifi.processors.ckan.model.ResourceBatch;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import static egm.io.nifi.processors.ckan.ngsild.NGSIConstants.DCAT_PUBLISHER_URL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the processor against the {@link CKANStandIn}, checking the requests it sends and the records CKAN stores.
+ */
+class NgsiLdToCkanTest {
+
+    private static final String PUBLISHER_URL = "https://stand-in.ckan.org";
+    private static final List<String> INSTANTS = List.of("2026-03-01T00:00:00Z", "2026-03-01T01:00:00Z", "2026-03-01T02:00:00Z");
+
+    private CKANStandIn ckan;
+    private TestRunner runner;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ckan = new CKANStandIn();
+        runner = newRunner();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ckan.close();
+    }
+
+    private TestRunner newRunner() {
+        TestRunner runner = TestRunners.newTestRunner(NgsiLdToCkan.class);
+        runner.setProperty(NgsiLdToCkan.CKAN_URL, ckan.getUrl());
+        runner.setProperty(NgsiLdToCkan.CKAN_API_KEY, "stand-in");
+        return runner;
+    }
+
+    @Test
+    void recordsOfABatchAreWrittenWithOneRequestPerResource() {
+        runner.setProperty(NgsiLdToCkan.BATCH_SIZE, "10");
+        enqueue(runner, station(1, 26.1));
+        enqueue(runner, station(1, 26.2));
+        enqueue(runner, station(2, 12.5));
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 3);
+        assertEquals(2L, (long) ckan.getRequestCounts().get("datastore_upsert"));
+        assertEquals(2, ckan.getRecords("Station 1").size());
+        assertEquals(1, ckan.getRecords("Station 2").size());
+    }
+
+    @Test
+    void upsertsAreSentWithTheirLength() {
+        enqueue(runner, station(1, 26.1));
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        assertEquals(1L, (long) ckan.getRequestCounts().get("datastore_upsert"));
+        // the body is small enough to be serialized before being sent, with a Content-Length
+        assertEquals(Map.of(), ckan.getChunkedRequestCounts());
+    }
+
+    @Test
+    void recordsOfAResourceAreSentOnceTheyReachTheChunkSize() {
+        runner.setProperty(NgsiLdToCkan.BATCH_SIZE, "10");
+        runner.setProperty(NgsiLdToCkan.UPSERT_CHUNK_SIZE, "2");
+        for (int i = 0; i < 5; i++) {
+            enqueue(runner, station(1, i));
+        }
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 5);
+        assertEquals(3L, (long) ckan.getRequestCounts().get("datastore_upsert"));
+        // the writes of a resource keep the order of the FlowFiles
+        assertEquals(List.of(0.0, 1.0, 2.0, 3.0, 4.0), ckan.getRecords("Station 1").stream()
+            .map(record -> record.get("flow").getAsDouble())
+            .toList());
+    }
+
+    @Test
+    void recordsOfAResourceAreReleasedOnceWritten() {
+        List<List<WeakReference<Map<String, JsonElement>>>> collectedRecords = new ArrayList<>();
+        List<Boolean> releasedBeforeLastFlowFile = new ArrayList<>();
+        NgsiLdToCkan processor = new NgsiLdToCkan() {
+            @Override
+            protected void collectFlowFile(ProcessContext context, FlowFile flowFile, ProcessSession session, CKANBackend ckanBackend,
+                                           Consumer<ResourceBatch> entityBatchHandler) throws Exception {
+                if (collectedRecords.size() == 4) {
+                    // the chunk of the first two FlowFiles was written before the second chunk was sent
+                    releasedBeforeLastFlowFile.add(isReleased(collectedRecords.subList(0, 2)));
+                }
+                List<WeakReference<Map<String, JsonElement>>> records = new ArrayList<>();
+                collectedRecords.add(records);
+                super.collectFlowFile(context, flowFile, session, ckanBackend, entityBatch -> {
+                    entityBatch.getRecords().forEach(record -> records.add(new WeakReference<>(record)));
+                    entityBatchHandler.accept(entityBatch);
+                });
+            }
+        };
+        runner = TestRunners.newTestRunner(processor);
+        runner.setProperty(NgsiLdToCkan.CKAN_URL, ckan.getUrl());
+        runner.setProperty(NgsiLdToCkan.CKAN_API_KEY, "stand-in");
+        runner.setProperty(NgsiLdToCkan.BATCH_SIZE, "10");
+        runner.setProperty(NgsiLdToCkan.UPSERT_CHUNK_SIZE, "2");
+        for (int i = 0; i < 5; i++) {
+            enqueue(runner, station(1, i));
+        }
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 5);
+        assertEquals(List.of(true), releasedBeforeLastFlowFile);
+        assertTrue(isReleased(collectedRecords));
+    }
+
+    @Test
+    void transientFailuresAreRoutedToRetry() {
+        enqueue(runner, station(1, 26.1));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        runner.clearTransferState();
+
+        ckan.setFailures(1.0, 503);
+        enqueue(runner, station(1, 26.2));
+        enqueue(runner, station(2, 12.5));
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_RETRY, 2);
+        for (MockFlowFile flowFile : runner.getFlowFilesForRelationship(NgsiLdToCkan.REL_RETRY)) {
+            assertTrue(flowFile.isPenalized());
+            flowFile.assertAttributeExists("ckan.error.details");
+        }
+    }
+
+    @Test
+    void retryAfterReceivedByALookupHoldsBackTheNextFlowFiles() {
+        ckan.setFailures("organization_show", 0, 503);
+        ckan.setRetryAfter("60");
+        enqueue(runner, station(1, 26.1));
+        runner.run(1, false, true);
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_RETRY, 1);
+        MockFlowFile retried = runner.getFlowFilesForRelationship(NgsiLdToCkan.REL_RETRY).get(0);
+        assertTrue(retried.isPenalized());
+        // CKAN asked to wait longer than the penalty
+        retried.assertAttributeExists(NgsiLdToCkan.RETRY_AFTER_ATTRIBUTE);
+
+        long requestCount = ckan.getRequestCount();
+        enqueue(runner, station(2, 12.5));
+        runner.run(1, true, false);
+
+        // the Retry-After of the lookup holds back the writes too, the FlowFile is left in the queue
+        runner.assertTransferCount(NgsiLdToCkan.REL_RETRY, 1);
+        assertFalse(runner.isQueueEmpty());
+        assertEquals(requestCount, ckan.getRequestCount());
+    }
+
+    @Test
+    void permanentFailuresAreRoutedToFailure() {
+        enqueue(runner, station(1, 26.1));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        runner.clearTransferState();
+
+        ckan.setFailures(1.0, 400);
+        enqueue(runner, station(1, 26.2));
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_FAILURE, 1);
+        runner.getFlowFilesForRelationship(NgsiLdToCkan.REL_FAILURE).get(0).assertAttributeExists("ckan.error.details");
+    }
+
+    @Test
+    void temporalEntitiesGiveOneRecordPerObservedAt() {
+        enqueue(runner, temporalStation(1, 1.0));
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        List<JsonObject> records = ckan.getRecords("Station 1");
+        assertEquals(INSTANTS.size(), records.size());
+        assertEquals(Set.copyOf(INSTANTS), records.stream().map(record -> record.get("observedAt").getAsString()).collect(Collectors.toSet()));
+        for (JsonObject record : records) {
+            // the instances of both attributes observed at the same time are in the same record
+            double hour = INSTANTS.indexOf(record.get("observedAt").getAsString());
+            assertEquals(1.0 + hour, record.get("flow").getAsDouble());
+            assertEquals(10.0 * (1.0 + hour), record.get("waterlevel").getAsDouble());
+        }
+        assertEquals("timestamp", ckan.getFields("Station 1").get("observedAt"));
+        assertEquals("numeric", ckan.getFields("Station 1").get("flow"));
+    }
+
+    @Test
+    void concurrentTasksCreateEachObjectOnce() {
+        runner.setThreadCount(8);
+        runner.setProperty(NgsiLdToCkan.BATCH_SIZE, "1");
+        // the tasks ask for the objects while the first lookups are still running
+        ckan.setLatency(Duration.ofMillis(20), Duration.ofMillis(20));
+        for (int i = 0; i < 8; i++) {
+            enqueue(runner, station(1, i));
+        }
+
+        runner.run(8);
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 8);
+        Map<String, Long> requestCounts = ckan.getRequestCounts();
+        assertEquals(1L, (long) requestCounts.get("organization_create"));
+        assertEquals(1L, (long) requestCounts.get("package_create"));
+        assertEquals(1L, (long) requestCounts.get("resource_create"));
+        assertEquals(1, ckan.getResourceCount("Station 1"));
+        assertEquals(8, ckan.getRecords("Station 1").size());
+    }
+
+    @Test
+    void upsertKeepsTheLastRecordOfEachKey() {
+        runner.setProperty(NgsiLdToCkan.WRITE_METHOD, "upsert");
+        runner.setProperty(NgsiLdToCkan.PRIMARY_KEY, "entityId,observedAt");
+        enqueue(runner, temporalStation(1, 1.0));
+        enqueue(runner, temporalStation(1, 5.0));
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 2);
+        // the records of the batch sharing a key are sent once
+        assertEquals(INSTANTS.size(), ckan.getRowCount());
+        List<JsonObject> records = ckan.getRecords("Station 1");
+        assertEquals(INSTANTS.size(), records.size());
+        for (JsonObject record : records) {
+            assertEquals(5.0 + INSTANTS.indexOf(record.get("observedAt").getAsString()), record.get("flow").getAsDouble());
+        }
+
+        // the records written again replace the stored ones
+        runner.clearTransferState();
+        enqueue(runner, temporalStation(1, 9.0));
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        assertEquals(INSTANTS.size(), ckan.getRecords("Station 1").size());
+        assertEquals(Set.of(9.0, 10.0, 11.0), ckan.getRecords("Station 1").stream()
+            .map(record -> record.get("flow").getAsDouble())
+            .collect(Collectors.toSet()));
+    }
+
+    @Test
+    void updateOnlyChangesStoredRecords() {
+        runner.setProperty(NgsiLdToCkan.WRITE_METHOD, "upsert");
+        runner.setProperty(NgsiLdToCkan.PRIMARY_KEY, "entityId,observedAt");
+        enqueue(runner, temporalStation(1, 1.0));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        runner.clearTransferState();
+
+        runner.setProperty(NgsiLdToCkan.WRITE_METHOD, "update");
+        enqueue(runner, temporalStation(1, 20.0));
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        assertEquals(Set.of(20.0, 21.0, 22.0), ckan.getRecords("Station 1").stream()
+            .map(record -> record.get("flow").getAsDouble())
+            .collect(Collectors.toSet()));
+        runner.clearTransferState();
+
+        // observations not stored yet cannot be updated
+        enqueue(runner, temporalStation(1, 30.0, List.of("2026-03-02T00:00:00Z", "2026-03-02T01:00:00Z")));
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_FAILURE, 1);
+        assertEquals(INSTANTS.size(), ckan.getRecords("Station 1").size());
+    }
+
+    @Test
+    void cachedIdentifiersAreRestoredFromTheStateOfTheProcessor() throws Exception {
+        runner.setProperty(NgsiLdToCkan.CACHE_PERSISTENCE, "true");
+        enqueue(runner, station(1, 26.1));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+
+        // the identifiers are persisted when the processor is stopped
+        Map<String, String> state = runner.getStateManager().getState(Scope.LOCAL).toMap();
+        for (String prefix : List.of("org:", "pkg:", "res:")) {
+            assertTrue(state.keySet().stream().anyMatch(key -> key.startsWith(prefix)), prefix + " in " + state.keySet());
+        }
+
+        TestRunner restarted = newRunner();
+        restarted.setProperty(NgsiLdToCkan.CACHE_PERSISTENCE, "true");
+        restarted.getStateManager().setState(state, Scope.LOCAL);
+        Map<String, Long> requestCounts = ckan.getRequestCounts();
+        enqueue(restarted, station(1, 26.2));
+        restarted.run();
+
+        restarted.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        assertEquals(2, ckan.getRecords("Station 1").size());
+        // the objects are neither looked up nor created again, only listed by the background check
+        Map<String, Long> restartedRequestCounts = ckan.getRequestCounts();
+        for (String action : List.of("organization_show", "organization_create", "package_show", "package_create", "resource_create")) {
+            assertEquals(requestCounts.get(action), restartedRequestCounts.get(action), action);
+        }
+        assertEquals(1, ckan.getResourceCount("Station 1"));
+    }
+
+    @Test
+    void nodesOfAClusterCreateEachObjectOnce() throws Exception {
+        Map<String, byte[]> sharedEntries = new ConcurrentHashMap<>();
+        TestRunner node1 = newRunner();
+        TestRunner node2 = newRunner();
+        for (TestRunner node : List.of(node1, node2)) {
+            SharedMapCacheClient cacheClient = new SharedMapCacheClient(sharedEntries);
+            node.addControllerService("shared-cache", cacheClient);
+            node.enableControllerService(cacheClient);
+            node.setProperty(NgsiLdToCkan.DISTRIBUTED_CACHE, "shared-cache");
+        }
+        // the nodes ask for the objects while the first lookups are still running
+        ckan.setLatency(Duration.ofMillis(50), Duration.ofMillis(50));
+        enqueue(node1, station(1, 26.1));
+        enqueue(node2, station(1, 26.2));
+
+        CompletableFuture<Void> node1Run = CompletableFuture.runAsync(node1::run);
+        node2.run();
+        node1Run.get();
+
+        node1.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        node2.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        Map<String, Long> requestCounts = ckan.getRequestCounts();
+        assertEquals(1L, (long) requestCounts.get("organization_create"));
+        assertEquals(1L, (long) requestCounts.get("package_create"));
+        assertEquals(1L, (long) requestCounts.get("resource_create"));
+        assertEquals(1, ckan.getResourceCount("Station 1"));
+        assertEquals(2, ckan.getRecords("Station 1").size());
+    }
+
+    // the records are only weakly reachable once the processor no longer holds them
+    private static boolean isReleased(List<List<WeakReference<Map<String, JsonElement>>>> records) {
+        for (int i = 0; i < 50; i++) {
+            System.gc();
+            if (records.stream().flatMap(List::stream).allMatch(record -> record.get() == null)) {
+                return true;
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    static void enqueue(TestRunner runner, JsonObject entity) {
+        JsonArray data = new JsonArray();
+        data.add(entity);
+        JsonObject notification = new JsonObject();
+        notification.addProperty("id", "urn:ngsi-ld:Notification:1");
+        notification.addProperty("type", "Notification");
+        notification.addProperty("subscriptionId", "urn:ngsi-ld:Subscription:CKAN");
+        notification.addProperty("notifiedAt", "2026-03-19T09:37:26.859Z");
+        notification.add("data", data);
+        runner.enqueue(notification.toString().getBytes(StandardCharsets.UTF_8), Map.of(DCAT_PUBLISHER_URL, PUBLISHER_URL));
+    }
+
+    // the entity is stored in the resource named after its title, for instance "Station 1"
+    static JsonObject station(int index, double flow) {
+        JsonObject entity = stationEntity(index);
+        entity.add("flow", observedProperty(flow, "2026-03-19T09:00:00Z"));
+        return entity;
+    }
+
+    private static JsonObject temporalStation(int index, double firstFlow) {
+        return temporalStation(index, firstFlow, INSTANTS);
+    }
+
+    // the entity in temporal representation, its attributes holding an instance per instant
+    private static JsonObject temporalStation(int index, double firstFlow, List<String> instants) {
+        JsonArray flows = new JsonArray();
+        JsonArray waterLevels = new JsonArray();
+        for (int i = 0; i < instants.size(); i++) {
+            flows.add(observedProperty(firstFlow + i, instants.get(i)));
+            waterLevels.add(observedProperty(10.0 * (firstFlow + i), instants.get(i)));
+        }
+        JsonObject entity = stationEntity(index);
+        entity.add("flow", flows);
+        entity.add("waterLevel", waterLevels);
+        return entity;
+    }
+
+    private static JsonObject stationEntity(int index) {
+        JsonObject dataset = new JsonObject();
+        dataset.addProperty("id", "urn:ngsi-ld:Dataset:Stations");
+        dataset.addProperty("type", "Dataset");
+        dataset.add("title", property("Stations Dataset"));
+        dataset.add("description", property("Dataset of the hydrometric stations"));
+
+        JsonObject servesDataset = new JsonObject();
+        servesDataset.addProperty("type", "Relationship");
+        servesDataset.addProperty("object", "urn:ngsi-ld:Dataset:Stations");
+        servesDataset.add("entity", dataset);
+
+        JsonObject entity = new JsonObject();
+        entity.addProperty("id", "urn:ngsi-ld:HydrometricStation:" + index);
+        entity.addProperty("type", "HydrometricStation");
+        entity.add("title", property("Station " + index));
+        entity.add("description", property("Hydrometric station " + index));
+        entity.add("servesDataset", servesDataset);
+        return entity;
+    }
+
+    private static JsonObject property(String value) {
+        JsonObject property = new JsonObject();
+        property.addProperty("type", "Property");
+        property.addProperty("value", value);
+        return property;
+    }
+
+    private static JsonObject observedProperty(double value, String observedAt) {
+        JsonObject property = new JsonObject();
+        property.addProperty("type", "Property");
+        property.addProperty("value", value);
+        property.addProperty("observedAt", observedAt);
+        return property;
+    }
+
+    /**
+     * Distributed map cache client keeping its entries in a map, several clients sharing the same map like the nodes
+     * of a cluster share a cache server.
+     */
+    private static final class SharedMapCacheClient extends AbstractControllerService implements DistributedMapCacheClient {
+
+        private final Map<String, byte[]> entries;
+
+        private SharedMapCacheClient(Map<String, byte[]> entries) {
+            this.entries = entries;
+        }
+
+        private static <T> byte[] serialize(T value, Serializer<T> serializer) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.serialize(value, out);
+            return out.toByteArray();
+        }
+
+        private static <K> String key(K key, Serializer<K> keySerializer) throws IOException {
+            return new String(serialize(key, keySerializer), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public <K, V> boolean putIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+            return entries.putIfAbsent(key(key, keySerializer), serialize(value, valueSerializer)) == null;
+        }
+
+        @Override
+        public <K, V> V getAndPutIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                          Deserializer<V> valueDeserializer) throws IOException {
+            byte[] previous = entries.putIfAbsent(key(key, keySerializer), serialize(value, valueSerializer));
+            return previous == null ? null : valueDeserializer.deserialize(previous);
+        }
+
+        @Override
+        public <K> boolean containsKey(K key, Serializer<K> keySerializer) throws IOException {
+            return entries.containsKey(key(key, keySerializer));
+        }
+
+        @Override
+        public <K, V> void put(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+            entries.put(key(key, keySerializer), serialize(value, valueSerializer));
+        }
+
+        @Override
+        public <K, V> V get(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+            byte[] value = entries.get(key(key, keySerializer));
+            return value == null ? null : valueDeserializer.deserialize(value);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public <K> boolean remove(K key, Serializer<K> serializer) throws IOException {
+            return entries.remove(key(key, serializer)) != null;
+        }
+
+        public long removeByPattern(String regex) {
+            long removed = entries.keySet().stream().filter(key -> key.matches(regex)).count();
+            entries.keySet().removeIf(key -> key.matches(regex));
+            return removed;
+        }
+    }
+}
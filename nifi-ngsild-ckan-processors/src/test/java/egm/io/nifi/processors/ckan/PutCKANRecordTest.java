@@ -0,0 +1,128 @@
+package egm.io.nifi.processors.ckan;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.serialization.record.MockRecordParser;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the processor against the {@link CKANStandIn}, the records being given by a mock Record Reader.
+ */
+class PutCKANRecordTest {
+
+    private static final String RESOURCE_NAME = "Measures";
+
+    private CKANStandIn ckan;
+    private TestRunner runner;
+
+    @BeforeEach
+    void setUp() throws IOException, InitializationException {
+        ckan = new CKANStandIn();
+
+        MockRecordParser readerFactory = new MockRecordParser();
+        readerFactory.addSchemaField("station", RecordFieldType.INT);
+        readerFactory.addSchemaField("flow", RecordFieldType.DOUBLE);
+        for (int i = 0; i < 5; i++) {
+            readerFactory.addRecord(i, 10.0 * i);
+        }
+
+        runner = TestRunners.newTestRunner(PutCKANRecord.class);
+        runner.addControllerService("reader", readerFactory);
+        runner.enableControllerService(readerFactory);
+        runner.setProperty(PutCKANRecord.RECORD_READER, "reader");
+        runner.setProperty(NgsiLdToCkan.CKAN_URL, ckan.getUrl());
+        runner.setProperty(NgsiLdToCkan.CKAN_API_KEY, "stand-in");
+        runner.setProperty(PutCKANRecord.PUBLISHER_URL, "https://stand-in.ckan.org");
+        runner.setProperty(PutCKANRecord.PACKAGE_NAME, "Stations");
+        runner.setProperty(PutCKANRecord.RESOURCE_NAME, RESOURCE_NAME);
+        runner.setProperty(NgsiLdToCkan.UPSERT_CHUNK_SIZE, "2");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ckan.close();
+    }
+
+    @Test
+    void recordsAreWrittenInChunks() {
+        runner.enqueue(new byte[0]);
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PutCKANRecord.REL_SUCCESS, 1);
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship(PutCKANRecord.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("record.count", "5");
+        flowFile.assertAttributeNotExists(PutCKANRecord.RECORDS_WRITTEN_ATTRIBUTE);
+        assertEquals(3L, (long) ckan.getRequestCounts().get("datastore_upsert"));
+        assertEquals(List.of(0.0, 10.0, 20.0, 30.0, 40.0), ckan.getRecords(RESOURCE_NAME).stream()
+            .map(record -> record.get("flow").getAsDouble())
+            .toList());
+    }
+
+    @Test
+    void transientFailuresAreRoutedToRetry() {
+        ckan.setFailures(1.0, 503);
+        runner.enqueue(new byte[0]);
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PutCKANRecord.REL_RETRY, 1);
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship(PutCKANRecord.REL_RETRY).get(0);
+        assertTrue(flowFile.isPenalized());
+        flowFile.assertAttributeExists("ckan.error.details");
+        flowFile.assertAttributeEquals(PutCKANRecord.RECORDS_WRITTEN_ATTRIBUTE, "0");
+    }
+
+    @Test
+    void retriedFlowFileSkipsTheRecordsAlreadyWritten() {
+        // the first chunk is acknowledged, the second one fails
+        ckan.setFailures("datastore_upsert", 1, 503);
+        runner.enqueue(new byte[0]);
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PutCKANRecord.REL_RETRY, 1);
+        MockFlowFile retried = runner.getFlowFilesForRelationship(PutCKANRecord.REL_RETRY).get(0);
+        retried.assertAttributeEquals(PutCKANRecord.RECORDS_WRITTEN_ATTRIBUTE, "2");
+        assertEquals(2, ckan.getRecords(RESOURCE_NAME).size());
+
+        ckan.clearFailures();
+        runner.clearTransferState();
+        runner.enqueue(new byte[0], retried.getAttributes());
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PutCKANRecord.REL_SUCCESS, 1);
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship(PutCKANRecord.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("record.count", "5");
+        flowFile.assertAttributeNotExists(PutCKANRecord.RECORDS_WRITTEN_ATTRIBUTE);
+        // inserted once each
+        assertEquals(List.of(0.0, 10.0, 20.0, 30.0, 40.0), ckan.getRecords(RESOURCE_NAME).stream()
+            .map(record -> record.get("flow").getAsDouble())
+            .toList());
+    }
+
+    @Test
+    void malformedRecordsWrittenAttributeIsRoutedToFailure() {
+        runner.enqueue(new byte[0], Map.of(PutCKANRecord.RECORDS_WRITTEN_ATTRIBUTE, "two"));
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(PutCKANRecord.REL_FAILURE, 1);
+        MockFlowFile flowFile = runner.getFlowFilesForRelationship(PutCKANRecord.REL_FAILURE).get(0);
+        flowFile.assertAttributeExists("ckan.error.details");
+        flowFile.assertAttributeEquals(PutCKANRecord.RECORDS_WRITTEN_ATTRIBUTE, "two");
+        assertEquals(0, ckan.getRecords(RESOURCE_NAME).size());
+    }
+}
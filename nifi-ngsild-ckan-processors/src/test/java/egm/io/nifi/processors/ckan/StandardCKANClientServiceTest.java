@@ -0,0 +1,105 @@
+package egm.io.nifi.processors.ckan;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static egm.io.nifi.processors.ckan.NgsiLdToCkanTest.enqueue;
+import static egm.io.nifi.processors.ckan.NgsiLdToCkanTest.station;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the processor with its connection to the {@link CKANStandIn} provided by the service.
+ */
+class StandardCKANClientServiceTest {
+
+    private CKANStandIn ckan;
+    private TestRunner runner;
+    private StandardCKANClientService service;
+
+    @BeforeEach
+    void setUp() throws IOException, InitializationException {
+        ckan = new CKANStandIn();
+        runner = TestRunners.newTestRunner(NgsiLdToCkan.class);
+        service = new StandardCKANClientService();
+        runner.addControllerService("ckan-client", service);
+        runner.setProperty(service, NgsiLdToCkan.CKAN_URL, ckan.getUrl());
+        runner.setProperty(service, StandardCKANClientService.CKAN_API_KEY, "stand-in");
+        runner.setProperty(NgsiLdToCkan.CKAN_CLIENT_SERVICE, "ckan-client");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ckan.close();
+    }
+
+    @Test
+    void largeRequestBodiesAreSentCompressed() {
+        runner.setProperty(service, StandardCKANClientService.COMPRESS_REQUESTS, "true");
+        runner.enableControllerService(service);
+        runner.setProperty(NgsiLdToCkan.BATCH_SIZE, "20");
+        for (int i = 0; i < 20; i++) {
+            enqueue(runner, station(1, i));
+        }
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 20);
+        // the records of the 20 FlowFiles make an upsert larger than 1 KB, the other requests are smaller
+        assertEquals(1L, (long) ckan.getCompressedRequestCounts().get("datastore_upsert"));
+        assertNull(ckan.getCompressedRequestCounts().get("organization_create"));
+        // the stand-in decoded the records the way CKAN does
+        assertEquals(IntStream.range(0, 20).mapToObj(i -> (double) i).toList(), ckan.getRecords("Station 1").stream()
+            .map(record -> record.get("flow").getAsDouble())
+            .toList());
+    }
+
+    @Test
+    void requestBodiesAreNotCompressedByDefault() {
+        runner.enableControllerService(service);
+        runner.setProperty(NgsiLdToCkan.BATCH_SIZE, "20");
+        for (int i = 0; i < 20; i++) {
+            enqueue(runner, station(1, i));
+        }
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 20);
+        assertEquals(List.of(), List.copyOf(ckan.getCompressedRequestCounts().keySet()));
+        assertEquals(20, ckan.getRecords("Station 1").size());
+    }
+
+    @Test
+    void callsAndCacheLookupsAreCountedPerAction() {
+        runner.enableControllerService(service);
+        enqueue(runner, station(1, 26.1));
+
+        runner.run();
+
+        runner.assertAllFlowFilesTransferred(NgsiLdToCkan.REL_SUCCESS, 1);
+        assertEquals(1L, (long) runner.getCounterValue("CKAN organization_create calls"));
+        assertEquals(1L, (long) runner.getCounterValue("CKAN resource_create calls"));
+        assertEquals(1L, (long) runner.getCounterValue("CKAN datastore_upsert calls"));
+        assertTrue(runner.getCounterValue("CKAN datastore_upsert bytes sent") > 0);
+        assertNull(runner.getCounterValue("CKAN datastore_upsert errors"));
+        assertNotNull(runner.getCounterValue("CKAN cache resource misses"));
+
+        // the resource of the next FlowFile is found in the cache, without creating it again
+        enqueue(runner, station(1, 26.2));
+        runner.run();
+
+        assertEquals(2L, (long) runner.getCounterValue("CKAN datastore_upsert calls"));
+        assertEquals(1L, (long) runner.getCounterValue("CKAN resource_create calls"));
+        assertNotNull(runner.getCounterValue("CKAN cache resource hits"));
+    }
+}
@@ -0,0 +1,110 @@
+package egm.io.nifi.processors.ckan;
+
+import egm.io.nifi.processors.ckan.utils.CKANCacheSettings;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Creates views through the {@link CKANStandIn}, some of its requests failing.
+ */
+class ViewProvisionerTest {
+
+    private static final String RESOURCE_NAME = "Station 1";
+    private static final Duration INITIAL_BACKOFF = Duration.ofMillis(10);
+
+    private CKANStandIn ckan;
+    private CKANBackend ckanBackend;
+    private String resId;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ckan = new CKANStandIn();
+        ckan.createPackage("stand-in-org", "stations", RESOURCE_NAME);
+        resId = ckan.getResourceId(RESOURCE_NAME);
+        ckanBackend = newBackend();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ckanBackend.close();
+        ckan.close();
+    }
+
+    private CKANBackend newBackend() {
+        return new CKANBackend(ckan.getUrl(), "stand-in", "recline_view",
+            new CKANCacheSettings(1000, Duration.ofHours(1), Duration.ofMinutes(1)));
+    }
+
+    @Test
+    void viewIsRetriedAfterTheTimeCKANAskedToWait() throws Exception {
+        ckan.setFailures("resource_view_create", 0, 503);
+        ckan.setRetryAfter("1");
+        try (ViewProvisioner provisioner = new ViewProvisioner(ckanBackend, INITIAL_BACKOFF)) {
+            long start = System.nanoTime();
+            provisioner.submit(resId, false);
+            awaitUntil(() -> ckan.getFailureCount() == 1);
+            ckan.clearFailures();
+
+            awaitUntil(() -> ckan.getViewCount(RESOURCE_NAME) == 1);
+            // the backoff of the first retry is far shorter than the second CKAN asked to wait
+            assertTrue(System.nanoTime() - start >= Duration.ofSeconds(1).toNanos());
+        }
+    }
+
+    @Test
+    void viewIsGivenUpAfterTheMaximumNumberOfAttemptsThenSubmittedAgain() throws Exception {
+        ckan.setFailures("resource_view_create", 0, 503);
+        try (ViewProvisioner provisioner = new ViewProvisioner(ckanBackend, INITIAL_BACKOFF)) {
+            provisioner.submit(resId, false);
+            awaitUntil(() -> ckan.getFailureCount() == 5);
+            // longer than the backoff of a sixth attempt
+            Thread.sleep(500);
+            assertEquals(5, ckan.getFailureCount());
+            assertEquals(0, ckan.getViewCount(RESOURCE_NAME));
+
+            ckan.clearFailures();
+            provisioner.submit(resId, false);
+            awaitUntil(() -> ckan.getViewCount(RESOURCE_NAME) == 1);
+        }
+    }
+
+    @Test
+    void resourceIsSubmittedAgainToTheNextProvisioner() throws Exception {
+        ViewProvisioner provisioner = new ViewProvisioner(ckanBackend, INITIAL_BACKOFF);
+        provisioner.submit(resId, false);
+        awaitUntil(() -> ckan.getViewCount(RESOURCE_NAME) == 1);
+        provisioner.close();
+
+        // a closed provisioner no longer sends requests
+        long requestCount = ckan.getRequestCount();
+        provisioner.submit(resId, false);
+        Thread.sleep(100);
+        assertEquals(requestCount, ckan.getRequestCount());
+
+        // the next run checks the view, without knowing it was created, and does not create it twice
+        try (CKANBackend restartedBackend = newBackend();
+             ViewProvisioner restartedProvisioner = new ViewProvisioner(restartedBackend, INITIAL_BACKOFF)) {
+            restartedProvisioner.submit(resId, false);
+            awaitUntil(() -> ckan.getRequestCounts().get("resource_view_list") == 2);
+            Thread.sleep(100);
+        }
+        assertEquals(1L, (long) ckan.getRequestCounts().get("resource_view_create"));
+        assertEquals(1, ckan.getViewCount(RESOURCE_NAME));
+    }
+
+    private static void awaitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "condition not met within 10 seconds");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package egm.io.nifi.processors.ckan.http;
+
+import com.google.gson.stream.JsonWriter;
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JsonRequestBodyTest {
+
+    private static final String DOCUMENT = "{\"resource_id\":\"stations\",\"records\":[{\"flow\":26.1}]}";
+
+    @Test
+    void documentUpToTheBufferLimitIsSerializedOnce() throws IOException {
+        AtomicInteger serializations = new AtomicInteger();
+        JsonRequestBody body = new JsonRequestBody(writer -> {
+            serializations.incrementAndGet();
+            writeDocument(writer);
+        }, DOCUMENT.length());
+
+        assertEquals(DOCUMENT.length(), body.contentLength());
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+
+        assertEquals(DOCUMENT, sink.readUtf8());
+        assertEquals(DOCUMENT.length(), body.getBytesWritten());
+        assertEquals(1, serializations.get());
+    }
+
+    @Test
+    void documentLargerThanTheBufferLimitIsStreamed() throws IOException {
+        JsonRequestBody body = new JsonRequestBody(JsonRequestBodyTest::writeDocument, DOCUMENT.length() - 1);
+
+        assertEquals(-1, body.contentLength());
+        Buffer sink = new Buffer();
+        body.writeTo(sink);
+
+        assertEquals(DOCUMENT, sink.readUtf8());
+        assertEquals(DOCUMENT.length(), body.getBytesWritten());
+    }
+
+    @Test
+    void documentIsStreamedWithoutBufferLimit() throws IOException {
+        JsonRequestBody body = new JsonRequestBody(JsonRequestBodyTest::writeDocument, 0);
+
+        assertEquals(-1, body.contentLength());
+    }
+
+    private static void writeDocument(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("resource_id").value("stations");
+        writer.name("records").beginArray();
+        writer.beginObject();
+        writer.name("flow").value(26.1);
+        writer.endObject();
+        writer.endArray();
+        writer.endObject();
+    }
+}
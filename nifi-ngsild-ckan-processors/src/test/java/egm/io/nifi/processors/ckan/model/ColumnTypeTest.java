@@ -0,0 +1,42 @@
+package egm.io.nifi.processors.ckan.model;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ColumnTypeTest {
+
+    @Test
+    void mergeKeepsTheSameType() {
+        assertEquals(ColumnType.NUMERIC, ColumnType.merge(ColumnType.NUMERIC, ColumnType.NUMERIC));
+        assertEquals(ColumnType.JSON, ColumnType.merge(ColumnType.JSON, ColumnType.JSON));
+    }
+
+    @Test
+    void mergeWithAMissingTypeKeepsTheOtherOne() {
+        assertEquals(ColumnType.TIMESTAMP, ColumnType.merge(null, ColumnType.TIMESTAMP));
+        assertEquals(ColumnType.NUMERIC, ColumnType.merge(ColumnType.NUMERIC, null));
+    }
+
+    @Test
+    void mergeOfConflictingTypesFallsBackToText() {
+        assertEquals(ColumnType.TEXT, ColumnType.merge(ColumnType.NUMERIC, ColumnType.JSON));
+        assertEquals(ColumnType.TEXT, ColumnType.merge(ColumnType.TIMESTAMP, ColumnType.NUMERIC));
+        assertEquals(ColumnType.TEXT, ColumnType.merge(ColumnType.TEXT, ColumnType.NUMERIC));
+    }
+
+    @Test
+    void ofFollowsTheShapeOfTheValue() {
+        assertEquals(ColumnType.NUMERIC, ColumnType.of(new JsonPrimitive(12.5)));
+        assertEquals(ColumnType.TEXT, ColumnType.of(new JsonPrimitive("12.5")));
+        assertEquals(ColumnType.TEXT, ColumnType.of(new JsonPrimitive(true)));
+        assertEquals(ColumnType.JSON, ColumnType.of(new JsonObject()));
+        assertEquals(ColumnType.JSON, ColumnType.of(new JsonArray()));
+        assertEquals(ColumnType.TEXT, ColumnType.of(JsonNull.INSTANCE));
+        assertEquals(ColumnType.TEXT, ColumnType.of(null));
+    }
+}
@@ -0,0 +1,100 @@
+package egm.io.nifi.processors.ckan.utils;
+
+import egm.io.nifi.processors.ckan.CKANStandIn;
+import egm.io.nifi.processors.ckan.http.HttpBackend;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Warms up the cache from the {@link CKANStandIn}, checking what is cached and the bounds of the listing.
+ */
+class CKANCacheTest {
+
+    private CKANStandIn ckan;
+    private OkHttpClient httpClient;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ckan = new CKANStandIn();
+        httpClient = new OkHttpClient();
+    }
+
+    @AfterEach
+    void tearDown() {
+        HttpBackend.closeClient(httpClient);
+        ckan.close();
+    }
+
+    private CKANCache newCache(long maximumSize) {
+        return new CKANCache(ckan.getUrl(), "stand-in", new CKANCacheSettings(maximumSize, Duration.ofHours(1), Duration.ofMinutes(1)), httpClient);
+    }
+
+    // each package in its own organization, with a resource
+    private void createPackages(int count) {
+        for (int i = 0; i < count; i++) {
+            ckan.createPackage(String.format("org-%02d", i), String.format("pkg-%02d", i), "Station " + i);
+        }
+    }
+
+    private static long count(CKANCache cache, String prefix) {
+        return cache.snapshot().keySet().stream().filter(key -> key.startsWith(prefix)).count();
+    }
+
+    @Test
+    void warmUpCachesTheObjectsOfCKAN() throws Exception {
+        createPackages(30);
+        CKANCache cache = newCache(1000);
+
+        cache.warmUp(10, Duration.ofSeconds(10));
+
+        for (int i = 0; i < 30; i++) {
+            String orgName = String.format("org-%02d", i);
+            String pkgName = String.format("pkg-%02d", i);
+            assertTrue(cache.getOrgId(orgName) != null, orgName);
+            assertTrue(cache.getPkgId(orgName, pkgName) != null, pkgName);
+            assertEquals(ckan.getResourceId("Station " + i), cache.getResId(orgName, pkgName, "Station " + i));
+        }
+        // the packages are listed 10 at a time
+        assertEquals(3L, (long) ckan.getRequestCounts().get("package_search"));
+
+        // the objects are then found without reaching CKAN
+        long requestCount = ckan.getRequestCount();
+        assertTrue(cache.isCachedRes("org-07", "pkg-07", "Station 7"));
+        assertEquals(requestCount, ckan.getRequestCount());
+    }
+
+    @Test
+    void warmUpListsNoMorePackagesThanTheCacheHolds() throws Exception {
+        createPackages(30);
+        CKANCache cache = newCache(10);
+
+        cache.warmUp(5, Duration.ofSeconds(10));
+
+        // two pages of 5 packages fill the cache
+        assertEquals(2L, (long) ckan.getRequestCounts().get("package_search"));
+        assertEquals(10, count(cache, "pkg:"));
+    }
+
+    @Test
+    void warmUpStopsAtTheDeadline() throws Exception {
+        createPackages(50);
+        ckan.setLatency(Duration.ofMillis(200), Duration.ofMillis(200));
+        CKANCache cache = newCache(1000);
+
+        long start = System.nanoTime();
+        cache.warmUp(1, Duration.ofMillis(100));
+        Duration elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        // listing 50 organizations and 50 packages one at a time takes far longer
+        assertTrue(elapsed.compareTo(Duration.ofSeconds(2)) < 0, "warm-up took " + elapsed);
+        assertTrue(count(cache, "pkg:") < 50);
+    }
+}
@@ -0,0 +1,83 @@
+package egm.io.nifi.processors.ckan.utils;
+
+import com.google.gson.JsonPrimitive;
+import egm.io.nifi.processors.ckan.model.ColumnType;
+import egm.io.nifi.processors.ckan.ngsild.Attributes;
+import egm.io.nifi.processors.ckan.ngsild.Entity;
+import egm.io.nifi.processors.ckan.ngsild.NGSIConstants;
+import egm.io.nifi.processors.ckan.ngsild.NGSIUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CKANColumnAggregatorTest {
+
+    @Test
+    void inferColumnTypeUsesTheValueTypeOfProperties() {
+        assertEquals(ColumnType.NUMERIC, CKANColumnAggregator.inferColumnType(attribute(NGSIConstants.NGSILD_PROPERTY, "21.5", ColumnType.NUMERIC)));
+        assertEquals(ColumnType.JSON, CKANColumnAggregator.inferColumnType(attribute(NGSIConstants.NGSILD_PROPERTY, "{\"a\":1}", ColumnType.JSON)));
+        assertEquals(ColumnType.TEXT, CKANColumnAggregator.inferColumnType(attribute(NGSIConstants.NGSILD_PROPERTY, "n/a", null)));
+    }
+
+    @Test
+    void inferColumnTypeStoresGeoPropertiesAsJsonAndRelationshipsAsText() {
+        assertEquals(ColumnType.JSON, CKANColumnAggregator.inferColumnType(attribute(NGSIConstants.NGSILD_GEOPROPERTY, "{}", ColumnType.TEXT)));
+        assertEquals(ColumnType.TEXT, CKANColumnAggregator.inferColumnType(attribute(NGSIConstants.NGSILD_RELATIONSHIP, "urn:a", ColumnType.NUMERIC)));
+    }
+
+    @Test
+    void valuesNotHavingTheExpectedShapeAreStoredAsText() {
+        Entity entity = new Entity("urn:ngsi-ld:Sensor:01", "Sensor",
+            new ArrayList<>(List.of(attribute(NGSIConstants.NGSILD_PROPERTY, "not a number", ColumnType.NUMERIC))));
+
+        CKANColumnAggregator aggregator = CKANColumnAggregator.forEntity(entity, 0L, "").get(0);
+
+        assertEquals(ColumnType.TEXT, aggregator.getColumnTypes().get("temperature"));
+        assertEquals(new JsonPrimitive("not a number"), aggregator.toRecord().get("temperature"));
+    }
+
+    @Test
+    void topLevelAndNestedAttributesGetTypedColumns() throws Exception {
+        String notification = """
+            {"data": [{
+              "id": "urn:ngsi-ld:Sensor:01",
+              "type": "Sensor",
+              "temperature": {"type": "Property", "value": 21.5, "observedAt": "2024-01-01T00:00:00Z",
+                "accuracy": {"type": "Property", "value": 0.1}},
+              "location": {"type": "GeoProperty", "value": {"type": "Point", "coordinates": [1, 2]}},
+              "status": {"type": "Property", "value": "ok"},
+              "settings": {"type": "Property", "value": {"mode": "eco"}}
+            }]}""";
+        List<Entity> entities = new ArrayList<>();
+        new NGSIUtils().streamEntities(new ByteArrayInputStream(notification.getBytes(StandardCharsets.UTF_8)), entities::add);
+
+        Map<String, ColumnType> columnTypes = CKANColumnAggregator.forEntity(entities.get(0), 0L, "").get(0).getColumnTypes();
+
+        assertEquals(ColumnType.TIMESTAMP, columnTypes.get(NGSIConstants.RECV_TIME));
+        assertEquals(ColumnType.NUMERIC, columnTypes.get("temperature"));
+        assertEquals(ColumnType.NUMERIC, columnTypes.get("temperature_accuracy"));
+        assertEquals(ColumnType.TIMESTAMP, columnTypes.get("temperature_observedat"));
+        assertEquals(ColumnType.JSON, columnTypes.get("location"));
+        assertEquals(ColumnType.TEXT, columnTypes.get("status"));
+        assertEquals(ColumnType.JSON, columnTypes.get("settings"));
+    }
+
+    @Test
+    void recvTimeHasPaddedMilliseconds() {
+        Entity entity = new Entity("urn:ngsi-ld:Sensor:01", "Sensor", new ArrayList<>());
+
+        CKANColumnAggregator aggregator = CKANColumnAggregator.forEntity(entity, 1704067207005L, "").get(0);
+
+        assertEquals(new JsonPrimitive("2024-01-01T00:00:07.005Z"), aggregator.toRecord().get(NGSIConstants.RECV_TIME));
+    }
+
+    private static Attributes attribute(String attrType, String value, ColumnType valueType) {
+        return new Attributes("temperature", attrType, value, valueType, "", false, null);
+    }
+}
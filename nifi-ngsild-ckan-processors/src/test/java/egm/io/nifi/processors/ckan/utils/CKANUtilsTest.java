@@ -0,0 +1,156 @@
+package egm.io.nifi.processors.ckan.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Compares the helpers of {@link CKANUtils} with the implementations they replaced, based on SimpleDateFormat, a
+ * regex and a MessageDigest created per call.
+ */
+class CKANUtilsTest {
+
+    private static final Pattern ENCODE_PATTERN = Pattern.compile("[^a-zA-Z0-9\\_\\-]");
+    private static final long MIDNIGHT = 1704067200000L; // 2024-01-01T00:00:00Z
+
+    private static String formerHumanReadable(long ts, boolean addUTC, String millisPattern) {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String humanReadable = sdf.format(new Date(ts));
+        humanReadable += (addUTC ? "T" : " ");
+        sdf = new SimpleDateFormat("HH:mm:ss." + millisPattern);
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        humanReadable += sdf.format(new Date(ts)) + (addUTC ? "Z" : "");
+        return humanReadable;
+    }
+
+    private static String formerEncodeCKAN(String in) {
+        return ENCODE_PATTERN.matcher(in).replaceAll("-");
+    }
+
+    private static int formerGenerateHash(String input) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hashBytes = digest.digest(input.getBytes(StandardCharsets.UTF_8));
+        return ((hashBytes[0] & 0xff) << 24) |
+            ((hashBytes[1] & 0xff) << 16) |
+            ((hashBytes[2] & 0xff) << 8) |
+            (hashBytes[3] & 0xff);
+    }
+
+    private static List<Long> timestamps() {
+        List<Long> timestamps = new ArrayList<>(List.of(
+            0L, 1L, -1L, 5L, 99L, 100L, 999L,
+            MIDNIGHT, MIDNIGHT - 1, MIDNIGHT + 5, MIDNIGHT + 50, MIDNIGHT + 500,
+            1709164800000L, // 2024-02-29T00:00:00Z
+            951782400000L, // 2000-02-29T00:00:00Z
+            4107542400000L, // 2100-03-01T00:00:00Z
+            -12212553600000L, -12212553600001L, // around 1583-01-01T00:00:00Z, the Julian calendar before
+            -12219292800000L, // 1582-10-15T00:00:00Z, first day of the Gregorian calendar
+            253402300799999L, 253402300800000L, // around the end of year 9999
+            Long.MAX_VALUE / 1000));
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // from 1583 to 9999
+            timestamps.add(-12212553600000L + (long) (random.nextDouble() * (253402300799999L + 12212553600000L)));
+        }
+        return timestamps;
+    }
+
+    @Test
+    void getHumanReadableMatchesSimpleDateFormat() {
+        for (long ts : timestamps()) {
+            assertEquals(formerHumanReadable(ts, true, "S"), CKANUtils.getHumanReadable(ts, true), "ts=" + ts);
+            assertEquals(formerHumanReadable(ts, false, "S"), CKANUtils.getHumanReadable(ts, false), "ts=" + ts);
+        }
+    }
+
+    @Test
+    void getHumanReadableDoesNotPadTheMilliseconds() {
+        assertEquals("2024-01-01T00:00:00.0Z", CKANUtils.getHumanReadable(MIDNIGHT, true));
+        assertEquals("2024-01-01 00:00:00.5", CKANUtils.getHumanReadable(MIDNIGHT + 5, false));
+        assertEquals("2024-01-01T00:00:00.50Z", CKANUtils.getHumanReadable(MIDNIGHT + 50, true));
+        assertEquals("2023-12-31T23:59:59.999Z", CKANUtils.getHumanReadable(MIDNIGHT - 1, true));
+    }
+
+    @Test
+    void getHumanReadableMemoKeepsTheFormat() {
+        // the last timestamp is memoized, asking for the same instant in both formats must not mix them up
+        assertEquals("2024-01-01T00:00:00.5Z", CKANUtils.getHumanReadable(MIDNIGHT + 5, true));
+        assertEquals("2024-01-01 00:00:00.5", CKANUtils.getHumanReadable(MIDNIGHT + 5, false));
+        assertEquals("2024-01-01T00:00:00.5Z", CKANUtils.getHumanReadable(MIDNIGHT + 5, true));
+        assertEquals("2024-01-01T00:00:00.005Z", CKANUtils.getTimestamp(MIDNIGHT + 5));
+        assertEquals("2024-01-01T00:00:00.5Z", CKANUtils.getHumanReadable(MIDNIGHT + 5, true));
+    }
+
+    @Test
+    void getTimestampMatchesSimpleDateFormatWithPaddedMilliseconds() {
+        for (long ts : timestamps()) {
+            assertEquals(formerHumanReadable(ts, true, "SSS"), CKANUtils.getTimestamp(ts), "ts=" + ts);
+        }
+    }
+
+    @Test
+    void encodeCKANMatchesTheRegex() {
+        List<String> names = List.of(
+            "", "a", "-", "_", "urn_ngsi-ld_Sensor_01", "urn:ngsi-ld:Sensor:01", "name with spaces",
+            "café", "Straße", "ÆØÅ", "東京", "emoji😀end", "😀😀",
+            "lone\uD83Dhigh", "lone\uDE00low", "tab\there", "dots.and/slashes\\", "ÿ", "\u0000",
+            "a".repeat(100), "é".repeat(100), "a".repeat(99) + ":", ":" + "a".repeat(99), "a".repeat(101));
+        for (String name : names) {
+            assertEquals(formerEncodeCKAN(name), CKANUtils.encodeCKAN(name), "name=" + name);
+            // memoized the second time
+            assertEquals(formerEncodeCKAN(name), CKANUtils.encodeCKAN(name), "name=" + name);
+        }
+    }
+
+    @Test
+    void encodeCKANReturnsValidNamesAsIs() {
+        String name = "urn_ngsi-ld_Sensor_" + System.nanoTime();
+        assertSame(name, CKANUtils.encodeCKAN(name));
+    }
+
+    @Test
+    void encodeCKANStaysCorrectOnceTheMemoIsFull() {
+        for (int i = 0; i < 20000; i++) {
+            String name = "urn:ngsi-ld:Sensor:" + i;
+            assertEquals(formerEncodeCKAN(name), CKANUtils.encodeCKAN(name), "name=" + name);
+        }
+    }
+
+    @Test
+    void generateHashMatchesMessageDigest() throws Exception {
+        List<String> inputs = List.of("", "a", "urn:ngsi-ld:Sensor:01", "café", "東京", "emoji😀",
+            "a".repeat(100), "a".repeat(10000));
+        for (String input : inputs) {
+            assertEquals(formerGenerateHash(input), CKANUtils.generateHash(input), "input=" + input);
+            assertEquals(formerGenerateHash(input), CKANUtils.generateHash(input), "input=" + input);
+        }
+    }
+
+    @Test
+    void generateHashMemoDoesNotMixUpInputsWithTheSameHashCode() throws Exception {
+        // "Aa" and "BB" have the same String.hashCode(), like "AaAa", "AaBB", "BBAa" and "BBBB"
+        for (String input : List.of("Aa", "BB", "AaAa", "AaBB", "BBAa", "BBBB", "Aa", "BB")) {
+            assertEquals(formerGenerateHash(input), CKANUtils.generateHash(input), "input=" + input);
+        }
+    }
+
+    @Test
+    void generateHashStaysCorrectOnceTheMemoIsFull() throws Exception {
+        for (int i = 0; i < 20000; i++) {
+            String input = "urn:ngsi-ld:Sensor:" + i;
+            assertEquals(formerGenerateHash(input), CKANUtils.generateHash(input), "input=" + input);
+        }
+    }
+}